@@ -0,0 +1,36 @@
+#!/bin/sh
+# Compiles the sources, packages them as out/repo-agreement.jar and builds an
+# application class-data-sharing archive, out/repo-agreement.jsa, from a
+# training run. The training run records every class it loads, including
+# the lambda and stream classes generated at run time; the archive is then
+# dumped from that list together with the JDK classes, so later launches
+# that pass it map all of them from one file instead of parsing and
+# verifying them.
+#
+# Usage: scripts/build-cds.sh [Main arguments for the training run]
+# Without arguments the training run prices the sample book in src/assets.
+# To train on a larger book, pass e.g.
+#   --pipeline --deals book/repo_deals.csv --market book/borrow_market.csv --collateral book/collateral.csv --sink none
+#
+# The archive is only valid for the jar it was built from; rebuild both
+# together.
+set -e
+cd "$(dirname "$0")/.."
+
+mkdir -p out
+javac -encoding UTF-8 -d out $(find src -name '*.java')
+rm -f out/repo-agreement.jar out/repo-agreement.jsa out/repo-agreement.classlist
+(cd out && jar cfe repo-agreement.jar Main $(find . -name '*.class'))
+
+# The exit status is ignored: the sample book ends with a deal the engine
+# cannot price, and the class list is still written when the JVM exits.
+java -XX:DumpLoadedClassList=out/repo-agreement.classlist -cp out/repo-agreement.jar Main "$@" > /dev/null 2>&1 || true
+java -Xshare:dump -XX:SharedClassListFile=out/repo-agreement.classlist \
+    -XX:SharedArchiveFile=out/repo-agreement.jsa -cp out/repo-agreement.jar > /dev/null
+
+if [ ! -f out/repo-agreement.jsa ]; then
+    echo "Training run did not produce out/repo-agreement.jsa" >&2
+    exit 1
+fi
+echo "Built out/repo-agreement.jar and out/repo-agreement.jsa"
+echo "Launch with scripts/repo-agreement.sh [Main arguments]"
@@ -0,0 +1,10 @@
+#!/bin/sh
+# Launches the CLI for short runs. Uses the class-data-sharing archive built
+# by scripts/build-cds.sh when it exists, and limits the JIT to the C1 tier,
+# which compiles quickly enough to pay off in a run of a few hundred
+# milliseconds.
+cd "$(dirname "$0")/.."
+if [ -f out/repo-agreement.jsa ]; then
+    exec java -XX:SharedArchiveFile=out/repo-agreement.jsa -XX:TieredStopAtLevel=1 -cp out/repo-agreement.jar Main "$@"
+fi
+exec java -XX:TieredStopAtLevel=1 -cp out/repo-agreement.jar Main "$@"
@@ -1,19 +1,62 @@
 
+import core.AdaptiveRouter;
 import core.AllocationEngine;
+import core.AllocationListener;
+import core.CertifiedPricer;
+import core.ConsoleAllocationListener;
+import core.InternalCollateralAllocator;
+import core.MaxFillAllocator;
+import horizon.HorizonDay;
+import horizon.HorizonSimulator;
+import horizon.ScheduledDeal;
+import java.io.Closeable;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import models.Bond;
 import models.PossibleBorrowedBond;
 import models.RepoDeal;
+import pipeline.DealPipeline;
+import pipeline.StageStats;
+import pipeline.StagedPipeline;
+import util.AllocationJournal;
+import util.ColumnarResultsWriter;
+import util.CsvResultsWriter;
 import util.DataLoader;
 
 
 public class Main {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         System.out.println("Hello, World! This is a Repo Agreement application.");
 
+        String fallbackThreads = optionValue(args, "--fallback-threads");
+        if (fallbackThreads != null) {
+            AllocationEngine.setFallbackParallelism(Integer.parseInt(fallbackThreads));
+        }
+
+        if (Arrays.asList(args).contains("--pipeline")) {
+            runPipeline(args);
+            return;
+        }
+
+        String schedule = optionValue(args, "--horizon");
+        if (schedule != null && optionValue(args, "--journal") != null) {
+            // A resumed replay would need every live deal's dates and internal
+            // collateral back, not just the committed fills the journal holds.
+            throw new IllegalArgumentException("--horizon cannot be combined with --journal");
+        }
+
         List<Bond> bonds = loadCollateralBonds();
         List<PossibleBorrowedBond> possibleBorrowedBonds = loadBorrowMarket();
         List<RepoDeal> deals = loadDeals();
@@ -22,14 +65,316 @@ public class Main {
         printBorrowMarket(possibleBorrowedBonds);
         printRepoDeals(deals);
  */
+        AllocationListener listener = new ConsoleAllocationListener();
+        AllocationJournal.Recovery recovery = null;
+        List<Closeable> outputs = new ArrayList<>();
+        try {
+            String journalDir = optionValue(args, "--journal");
+            if (journalDir != null) {
+                Map<String, RepoDeal> dealsById = new LinkedHashMap<>();
+                deals.forEach(d -> dealsById.put(d.getId(), d));
+                AllocationJournal journal = AllocationJournal.open(Paths.get(journalDir), dealsById);
+                outputs.add(journal);
+                recovery = journal.getRecovery();
+                System.out.printf("Recovered %d deals from %d journal records in %.1f ms (%d discarded)%n",
+                        recovery.getCommittedDealIds().size(), recovery.getRecordsRead(),
+                        recovery.getElapsedNanos() / 1_000_000.0, recovery.getDiscardedRecords());
+                listener = listener.andThen(journal);
+            }
+
+            String exportDir = optionValue(args, "--export");
+            if (exportDir != null) {
+                Path dir = Files.createDirectories(Paths.get(exportDir));
+                CsvResultsWriter csv = new CsvResultsWriter(dir.resolve("deal_costs.csv"),
+                        dir.resolve("allocations.csv"));
+                outputs.add(csv);
+                ColumnarResultsWriter columnar = new ColumnarResultsWriter(dir.resolve("results.col"));
+                outputs.add(columnar);
+                listener = listener.andThen(csv).andThen(columnar);
+            }
+
+            if (schedule != null) {
+                simulateHorizon(DataLoader.loadDealSchedule(schedule, deals), bonds, possibleBorrowedBonds,
+                        listener);
+            } else if (Arrays.asList(args).contains("--max-fill")) {
+                MaxFillAllocator allocator = new MaxFillAllocator(bonds, possibleBorrowedBonds);
+                if (recovery != null) {
+                    allocator.reserveRecovered(recovery.getReservedByBond());
+                }
+                fillDeals(deals, allocator, listener, recovery);
+            } else {
+                CertifiedPricer certifier = Arrays.asList(args).contains("--certify")
+                        ? new CertifiedPricer(possibleBorrowedBonds) : null;
+                AdaptiveRouter router = Arrays.asList(args).contains("--adaptive-exact")
+                        ? new AdaptiveRouter(AdaptiveRouter.Mode.EXACT)
+                        : Arrays.asList(args).contains("--adaptive") ? new AdaptiveRouter() : null;
+                priceDeals(deals, possibleBorrowedBonds, certifier, router, listener, recovery);
+            }
+        } finally {
+            closeAll(outputs);
+        }
+    }
+
+    /**
+     * Runs the staged pipeline mode: deals are streamed from a CSV file
+     * through parse, validate, price, allocate and report stages that run
+     * concurrently, and the stats of each stage are printed at the end.
+     * <p>
+     * Options, all optional:
+     * <ul>
+     * <li>{@code --deals}, {@code --market}, {@code --collateral}: input
+     * files, defaulting to those in {@code src/assets}</li>
+     * <li>{@code --strategy engine|greedy|fallback|adaptive}: how deals are
+     * priced</li>
+     * <li>{@code --sink console|csv:<dir>|columnar:<file>|none}: where results
+     * go; several sinks can be given separated by commas</li>
+     * <li>{@code --parallelism parse=2,price=4}: worker threads per
+     * stage</li>
+     * <li>{@code --batch-size <n>} and {@code --queue-capacity <n>}: items per
+     * batch and batches per queue</li>
+     * </ul>
+     *
+     * @param args the command-line arguments
+     * @throws IOException if an output cannot be opened or closed
+     */
+    private static void runPipeline(String[] args) throws IOException {
+        DealPipeline pipeline = new DealPipeline(
+                Paths.get(optionValue(args, "--deals", Paths.get("src", "assets", "repo_deals.csv").toString())),
+                Paths.get(optionValue(args, "--market", Paths.get("src", "assets", "borrow_market.csv").toString())),
+                Paths.get(optionValue(args, "--collateral", Paths.get("src", "assets", "collateral.csv").toString())));
+        pipeline.setPricing(DealPipeline.Pricing.valueOf(
+                optionValue(args, "--strategy", "engine").toUpperCase(Locale.ROOT)));
+        pipeline.setBatchSize(Integer.parseInt(optionValue(args, "--batch-size",
+                String.valueOf(StagedPipeline.DEFAULT_BATCH_SIZE))));
+        pipeline.setQueueCapacity(Integer.parseInt(optionValue(args, "--queue-capacity",
+                String.valueOf(StagedPipeline.DEFAULT_QUEUE_CAPACITY))));
+        String parallelism = optionValue(args, "--parallelism");
+        if (parallelism != null) {
+            for (String setting : parallelism.split(",")) {
+                String[] parts = setting.split("=");
+                pipeline.setParallelism(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            }
+        }
+
+        AllocationListener listener = null;
+        boolean console = false;
+        List<Closeable> outputs = new ArrayList<>();
+        try {
+            for (String sink : optionValue(args, "--sink", "console").split(",")) {
+                AllocationListener next;
+                if (sink.equals("console")) {
+                    next = new ConsoleAllocationListener();
+                    console = true;
+                } else if (sink.startsWith("csv:")) {
+                    Path dir = Files.createDirectories(Paths.get(sink.substring("csv:".length())));
+                    CsvResultsWriter csv = new CsvResultsWriter(dir.resolve("deal_costs.csv"),
+                            dir.resolve("allocations.csv"));
+                    outputs.add(csv);
+                    next = csv;
+                } else if (sink.startsWith("columnar:")) {
+                    ColumnarResultsWriter columnar = new ColumnarResultsWriter(
+                            Paths.get(sink.substring("columnar:".length())));
+                    outputs.add(columnar);
+                    next = columnar;
+                } else if (sink.equals("none")) {
+                    continue;
+                } else {
+                    throw new IllegalArgumentException("Unknown sink: " + sink);
+                }
+                listener = listener == null ? next : listener.andThen(next);
+            }
+            if (listener == null) {
+                listener = AllocationListener.NONE;
+            }
+
+            List<StageStats> stats = pipeline.run(listener, console ? System.out : null);
+            System.out.println();
+            DealPipeline.printStats(stats, System.out);
+            if (pipeline.getPricing() == DealPipeline.Pricing.ADAPTIVE) {
+                System.out.println();
+                pipeline.getRouter().printReport(System.out);
+            }
+        } finally {
+            closeAll(outputs);
+        }
+    }
+
+    /**
+     * Closes each output in reverse order of opening, so results priced
+     * before a failure are still flushed to disk. The first exception is
+     * rethrown once everything has been closed.
+     *
+     * @param outputs the journal and exporters opened by {@code main}
+     * @throws IOException if any output fails to close
+     */
+    private static void closeAll(List<Closeable> outputs) throws IOException {
+        IOException failure = null;
+        for (int i = outputs.size() - 1; i >= 0; i--) {
+            try {
+                outputs.get(i).close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Prices each deal against the borrow market and prints a summary line
+     * per deal. Deals already committed in {@code recovery} keep their
+     * replayed state and are not priced again.
+     *
+     * @param deals the deals to price
+     * @param possibleBorrowedBonds the borrow market
+     * @param certifier prices deals instead of the engine when
+     * {@code --certify} is given, otherwise {@code null}
+     * @param router routes deals between the strategies when
+     * {@code --adaptive} or {@code --adaptive-exact} is given, otherwise
+     * {@code null}
+     * @param listener receives the allocations of each priced deal
+     * @param recovery journal recovery state, or {@code null} if not
+     * journaling
+     */
+    private static void priceDeals(List<RepoDeal> deals, List<PossibleBorrowedBond> possibleBorrowedBonds,
+            CertifiedPricer certifier, AdaptiveRouter router, AllocationListener listener,
+            AllocationJournal.Recovery recovery) {
         for (RepoDeal deal : deals) {
-            BigDecimal cost = AllocationEngine.calculateExternalBorrowCost(deal, possibleBorrowedBonds);
-            deal.setBorrowCost(cost);
+            if (recovery == null || !recovery.getCommittedDealIds().contains(deal.getId())) {
+                BigDecimal cost = certifier != null ? certifier.price(deal, listener).cost()
+                        : router != null ? router.price(deal, possibleBorrowedBonds, listener)
+                        : AllocationEngine.calculateExternalBorrowCost(deal, possibleBorrowedBonds, listener);
+                deal.setBorrowCost(cost);
+            }
 
             System.out.printf("Deal ID: %s | Total Required: $%.2f | Borrow Cost: $%.2f%n",deal.getId(),deal.getTotalValueRequired(),deal.getBorrowCost());
 
         }
+        if (certifier != null) {
+            System.out.printf("Certified optimal: %d | Gap closed: %d | Exact solved: %d | Searches avoided: %d%n",
+                    certifier.getCertified(), certifier.getGapClosed(), certifier.getExactSolved(),
+                    certifier.getSearchesAvoided());
+        }
+        if (router != null) {
+            router.printReport(System.out);
+        }
+    }
 
+    /**
+     * Fills each deal as far as internal collateral and the borrow market
+     * allow and prints what was filled and what is still short, so deals
+     * that cannot be filled completely do not stop the run. Deals already
+     * committed in {@code recovery} are not filled again: they are printed
+     * and counted from their replayed state, and their internal collateral
+     * must already have been taken off {@code allocator}.
+     *
+     * @param deals the deals to fill
+     * @param allocator the internal inventory and borrow market
+     * @param listener receives the market allocations of each deal
+     * @param recovery journal recovery state, or {@code null} if not
+     * journaling
+     */
+    private static void fillDeals(List<RepoDeal> deals, MaxFillAllocator allocator, AllocationListener listener,
+            AllocationJournal.Recovery recovery) {
+        int complete = 0;
+        BigDecimal shortfall = BigDecimal.ZERO;
+        for (RepoDeal deal : deals) {
+            BigDecimal fill;
+            BigDecimal internal = BigDecimal.ZERO;
+            BigDecimal missing;
+            if (recovery != null && recovery.getCommittedDealIds().contains(deal.getId())) {
+                missing = deal.getShortfall().max(BigDecimal.ZERO);
+                fill = deal.getTotalValueRequired().subtract(missing)
+                        .divide(deal.getTotalValueRequired(), MaxFillAllocator.FILL_SCALE, RoundingMode.DOWN);
+                internal = recovery.getReservedForDeal(deal.getId());
+            } else {
+                MaxFillAllocator.Fill result = allocator.allocate(deal, listener);
+                deal.setBorrowCost(result.borrowCost());
+                for (InternalCollateralAllocator.Reservation reservation : result.internal()) {
+                    internal = internal.add(reservation.value());
+                }
+                fill = result.fill();
+                missing = result.shortfall();
+            }
+            System.out.printf("Deal ID: %s | Total Required: $%.2f | Filled: %.4f%% | Borrow Cost: $%.2f | "
+                    + "Internal Collateral: $%.2f | Shortfall: $%.2f%n", deal.getId(), deal.getTotalValueRequired(),
+                    fill.movePointRight(2), deal.getBorrowCost(), internal, missing);
+            if (missing.signum() <= 0) {
+                complete++;
+            }
+            shortfall = shortfall.add(missing);
+        }
+        System.out.printf("Filled completely: %d of %d deals | Total shortfall: $%.2f%n", complete, deals.size(),
+                shortfall);
+    }
+
+    /**
+     * Replays dated deals day by day from the first start to the last
+     * maturity, recycling internal collateral as deals mature, and prints
+     * each day on which a deal started or matured, then the total borrow
+     * cost.
+     *
+     * @param schedule the deals and their dates
+     * @param bonds the internal collateral
+     * @param market the borrow market
+     * @param listener receives the market allocations of each deal
+     */
+    private static void simulateHorizon(List<ScheduledDeal> schedule, List<Bond> bonds,
+            List<PossibleBorrowedBond> market, AllocationListener listener) {
+        if (schedule.isEmpty()) {
+            System.out.println("No scheduled deals.");
+            return;
+        }
+        LocalDate first = schedule.stream().map(ScheduledDeal::start).min(LocalDate::compareTo).get();
+        LocalDate last = schedule.stream().map(ScheduledDeal::maturity).max(LocalDate::compareTo).get();
+        HorizonSimulator simulator = new HorizonSimulator(bonds, market, schedule, first, listener);
+        HorizonDay day = null;
+        for (HorizonDay next : simulator.runUntil(last)) {
+            day = next;
+            if (day.started() > 0 || day.matured() > 0) {
+                System.out.printf("%s | Started: %d | Matured: %d | Live: %d | Internal in use: $%.2f | "
+                        + "Shortfall: $%.2f | Daily cost: $%.2f | Cumulative: $%.2f%n", day.date(), day.started(),
+                        day.matured(), day.active(), day.internalInUse(), day.shortfall(), day.dailyCost(),
+                        day.cumulativeCost());
+            }
+        }
+        System.out.printf("Simulated %s to %s | Total borrow cost: $%.2f%n", first, last, day.cumulativeCost());
+    }
+
+    /**
+     * Returns the value following {@code option} on the command line, e.g.
+     * the directory in {@code --journal <dir>}, or {@code null} if the option
+     * was not given.
+     *
+     * @param args the command-line arguments
+     * @param option the option name, including leading dashes
+     * @return the option value, or {@code null}
+     */
+    private static String optionValue(String[] args, String option) {
+        return optionValue(args, option, null);
+    }
+
+    /**
+     * Returns the value following {@code option} on the command line, or
+     * {@code defaultValue} if the option was not given.
+     *
+     * @param args the command-line arguments
+     * @param option the option name, including leading dashes
+     * @param defaultValue the value to use when the option is absent
+     * @return the option value, or {@code defaultValue}
+     */
+    private static String optionValue(String[] args, String option, String defaultValue) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(option)) {
+                return args[i + 1];
+            }
+        }
+        return defaultValue;
     }
 
     /**
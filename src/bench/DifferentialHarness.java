@@ -0,0 +1,296 @@
+package bench;
+
+import core.Allocation;
+import core.AllocationEngine;
+import core.AllocationListener;
+import core.AllocationStrategy;
+import core.CertifiedPricer;
+import core.ParallelBacktrackingSearch;
+import core.ScratchGreedyPricer;
+import core.UnfulfillableConstraintException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+import util.DataLoader;
+import util.SyntheticBookGenerator;
+
+/**
+ * Runs every pricing strategy on the same synthetic books and compares them.
+ * <p>
+ * For each book size a book is generated with {@link SyntheticBookGenerator},
+ * written to disk and loaded back through {@link DataLoader}. Each strategy
+ * then prices the deals; every result is checked with
+ * {@link AllocationEngine#isValidAllocation} and for the exact total, costs
+ * are diffed against the greedy strategy, and throughput and memory are
+ * recorded. Strategies that can fall into the backtracking search only price
+ * the first {@code --fallback-sample} deals of each book.
+ * <p>
+ * Usage: {@code java -cp out bench.DifferentialHarness [--sizes 1000,10000]
+ * [--market-rows 36] [--fallback-sample 10] [--seed 42] [--report file.csv]}
+ */
+public class DifferentialHarness {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Prices one deal, reporting its allocations to the listener.
+     */
+    interface PricingFunction {
+        BigDecimal price(RepoDeal deal, List<PossibleBorrowedBond> market, AllocationListener listener);
+    }
+
+    /**
+     * A pricing strategy under test. Search-based strategies are only run on
+     * a sample of each book.
+     */
+    record Strategy(String name, boolean searchBased, PricingFunction pricing) {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = {1_000, 10_000, 100_000};
+        int marketRows = 36;
+        int fallbackSample = 10;
+        long seed = 42L;
+        Path report = null;
+        for (int i = 0; i < args.length - 1; i += 2) {
+            switch (args[i]) {
+                case "--sizes" -> sizes = java.util.Arrays.stream(args[i + 1].split(","))
+                        .mapToInt(Integer::parseInt).toArray();
+                case "--market-rows" -> marketRows = Integer.parseInt(args[i + 1]);
+                case "--fallback-sample" -> fallbackSample = Integer.parseInt(args[i + 1]);
+                case "--seed" -> seed = Long.parseLong(args[i + 1]);
+                case "--report" -> report = Paths.get(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        List<Strategy> strategies = strategies(pool);
+        List<String> rows = new ArrayList<>();
+        rows.add("deals,strategy,priced,failed,invalid,totalCost,cheaperThanGreedy,dearerThanGreedy,"
+                + "costDiffVsGreedy,dealsPerSecond,bytesPerDeal,heapUsedMb");
+
+        for (int size : sizes) {
+            Path dir = Files.createTempDirectory("synthetic-book-");
+            new SyntheticBookGenerator(seed).writeBook(dir, size, size / 2, marketRows);
+            List<RepoDeal> deals = DataLoader.loadRepoDeals(dir.resolve(SyntheticBookGenerator.DEALS_FILE).toString());
+            List<PossibleBorrowedBond> market = DataLoader.loadPossibleBorrowedBonds(
+                    dir.resolve(SyntheticBookGenerator.BORROW_MARKET_FILE).toString());
+
+            System.out.printf("%n==== %d deals, %d market rows ====%n", deals.size(), market.size());
+            System.out.printf("%-22s %8s %7s %8s %18s %8s %8s %14s %12s %10s %8s%n", "strategy", "priced",
+                    "failed", "invalid", "total cost", "cheaper", "dearer", "diff vs greedy", "deals/s",
+                    "bytes/deal", "heap MB");
+
+            BigDecimal[] greedyCosts = null;
+            for (Strategy strategy : strategies) {
+                int count = strategy.searchBased() ? Math.min(fallbackSample, deals.size()) : deals.size();
+                Result result = run(strategy, deals.subList(0, count), market);
+                if (greedyCosts == null) {
+                    greedyCosts = result.costs;
+                }
+                result.diff(greedyCosts);
+                System.out.printf("%-22s %8d %7d %8d %18.2f %8d %8d %14.2f %12.0f %10d %8d%n",
+                        strategy.name(), result.priced, result.failed, result.invalid, result.totalCost,
+                        result.cheaper, result.dearer, result.costDiff, result.dealsPerSecond(),
+                        result.bytesPerDeal(), result.heapUsedMb);
+                rows.add(size + "," + strategy.name() + "," + result.priced + "," + result.failed + ","
+                        + result.invalid + "," + result.totalCost.toPlainString() + "," + result.cheaper + ","
+                        + result.dearer + "," + result.costDiff.toPlainString() + ","
+                        + Math.round(result.dealsPerSecond()) + "," + result.bytesPerDeal() + ","
+                        + result.heapUsedMb);
+            }
+            deleteBook(dir);
+        }
+        pool.shutdown();
+
+        if (report != null) {
+            try (BufferedWriter out = Files.newBufferedWriter(report)) {
+                for (String row : rows) {
+                    out.write(row);
+                    out.newLine();
+                }
+            }
+            System.out.println("\nReport written to " + report);
+        }
+    }
+
+    static List<Strategy> strategies(ForkJoinPool pool) {
+        List<Strategy> strategies = new ArrayList<>();
+        strategies.add(new Strategy("greedy", false, AllocationEngine::calculateLowToHighRatingStrategy));
+        strategies.add(new Strategy("scratch-greedy", false, DifferentialHarness::priceScratchGreedy));
+        Map<List<PossibleBorrowedBond>, CertifiedPricer> certifiers = new IdentityHashMap<>();
+        strategies.add(new Strategy("certified", false, (deal, market, listener) ->
+                certifiers.computeIfAbsent(market, CertifiedPricer::new).price(deal, listener).cost()));
+        strategies.add(new Strategy("engine", true, AllocationEngine::calculateExternalBorrowCost));
+        strategies.add(new Strategy("fallback", true, AllocationEngine::calculateFallbackStrategy));
+        strategies.add(new Strategy("parallel-fallback", true, (deal, market, listener) -> {
+            List<Allocation> solution = ParallelBacktrackingSearch.search(deal, market, pool);
+            if (solution.isEmpty()) {
+                throw new IllegalStateException("no valid allocation found");
+            }
+            BigDecimal cost = BigDecimal.ZERO;
+            for (Allocation alloc : solution) {
+                listener.onAllocation(deal, alloc, AllocationStrategy.BACKTRACKING);
+                cost = cost.add(alloc.rate.divide(BigDecimal.valueOf(100)).multiply(alloc.amount));
+            }
+            listener.onDealPriced(deal, cost, AllocationStrategy.BACKTRACKING);
+            return cost;
+        }));
+        return strategies;
+    }
+
+    /**
+     * Runs {@link ScratchGreedyPricer} and converts its scaled results back
+     * to allocations so they can be checked like every other strategy.
+     */
+    private static BigDecimal priceScratchGreedy(RepoDeal deal, List<PossibleBorrowedBond> market,
+            AllocationListener listener) {
+        BigDecimal[] cost = new BigDecimal[1];
+        ScratchGreedyPricer.Outcome outcome = ScratchGreedyPricer.price(deal, market, new ScratchGreedyPricer.Sink() {
+            @Override
+            public void onAllocation(RepoDeal d, PossibleBorrowedBond bond, long amount, String rating, String type) {
+                Set<String> constraints = rating != null ? Set.of(rating, type)
+                        : type != null ? Set.of(type) : Set.of("Unconstrained");
+                listener.onAllocation(d, new Allocation(bond, BigDecimal.valueOf(amount,
+                        ScratchGreedyPricer.AMOUNT_SCALE), constraints), AllocationStrategy.LOW_TO_HIGH_RATING);
+            }
+
+            @Override
+            public void onDealPriced(RepoDeal d, long totalCost) {
+                cost[0] = BigDecimal.valueOf(totalCost, ScratchGreedyPricer.COST_SCALE);
+                listener.onDealPriced(d, cost[0], AllocationStrategy.LOW_TO_HIGH_RATING);
+            }
+        });
+        return switch (outcome) {
+            case PRICED -> cost[0];
+            case CONSTRAINTS_UNMET -> throw new UnfulfillableConstraintException("Invalid allocation");
+            case UNSUPPORTED -> AllocationEngine.calculateLowToHighRatingStrategy(deal, market, listener);
+        };
+    }
+
+    private static Result run(Strategy strategy, List<RepoDeal> deals, List<PossibleBorrowedBond> market) {
+        Result result = new Result(deals.size());
+        CollectingListener listener = new CollectingListener();
+        System.gc();
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < deals.size(); i++) {
+            RepoDeal deal = deals.get(i);
+            listener.allocations.clear();
+            try {
+                BigDecimal cost = strategy.pricing().price(deal, market, listener);
+                result.costs[i] = cost;
+                result.priced++;
+                result.totalCost = result.totalCost.add(cost);
+                if (!isValid(deal, listener.allocations)) {
+                    result.invalid++;
+                }
+            } catch (RuntimeException e) {
+                result.failed++;
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        result.allocatedBytes = allocatedBytes() - bytesBefore;
+        Runtime runtime = Runtime.getRuntime();
+        result.heapUsedMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+        return result;
+    }
+
+    /**
+     * Bytes allocated so far by all live threads, so work done in fork/join
+     * workers is counted too.
+     */
+    private static long allocatedBytes() {
+        long total = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static boolean isValid(RepoDeal deal, List<Allocation> allocations) {
+        BigDecimal allocated = BigDecimal.ZERO;
+        for (Allocation alloc : allocations) {
+            allocated = allocated.add(alloc.amount);
+        }
+        return AllocationEngine.isValidAllocation(deal, allocations)
+                && allocated.compareTo(deal.getTotalValueRequired()) == 0;
+    }
+
+    private static void deleteBook(Path dir) throws IOException {
+        Files.deleteIfExists(dir.resolve(SyntheticBookGenerator.DEALS_FILE));
+        Files.deleteIfExists(dir.resolve(SyntheticBookGenerator.COLLATERAL_FILE));
+        Files.deleteIfExists(dir.resolve(SyntheticBookGenerator.BORROW_MARKET_FILE));
+        Files.deleteIfExists(dir);
+    }
+
+    private static class CollectingListener implements AllocationListener {
+        final List<Allocation> allocations = new ArrayList<>();
+
+        @Override
+        public void onAllocation(RepoDeal deal, Allocation allocation, AllocationStrategy strategy) {
+            allocations.add(allocation);
+        }
+
+        @Override
+        public void onDealPriced(RepoDeal deal, BigDecimal totalCost, AllocationStrategy strategy) {
+        }
+
+        @Override
+        public void onStrategyFailed(RepoDeal deal, AllocationStrategy strategy, String reason) {
+            allocations.clear();
+        }
+    }
+
+    private static class Result {
+        final BigDecimal[] costs;
+        int priced;
+        int failed;
+        int invalid;
+        int cheaper;
+        int dearer;
+        BigDecimal totalCost = BigDecimal.ZERO;
+        BigDecimal costDiff = BigDecimal.ZERO;
+        long elapsedNanos;
+        long allocatedBytes;
+        long heapUsedMb;
+
+        Result(int deals) {
+            this.costs = new BigDecimal[deals];
+        }
+
+        void diff(BigDecimal[] greedyCosts) {
+            for (int i = 0; i < costs.length; i++) {
+                if (costs[i] == null || greedyCosts[i] == null) continue;
+                int cmp = costs[i].compareTo(greedyCosts[i]);
+                if (cmp < 0) cheaper++;
+                if (cmp > 0) dearer++;
+                costDiff = costDiff.add(costs[i].subtract(greedyCosts[i]));
+            }
+        }
+
+        double dealsPerSecond() {
+            return costs.length / Math.max(elapsedNanos / 1e9, 1e-9);
+        }
+
+        long bytesPerDeal() {
+            return costs.length == 0 ? 0 : allocatedBytes / costs.length;
+        }
+    }
+}
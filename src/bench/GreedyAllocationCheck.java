@@ -0,0 +1,93 @@
+package bench;
+
+import core.ScratchGreedyPricer;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+import util.SyntheticBookGenerator;
+
+/**
+ * Checks that {@link ScratchGreedyPricer} allocates nothing per deal once
+ * warmed up, using the JMX per-thread allocation counter.
+ * <p>
+ * JIT compilation that is still going on after warm-up occasionally charges a
+ * few hundred bytes to the pricing thread, landing on a different deal each
+ * run; with {@code -Xint} no pass ever allocates. So the measured pass is
+ * repeated up to {@value #MEASURED_PASSES} times and the check passes on the
+ * first pass that allocates nothing. It exits with status 1 if every pass
+ * allocated, which a per-deal allocation in the pricer always does.
+ * <p>
+ * Usage: {@code java -cp out bench.GreedyAllocationCheck [deals] [warmupPasses]}
+ */
+public class GreedyAllocationCheck {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final int MEASURED_PASSES = 5;
+
+    public static void main(String[] args) {
+        int dealCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int warmupPasses = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        SyntheticBookGenerator generator = new SyntheticBookGenerator(42L);
+        List<RepoDeal> deals = generator.generateDeals(dealCount);
+        List<PossibleBorrowedBond> market = generator.generateBorrowMarket(36);
+        TotallingSink sink = new TotallingSink();
+        int[] outcomes = new int[ScratchGreedyPricer.Outcome.values().length];
+
+        for (int pass = 0; pass < warmupPasses; pass++) {
+            pricePass(deals, market, sink, outcomes);
+        }
+
+        long allocated = -1;
+        for (int pass = 1; pass <= MEASURED_PASSES && allocated != 0; pass++) {
+            java.util.Arrays.fill(outcomes, 0);
+            long before = THREADS.getCurrentThreadAllocatedBytes();
+            pricePass(deals, market, sink, outcomes);
+            allocated = THREADS.getCurrentThreadAllocatedBytes() - before;
+
+            if (pass == 1) {
+                System.out.printf("Deals priced: %d, constraints unmet: %d, unsupported: %d%n",
+                        outcomes[ScratchGreedyPricer.Outcome.PRICED.ordinal()],
+                        outcomes[ScratchGreedyPricer.Outcome.CONSTRAINTS_UNMET.ordinal()],
+                        outcomes[ScratchGreedyPricer.Outcome.UNSUPPORTED.ordinal()]);
+            }
+            System.out.printf("Pass %d: allocated %d bytes over %d deals (%.3f bytes/deal)%n",
+                    pass, allocated, deals.size(), (double) allocated / deals.size());
+        }
+
+        if (allocated != 0) {
+            System.out.printf("FAILED: greedy pricing allocated in all %d passes after warm-up%n", MEASURED_PASSES);
+            System.exit(1);
+        }
+        System.out.println("OK: zero bytes allocated per deal after warm-up");
+    }
+
+    private static void pricePass(List<RepoDeal> deals, List<PossibleBorrowedBond> market, TotallingSink sink,
+            int[] outcomes) {
+        for (int i = 0; i < deals.size(); i++) {
+            outcomes[ScratchGreedyPricer.price(deals.get(i), market, sink).ordinal()]++;
+        }
+    }
+
+    /**
+     * Keeps running totals so the results are used without allocating.
+     */
+    private static class TotallingSink implements ScratchGreedyPricer.Sink {
+        long allocations;
+        long amount;
+        long cost;
+
+        @Override
+        public void onAllocation(RepoDeal deal, PossibleBorrowedBond bond, long amount, String rating, String type) {
+            allocations++;
+            this.amount += amount;
+        }
+
+        @Override
+        public void onDealPriced(RepoDeal deal, long totalCost) {
+            cost += totalCost;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import core.AllocationListener;
+import core.MaxFillAllocator;
+import horizon.HorizonDay;
+import horizon.HorizonSimulator;
+import horizon.ScheduledDeal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import models.Bond;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+import util.SyntheticBookGenerator;
+
+/**
+ * Times a day-by-day replay of a synthetic book with
+ * {@link HorizonSimulator} and compares it with re-solving the live book
+ * from scratch every day.
+ * <p>
+ * Deals start on a uniformly random day of the horizon and run for a random
+ * tenor. The replay prints the state at the end of every 30th day and of the
+ * last day. The from-scratch cost is estimated by filling every deal live on
+ * the middle day with a fresh allocator, once, and multiplying by the number
+ * of days.
+ * <p>
+ * Usage: {@code java -cp out bench.HorizonBenchmark [deals] [holdings] [days]
+ * [maxTenorDays] [seed]}
+ */
+public class HorizonBenchmark {
+
+    private static final int MARKET_ROWS = 18;
+    private static final LocalDate FIRST_DAY = LocalDate.of(2025, 1, 1);
+
+    public static void main(String[] args) {
+        int dealCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int holdings = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int days = args.length > 2 ? Integer.parseInt(args[2]) : 365;
+        int maxTenor = args.length > 3 ? Integer.parseInt(args[3]) : 90;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42L;
+
+        SyntheticBookGenerator generator = new SyntheticBookGenerator(seed);
+        List<PossibleBorrowedBond> market = generator.generateBorrowMarket(MARKET_ROWS);
+        List<Bond> inventory = generator.generateInventory(holdings);
+        List<RepoDeal> deals = generator.generateDeals(dealCount);
+        Random random = new Random(seed);
+        List<ScheduledDeal> schedule = new ArrayList<>(deals.size());
+        for (RepoDeal deal : deals) {
+            LocalDate start = FIRST_DAY.plusDays(random.nextInt(days));
+            schedule.add(new ScheduledDeal(deal, start, start.plusDays(1 + random.nextInt(maxTenor))));
+        }
+        System.out.printf("Book: %d deals over %d days, tenors up to %d days, %d holdings%n%n", deals.size(), days,
+                maxTenor, inventory.size());
+
+        long start = System.nanoTime();
+        HorizonSimulator simulator = new HorizonSimulator(inventory, market, schedule, FIRST_DAY,
+                AllocationListener.NONE);
+        int incomplete = 0;
+        for (int d = 1; d <= days; d++) {
+            HorizonDay day = simulator.step();
+            incomplete += day.incomplete();
+            if (d % 30 == 0 || d == days) {
+                System.out.printf("%s  live %6d  internal in use $%,18.2f  shortfall $%,16.2f  daily cost "
+                        + "$%,12.2f  cumulative $%,16.2f%n", day.date(), day.active(), day.internalInUse(),
+                        day.shortfall(), day.dailyCost(), day.cumulativeCost());
+            }
+        }
+        long incrementalNanos = System.nanoTime() - start;
+
+        LocalDate middle = FIRST_DAY.plusDays(days / 2);
+        List<RepoDeal> liveOnMiddleDay = new ArrayList<>();
+        for (ScheduledDeal scheduled : schedule) {
+            if (!scheduled.start().isAfter(middle) && scheduled.maturity().isAfter(middle)) {
+                liveOnMiddleDay.add(scheduled.deal());
+            }
+        }
+        start = System.nanoTime();
+        MaxFillAllocator fresh = new MaxFillAllocator(inventory, market);
+        for (RepoDeal deal : liveOnMiddleDay) {
+            fresh.allocate(deal, AllocationListener.NONE);
+        }
+        long oneDayNanos = System.nanoTime() - start;
+
+        System.out.printf("%nIncremental replay: %.1f s for %d days (%d deals not filled completely)%n",
+                incrementalNanos / 1e9, days, incomplete);
+        System.out.printf("From scratch: %.1f s to re-solve the %d deals live on %s, about %.1f s for %d days%n",
+                oneDayNanos / 1e9, liveOnMiddleDay.size(), middle, oneDayNanos * (double) days / 1e9, days);
+    }
+}
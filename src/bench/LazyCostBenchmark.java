@@ -0,0 +1,80 @@
+package bench;
+
+import core.AllocationEngine;
+import core.AllocationListener;
+import core.LazyCostEstimator;
+import core.UnfulfillableConstraintException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+import util.SyntheticBookGenerator;
+
+/**
+ * Compares answering cost questions with {@link LazyCostEstimator} against
+ * fully pricing every deal first, on a synthetic book. For each question it
+ * checks that both give the same answer and prints the time taken and how
+ * many full solves the estimator avoided.
+ * <p>
+ * Usage: {@code java -cp out bench.LazyCostBenchmark [deals] [marketRows] [k]
+ * [seed]}
+ */
+public class LazyCostBenchmark {
+
+    public static void main(String[] args) {
+        int dealCount = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int marketRows = args.length > 1 ? Integer.parseInt(args[1]) : 18;
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+
+        SyntheticBookGenerator generator = new SyntheticBookGenerator(seed);
+        List<RepoDeal> deals = generator.generateDeals(dealCount);
+        List<PossibleBorrowedBond> market = generator.generateBorrowMarket(marketRows);
+
+        long start = System.nanoTime();
+        Map<RepoDeal, BigDecimal> costs = new IdentityHashMap<>();
+        List<RepoDeal> priceable = new ArrayList<>();
+        for (RepoDeal deal : deals) {
+            try {
+                costs.put(deal, AllocationEngine.calculateExternalBorrowCost(deal, market, AllocationListener.NONE));
+                priceable.add(deal);
+            } catch (UnfulfillableConstraintException | IllegalArgumentException e) {
+                // Unpriceable deals are left out of every answer.
+            }
+        }
+        double eagerMillis = (System.nanoTime() - start) / 1_000_000.0;
+        System.out.printf("Deals: %d, market rows: %d, priceable: %d%n", deals.size(), marketRows, priceable.size());
+        System.out.printf("Pricing every deal: %.1f ms, %d full solves%n%n", eagerMillis, deals.size());
+
+        List<RepoDeal> ascending = new ArrayList<>(priceable);
+        ascending.sort(Comparator.comparing(costs::get));
+        List<RepoDeal> descending = new ArrayList<>(priceable);
+        descending.sort(Comparator.comparing(costs::get, Comparator.reverseOrder()));
+        BigDecimal threshold = costs.get(ascending.get(ascending.size() * 9 / 10));
+
+        System.out.printf("%-22s %10s %12s %14s %s%n", "question", "lazy ms", "full solves", "solves avoided",
+                "same answer");
+        run("top " + k + " most expensive", deals, market, e -> e.mostExpensive(k),
+                descending.subList(0, Math.min(k, descending.size())));
+        run("cost >= p90", deals, market, e -> e.costAtLeast(threshold),
+                priceable.stream().filter(d -> costs.get(d).compareTo(threshold) >= 0).toList());
+        run("cost <= p90", deals, market, e -> e.costAtMost(threshold),
+                priceable.stream().filter(d -> costs.get(d).compareTo(threshold) <= 0).toList());
+        run("sorted by cost", deals, market, LazyCostEstimator::sortedByCost, ascending);
+    }
+
+    private static void run(String question, List<RepoDeal> deals, List<PossibleBorrowedBond> market,
+            Function<LazyCostEstimator, List<RepoDeal>> ask, List<RepoDeal> expected) {
+        long start = System.nanoTime();
+        LazyCostEstimator estimator = new LazyCostEstimator(deals, market);
+        List<RepoDeal> answer = ask.apply(estimator);
+        double millis = (System.nanoTime() - start) / 1_000_000.0;
+        System.out.printf("%-22s %10.1f %12d %14d %s%n", question, millis, estimator.getFullSolves(),
+                estimator.getSolvesAvoided(), answer.equals(expected) ? "yes" : "NO");
+    }
+}
@@ -0,0 +1,92 @@
+package bench;
+
+import core.Allocation;
+import core.ParallelBacktrackingSearch;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+import util.SyntheticBookGenerator;
+
+/**
+ * Measures the speed-up of {@link ParallelBacktrackingSearch} from 1 to 64
+ * threads on borrow markets from {@link SyntheticBookGenerator}, and checks
+ * that every thread count returns the same allocation.
+ * <p>
+ * Usage: {@code java -cp out bench.ParallelSearchBenchmark [marketSize ...]}
+ */
+public class ParallelSearchBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    public static void main(String[] args) {
+        int[] sizes = args.length == 0 ? new int[]{36, 54, 72} : parseSizes(args);
+        System.out.printf("Available processors: %d%n", Runtime.getRuntime().availableProcessors());
+
+        for (int size : sizes) {
+            List<PossibleBorrowedBond> market = new SyntheticBookGenerator(42L + size).generateBorrowMarket(size);
+            RepoDeal deal = syntheticDeal();
+
+            // Warm up the search code before timing.
+            ForkJoinPool warmup = new ForkJoinPool(2);
+            for (int i = 0; i < 3; i++) {
+                ParallelBacktrackingSearch.search(deal, market, warmup);
+            }
+            warmup.shutdown();
+
+            System.out.printf("%nMarket size %d%n", size);
+            System.out.printf("%8s %12s %10s %16s%n", "threads", "time (ms)", "speed-up", "cost");
+
+            double baseline = 0;
+            String reference = null;
+            for (int threads : THREADS) {
+                long start = System.nanoTime();
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                List<Allocation> result = ParallelBacktrackingSearch.search(deal, market, pool);
+                pool.shutdown();
+                double millis = (System.nanoTime() - start) / 1_000_000.0;
+                if (threads == 1) {
+                    baseline = millis;
+                }
+
+                String signature = result.toString();
+                if (reference == null) {
+                    reference = signature;
+                } else if (!reference.equals(signature)) {
+                    throw new IllegalStateException("Result with " + threads + " threads differs from 1 thread");
+                }
+
+                System.out.printf("%8d %12.1f %10.2f %16.2f%n", threads, millis, baseline / millis, cost(result));
+            }
+        }
+    }
+
+    private static int[] parseSizes(String[] args) {
+        int[] sizes = new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+        return sizes;
+    }
+
+    private static BigDecimal cost(List<Allocation> allocations) {
+        BigDecimal total = BigDecimal.ZERO;
+        for (Allocation alloc : allocations) {
+            total = total.add(alloc.rate.divide(BigDecimal.valueOf(100)).multiply(alloc.amount));
+        }
+        return total;
+    }
+
+    private static RepoDeal syntheticDeal() {
+        Map<String, BigDecimal> ratings = new HashMap<>();
+        ratings.put("AAA", BigDecimal.valueOf(40));
+        ratings.put("AA", BigDecimal.valueOf(20));
+        Map<String, BigDecimal> types = new HashMap<>();
+        types.put("Municipal", BigDecimal.valueOf(40));
+        types.put("Corporate", BigDecimal.valueOf(20));
+        return new RepoDeal("SYN", BigDecimal.valueOf(10_000_000), ratings, types);
+    }
+}
@@ -0,0 +1,93 @@
+package bench;
+
+import core.CollateralRepairer;
+import core.InternalCollateralAllocator;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import models.Bond;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+import util.SyntheticBookGenerator;
+
+/**
+ * Compares repairing the deals hit by a recalled bond with
+ * {@link CollateralRepairer} against allocating the internal inventory to the
+ * whole book again.
+ * <p>
+ * A synthetic book is allocated against a synthetic inventory, then bonds
+ * held by some deal are recalled one after another. For each recall the
+ * repair time, the deals affected and the changes made are recorded; the
+ * baseline time is a fresh allocation of the book without the recalled
+ * bonds.
+ * <p>
+ * Usage: {@code java -cp out bench.RepairBenchmark [deals] [holdings]
+ * [recalls] [budgetMs] [seed]}
+ */
+public class RepairBenchmark {
+
+    private static final int MARKET_ROWS = 18;
+
+    public static void main(String[] args) {
+        int dealCount = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int holdings = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+        int recalls = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        Duration budget = Duration.ofMillis(args.length > 3 ? Long.parseLong(args[3]) : 50);
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42L;
+
+        SyntheticBookGenerator generator = new SyntheticBookGenerator(seed);
+        List<PossibleBorrowedBond> market = generator.generateBorrowMarket(MARKET_ROWS);
+        List<Bond> inventory = new ArrayList<>(generator.generateInventory(holdings));
+        List<RepoDeal> deals = generator.generateDeals(dealCount);
+        System.out.printf("Book: %d deals, %d holdings, %d recalls with a %d ms budget%n%n", deals.size(),
+                inventory.size(), recalls, budget.toMillis());
+
+        InternalCollateralAllocator allocator = new InternalCollateralAllocator(inventory);
+        for (RepoDeal deal : deals) {
+            allocator.allocate(deal);
+        }
+        CollateralRepairer repairer = new CollateralRepairer(allocator, market);
+        Random random = new Random(seed);
+        long repairNanos = 0;
+        long fullNanos = 0;
+        int affected = 0;
+        int changes = 0;
+        int unrepaired = 0;
+        int timedOut = 0;
+        for (int i = 0; i < recalls; i++) {
+            Bond bond = inventory.get(random.nextInt(inventory.size()));
+            CollateralRepairer.Repair repair = repairer.recall(bond.getId(), budget);
+            repairNanos += repair.elapsedNanos();
+            affected += repair.affected().size();
+            changes += repair.getChangeCount();
+            unrepaired += repair.unrepaired().size();
+            timedOut += repair.timedOut() ? 1 : 0;
+
+            inventory.remove(bond);
+            List<RepoDeal> fresh = freshBook(seed, holdings, dealCount);
+            long start = System.nanoTime();
+            InternalCollateralAllocator full = new InternalCollateralAllocator(inventory);
+            for (RepoDeal deal : fresh) {
+                full.allocate(deal);
+            }
+            fullNanos += System.nanoTime() - start;
+        }
+
+        System.out.printf("Local repair:   %10.3f ms per recall, %.1f deals affected, %.1f changes, "
+                + "%d deals unrepaired, %d searches timed out%n", repairNanos / 1_000_000.0 / recalls,
+                (double) affected / recalls, (double) changes / recalls, unrepaired, timedOut);
+        System.out.printf("Full allocation: %9.3f ms per recall%n", fullNanos / 1_000_000.0 / recalls);
+        System.out.printf("Speed-up: %.0fx%n", (double) fullNanos / Math.max(1, repairNanos));
+    }
+
+    /**
+     * The same book again, unallocated, from a generator with the same seed.
+     */
+    private static List<RepoDeal> freshBook(long seed, int holdings, int dealCount) {
+        SyntheticBookGenerator generator = new SyntheticBookGenerator(seed);
+        generator.generateBorrowMarket(MARKET_ROWS);
+        generator.generateInventory(holdings);
+        return generator.generateDeals(dealCount);
+    }
+}
@@ -0,0 +1,160 @@
+package bench;
+
+import core.AdaptiveRouter;
+import core.AllocationEngine;
+import core.AllocationListener;
+import core.ConsoleAllocationListener;
+import core.UnfulfillableConstraintException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Locale;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+import util.SyntheticBookGenerator;
+
+/**
+ * Measures what {@link AdaptiveRouter} saves against
+ * {@link AllocationEngine#calculateExternalBorrowCost}, which always tries
+ * greedy first, on a synthetic book.
+ * <p>
+ * Every deal is priced by both, one straight after the other, with the
+ * order alternating from deal to deal so neither side gains from running
+ * second. Both use a {@link ConsoleAllocationListener} whose output is
+ * discarded, so formatting the console report is part of the cost as it is
+ * in {@code Main}. The first {@value #WARM_UP_DEALS} deals are priced once
+ * beforehand so neither pays for JIT warm-up.
+ * <p>
+ * The measured times are totalled separately for the deals whose greedy
+ * attempt the router skipped, where the saving is, and for the rest, which
+ * run the engine's own code and show the router's bookkeeping overhead. The
+ * prices are compared deal by deal: in {@code engine} mode every price must
+ * match the engine's; in {@code exact} mode deals greedy cannot price get
+ * the grid optimum, which can only be cheaper.
+ * <p>
+ * Usage: {@code java -cp out bench.RouterBenchmark [deals] [marketRows]
+ * [seed] [engine|exact]}
+ */
+public class RouterBenchmark {
+
+    private static final int WARM_UP_DEALS = 200;
+
+    public static void main(String[] args) {
+        int dealCount = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int marketRows = args.length > 1 ? Integer.parseInt(args[1]) : 18;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+        AdaptiveRouter.Mode mode = args.length > 3
+                ? AdaptiveRouter.Mode.valueOf(args[3].toUpperCase(Locale.ROOT)) : AdaptiveRouter.Mode.ENGINE;
+
+        SyntheticBookGenerator generator = new SyntheticBookGenerator(seed);
+        List<PossibleBorrowedBond> market = generator.generateBorrowMarket(marketRows);
+        List<RepoDeal> deals = generator.generateDeals(dealCount);
+        System.out.printf("Book: %d deals, %d market rows%n%n", deals.size(), market.size());
+
+        AdaptiveRouter router = new AdaptiveRouter(mode);
+        Totals routed = new Totals();
+        Totals other = new Totals();
+        PrintStream out = System.out;
+        try {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            AllocationListener listener = new ConsoleAllocationListener();
+            for (RepoDeal deal : deals.subList(0, Math.min(WARM_UP_DEALS, deals.size()))) {
+                engine(deal, market, listener);
+            }
+            for (int i = 0; i < deals.size(); i++) {
+                RepoDeal deal = deals.get(i);
+                long skippedBefore = router.getGreedySkipped();
+                long engineNanos;
+                long routerNanos;
+                BigDecimal engineCost;
+                BigDecimal routerCost;
+                if (i % 2 == 0) {
+                    long start = System.nanoTime();
+                    engineCost = engine(deal, market, listener);
+                    engineNanos = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    routerCost = router(router, deal, market, listener);
+                    routerNanos = System.nanoTime() - start;
+                } else {
+                    long start = System.nanoTime();
+                    routerCost = router(router, deal, market, listener);
+                    routerNanos = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    engineCost = engine(deal, market, listener);
+                    engineNanos = System.nanoTime() - start;
+                }
+                Totals totals = router.getGreedySkipped() > skippedBefore ? routed : other;
+                totals.add(engineNanos, routerNanos, engineCost, routerCost);
+            }
+        } finally {
+            System.setOut(out);
+        }
+
+        router.printReport(System.out);
+        System.out.println();
+        routed.print("Greedy skipped", System.out);
+        other.print("Greedy tried", System.out);
+        System.out.printf("Measured time saved: %.1f ms of %.1f ms%n",
+                (routed.engineNanos + other.engineNanos - routed.routerNanos - other.routerNanos) / 1e6,
+                (routed.engineNanos + other.engineNanos) / 1e6);
+        System.out.printf("Prices different from the engine's: %d%n", routed.differences() + other.differences());
+    }
+
+    private static BigDecimal engine(RepoDeal deal, List<PossibleBorrowedBond> market, AllocationListener listener) {
+        try {
+            return AllocationEngine.calculateExternalBorrowCost(deal, market, listener);
+        } catch (UnfulfillableConstraintException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static BigDecimal router(AdaptiveRouter router, RepoDeal deal, List<PossibleBorrowedBond> market,
+            AllocationListener listener) {
+        try {
+            return router.price(deal, market, listener);
+        } catch (UnfulfillableConstraintException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Paired timings and price differences for one group of deals.
+     */
+    private static final class Totals {
+        int deals;
+        long engineNanos;
+        long routerNanos;
+        int cheaper;
+        int dearer;
+        int pricedOnlyByRouter;
+        int pricedOnlyByEngine;
+        BigDecimal reduction = BigDecimal.ZERO;
+
+        void add(long engine, long router, BigDecimal engineCost, BigDecimal routerCost) {
+            deals++;
+            engineNanos += engine;
+            routerNanos += router;
+            if (engineCost == null || routerCost == null) {
+                if (engineCost != null) pricedOnlyByEngine++;
+                if (routerCost != null) pricedOnlyByRouter++;
+                return;
+            }
+            int compare = routerCost.compareTo(engineCost);
+            if (compare < 0) cheaper++;
+            if (compare > 0) dearer++;
+            reduction = reduction.add(engineCost.subtract(routerCost));
+        }
+
+        int differences() {
+            return cheaper + dearer + pricedOnlyByRouter + pricedOnlyByEngine;
+        }
+
+        void print(String label, PrintStream out) {
+            out.printf("%-20s %5d deals | engine %8.1f ms | router %8.1f ms | saved %8.1f ms | cheaper %d, "
+                    + "dearer %d, priced only by router %d, only by engine %d | cost reduction $%,.2f%n", label,
+                    deals, engineNanos / 1e6, routerNanos / 1e6, (engineNanos - routerNanos) / 1e6, cheaper, dearer,
+                    pricedOnlyByRouter, pricedOnlyByEngine, reduction);
+        }
+    }
+}
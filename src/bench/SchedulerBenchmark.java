@@ -0,0 +1,127 @@
+package bench;
+
+import core.AllocationEngine;
+import core.AllocationListener;
+import core.UnfulfillableConstraintException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+import scheduler.Lane;
+import scheduler.PricingOutcome;
+import scheduler.PricingScheduler;
+import util.SyntheticBookGenerator;
+
+/**
+ * Shows how long single-deal quotes wait while the book is being re-priced,
+ * first with every request on one first-in-first-out queue and then with
+ * {@link PricingScheduler}. Every run uses {@value #THREADS} threads: the
+ * FIFO queue is served by a pool of that size, and the scheduler runs once
+ * with all of them shared between the lanes and once with one reserved for
+ * quotes.
+ * <p>
+ * A synthetic book is submitted for re-pricing all at once, together with a
+ * set of background scenario deals with a short budget. Quotes then arrive
+ * at a fixed interval, each with the same budget. For both runs the quote
+ * latency percentiles and deadline misses are printed, and for the scheduler
+ * the stats of every lane.
+ * <p>
+ * Usage: {@code java -cp out bench.SchedulerBenchmark [batchDeals] [quotes]
+ * [quoteBudgetMs] [seed]}
+ */
+public class SchedulerBenchmark {
+
+    private static final int MARKET_ROWS = 18;
+    private static final int THREADS = 2;
+    private static final long QUOTE_INTERVAL_MILLIS = 20;
+    private static final Duration BATCH_BUDGET = Duration.ofMinutes(10);
+    private static final Duration BACKGROUND_BUDGET = Duration.ofSeconds(5);
+
+    public static void main(String[] args) throws Exception {
+        int batchDeals = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int quotes = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Duration quoteBudget = Duration.ofMillis(args.length > 2 ? Long.parseLong(args[2]) : 50);
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+
+        SyntheticBookGenerator generator = new SyntheticBookGenerator(seed);
+        List<PossibleBorrowedBond> market = generator.generateBorrowMarket(MARKET_ROWS);
+        List<RepoDeal> book = generator.generateDeals(batchDeals);
+        List<RepoDeal> scenarios = generator.generateDeals(batchDeals / 4);
+        List<RepoDeal> quoteDeals = generator.generateDeals(quotes);
+        System.out.printf("Book: %d deals, scenarios: %d, quotes: %d every %d ms with a %d ms budget%n%n",
+                book.size(), scenarios.size(), quotes, QUOTE_INTERVAL_MILLIS, quoteBudget.toMillis());
+
+        System.out.printf("Single FIFO queue (%d threads):%n", THREADS);
+        ExecutorService fifo = Executors.newFixedThreadPool(THREADS);
+        for (RepoDeal deal : book) {
+            fifo.submit(() -> price(deal, market));
+        }
+        for (RepoDeal deal : scenarios) {
+            fifo.submit(() -> price(deal, market));
+        }
+        List<CompletableFuture<Long>> fifoQuotes = new ArrayList<>();
+        for (RepoDeal deal : quoteDeals) {
+            long submitted = System.nanoTime();
+            fifoQuotes.add(CompletableFuture.supplyAsync(() -> {
+                price(deal, market);
+                return System.nanoTime() - submitted;
+            }, fifo));
+            Thread.sleep(QUOTE_INTERVAL_MILLIS);
+        }
+        long[] fifoLatencies = fifoQuotes.stream().mapToLong(CompletableFuture::join).toArray();
+        fifo.shutdown();
+        fifo.awaitTermination(1, TimeUnit.HOURS);
+        printQuotes(fifoLatencies, quoteBudget);
+
+        runScheduler(THREADS, 0, book, scenarios, quoteDeals, market, quoteBudget);
+        runScheduler(THREADS - 1, 1, book, scenarios, quoteDeals, market, quoteBudget);
+    }
+
+    private static void runScheduler(int sharedWorkers, int interactiveWorkers, List<RepoDeal> book,
+            List<RepoDeal> scenarios, List<RepoDeal> quoteDeals, List<PossibleBorrowedBond> market,
+            Duration quoteBudget) throws InterruptedException {
+        System.out.printf("%nPricing scheduler (%d shared, %d interactive):%n", sharedWorkers, interactiveWorkers);
+        PricingScheduler scheduler = new PricingScheduler(sharedWorkers, interactiveWorkers,
+                PricingScheduler.DEFAULT_LANE_CAPACITY);
+        for (RepoDeal deal : book) {
+            scheduler.submit(deal, market, Lane.BATCH, BATCH_BUDGET, AllocationListener.NONE);
+        }
+        for (RepoDeal deal : scenarios) {
+            scheduler.submit(deal, market, Lane.BACKGROUND, BACKGROUND_BUDGET, AllocationListener.NONE);
+        }
+        List<CompletableFuture<PricingOutcome>> quoteOutcomes = new ArrayList<>();
+        for (RepoDeal deal : quoteDeals) {
+            quoteOutcomes.add(scheduler.submit(deal, market, Lane.INTERACTIVE, quoteBudget, AllocationListener.NONE));
+            Thread.sleep(QUOTE_INTERVAL_MILLIS);
+        }
+        long[] latencies = quoteOutcomes.stream().map(CompletableFuture::join)
+                .mapToLong(o -> o.queueWaitNanos() + o.serviceNanos()).toArray();
+        scheduler.close();
+        printQuotes(latencies, quoteBudget);
+        System.out.println();
+        scheduler.printStats(System.out);
+    }
+
+    private static void price(RepoDeal deal, List<PossibleBorrowedBond> market) {
+        try {
+            AllocationEngine.calculateExternalBorrowCost(deal, market, AllocationListener.NONE);
+        } catch (UnfulfillableConstraintException | IllegalArgumentException e) {
+            // Unpriceable deals still took their turn on the queue.
+        }
+    }
+
+    private static void printQuotes(long[] latencies, Duration budget) {
+        Arrays.sort(latencies);
+        long missed = Arrays.stream(latencies).filter(n -> n > budget.toNanos()).count();
+        System.out.printf("  quote latency p50 %.2f ms, p99 %.2f ms, max %.2f ms; %d of %d over budget%n",
+                latencies[latencies.length / 2] / 1_000_000.0,
+                latencies[Math.min(latencies.length - 1, latencies.length * 99 / 100)] / 1_000_000.0,
+                latencies[latencies.length - 1] / 1_000_000.0, missed, latencies.length);
+    }
+}
@@ -0,0 +1,121 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how long short-lived runs of the CLI take to produce their first
+ * result and to exit, launching a fresh JVM for every run.
+ * <p>
+ * Each configuration adds JVM options to the same command line:
+ * <ul>
+ * <li>cold: no class-data sharing at all ({@code -Xshare:off})</li>
+ * <li>jdk-cds: the JDK's default archive of its own classes, which is what a
+ * plain {@code java} launch uses</li>
+ * <li>app-cds: the application archive built by
+ * {@code scripts/build-cds.sh}</li>
+ * <li>app-cds+c1: the application archive with the JIT limited to the quick
+ * C1 tier, which suits runs too short for C2 to pay off</li>
+ * </ul>
+ * Time to first result is measured from process start to the first line of
+ * an allocation breakdown or deal summary on standard output. Median and
+ * minimum over all runs are printed; the first run of each configuration is
+ * a discarded warm-up of the OS file cache.
+ * <p>
+ * Run from the project root so the sample book in {@code src/assets} is
+ * found. Usage: {@code java -cp out bench.StartupBenchmark [--jar
+ * out/repo-agreement.jar] [--archive out/repo-agreement.jsa] [--runs 10]
+ * [-- main args]}
+ */
+public class StartupBenchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path jar = Paths.get("out", "repo-agreement.jar");
+        Path archive = Paths.get("out", "repo-agreement.jsa");
+        int runs = 10;
+        List<String> mainArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--jar" -> jar = Paths.get(args[++i]);
+                case "--archive" -> archive = Paths.get(args[++i]);
+                case "--runs" -> runs = Integer.parseInt(args[++i]);
+                case "--" -> {
+                    mainArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                    i = args.length;
+                }
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (!Files.exists(jar)) {
+            System.err.println("Jar not found: " + jar + " (run scripts/build-cds.sh first)");
+            System.exit(2);
+        }
+
+        String javaBin = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String[]> configs = new ArrayList<>();
+        configs.add(new String[]{"cold", "-Xshare:off"});
+        configs.add(new String[]{"jdk-cds"});
+        if (Files.exists(archive)) {
+            configs.add(new String[]{"app-cds", "-XX:SharedArchiveFile=" + archive});
+            configs.add(new String[]{"app-cds+c1", "-XX:SharedArchiveFile=" + archive, "-XX:TieredStopAtLevel=1"});
+        } else {
+            System.err.println("Archive not found: " + archive + "; measuring without it");
+        }
+
+        System.out.printf("%-12s %22s %22s%n", "config", "first result ms", "wall ms");
+        System.out.printf("%-12s %11s %10s %11s %10s%n", "", "median", "min", "median", "min");
+        for (String[] config : configs) {
+            List<String> command = new ArrayList<>();
+            command.add(javaBin);
+            command.addAll(Arrays.asList(config).subList(1, config.length));
+            command.add("-cp");
+            command.add(jar.toString());
+            command.add("Main");
+            command.addAll(mainArgs);
+
+            launch(command);
+            double[] firstResult = new double[runs];
+            double[] wall = new double[runs];
+            for (int r = 0; r < runs; r++) {
+                double[] timing = launch(command);
+                firstResult[r] = timing[0];
+                wall[r] = timing[1];
+            }
+            Arrays.sort(firstResult);
+            Arrays.sort(wall);
+            System.out.printf("%-12s %11.1f %10.1f %11.1f %10.1f%n", config[0],
+                    firstResult[runs / 2], firstResult[0], wall[runs / 2], wall[0]);
+        }
+    }
+
+    /**
+     * Runs the command once and returns the milliseconds to the first result
+     * line and to exit. The exit status is ignored: the sample book ends
+     * with a deal the engine cannot price.
+     */
+    private static double[] launch(List<String> command) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        long firstResult = -1;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (firstResult < 0 && (line.startsWith("---- Allocation Breakdown") || line.startsWith("Deal ID:"))) {
+                    firstResult = System.nanoTime() - start;
+                }
+            }
+        }
+        process.waitFor();
+        long wall = System.nanoTime() - start;
+        return new double[]{(firstResult < 0 ? wall : firstResult) / 1_000_000.0, wall / 1_000_000.0};
+    }
+}
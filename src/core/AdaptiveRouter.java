@@ -0,0 +1,396 @@
+package core;
+
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+
+/**
+ * Prices deals like {@link AllocationEngine#calculateExternalBorrowCost},
+ * but learns which deal shapes the greedy strategy fails on and, for those,
+ * checks a deal with {@link ScratchGreedyPricer} before trying greedy. The
+ * check gives the same outcome as greedy without building allocations,
+ * throwing or reporting to the listener, so a deal it shows greedy would
+ * fail goes straight to the next strategy.
+ * <p>
+ * A deal's shape is the number of ratings it has minimums for (3 or more
+ * counted as 3), the number of types it has minimums for (2 or more counted
+ * as 2) and which {@value #SUM_BUCKET_PERCENT}% band above 100% the sum of
+ * all its minimums falls in, with every sum up to 100% in one band. Greedy
+ * can only over-allocate when the minimums sum to more than 100%, and then
+ * fails when the cheapest bonds of the required ratings are of the wrong
+ * types, which is more likely the more minimums there are.
+ * <p>
+ * For each shape the router keeps how often greedy failed and how long
+ * greedy successes, greedy failures (including the listener's failure
+ * report) and checks took. Once greedy has been tried {@value #MIN_SAMPLES}
+ * times on a shape and has failed at least once, deals of that shape are
+ * checked first when that is expected to be faster than trying greedy:
+ * <pre>
+ * check &lt; p * greedy failure
+ * </pre>
+ * where {@code p} is the observed greedy failure rate. A check does the same
+ * small amount of work for every deal, so its time is taken as the fastest
+ * check seen on the shape, or on any shape before the shape's first; a slow
+ * check is a one-off such as class loading or indexing a new market. Until
+ * some check has been timed, an eligible shape's next deal is checked to
+ * measure it. Every {@value #EXPLORE_INTERVAL}th deal of an eligible shape
+ * takes the other route, so both timings stay current and a shape switches
+ * back if greedy starts succeeding, for example after the market moves.
+ * <p>
+ * A deal the check passes, or cannot represent, tries greedy as usual.
+ * Routing only decides whether greedy is attempted when it is known to
+ * fail, so a deal's price never depends on timings or on the deals priced
+ * before it. What happens when greedy fails is fixed by the {@link Mode}:
+ * <ul>
+ * <li>{@link Mode#ENGINE} runs the backtracking search, so every deal gets
+ * exactly the engine's result.</li>
+ * <li>{@link Mode#EXACT} solves the deal over the market's rating × type
+ * grid ({@link RateGrid#price}) instead, giving the grid optimum, which is
+ * never dearer than the search's price. Deals greedy prices keep greedy's
+ * price.</li>
+ * </ul>
+ * A deal whose greedy attempt was skipped gets no failure report for it.
+ * <p>
+ * The router is safe to share between threads.
+ */
+public class AdaptiveRouter {
+
+    public static final int MIN_SAMPLES = 8;
+    public static final int EXPLORE_INTERVAL = 32;
+    public static final int SUM_BUCKET_PERCENT = 25;
+
+    private static final BigDecimal HUNDRED = BigDecimal.valueOf(100);
+
+    private static final ScratchGreedyPricer.Sink IGNORED = new ScratchGreedyPricer.Sink() {
+        @Override
+        public void onAllocation(RepoDeal deal, PossibleBorrowedBond bond, long amount, String rating,
+                String type) {
+        }
+
+        @Override
+        public void onDealPriced(RepoDeal deal, long totalCost) {
+        }
+    };
+
+    /**
+     * What a deal gets when greedy cannot price it.
+     */
+    public enum Mode {
+        /** The backtracking search, as the engine does. */
+        ENGINE,
+        /** The exact solve over the market's rating × type grid. */
+        EXACT
+    }
+
+    /**
+     * Where a deal was sent.
+     */
+    public enum Route {
+        /** Greedy first. */
+        GREEDY_FIRST,
+        /** Checked first; greedy is only tried if the check passes. */
+        CHECKED
+    }
+
+    private final Mode mode;
+    private final Map<String, ShapeStats> shapes = new ConcurrentHashMap<>();
+    private final LongAccumulator fastestCheck = new LongAccumulator(Math::min, Long.MAX_VALUE);
+
+    /**
+     * Creates a router that gives every deal the engine's result.
+     */
+    public AdaptiveRouter() {
+        this(Mode.ENGINE);
+    }
+
+    /**
+     * @param mode what a deal gets when greedy cannot price it
+     */
+    public AdaptiveRouter(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Describes a deal's requirement shape, e.g. {@code 2R/1T@125} for
+     * minimums in two ratings and one type summing to 125-149%, or
+     * {@code 1R/0T@100} for a single rating minimum of at most 100%.
+     *
+     * @param deal a deal
+     * @return the deal's shape
+     */
+    public static String shapeOf(RepoDeal deal) {
+        int ratings = 0;
+        int types = 0;
+        BigDecimal sum = BigDecimal.ZERO;
+        for (BigDecimal percent : deal.getRatingRequirements().values()) {
+            if (percent.signum() > 0) {
+                ratings++;
+                sum = sum.add(percent);
+            }
+        }
+        for (BigDecimal percent : deal.getTypeRequirements().values()) {
+            if (percent.signum() > 0) {
+                types++;
+                sum = sum.add(percent);
+            }
+        }
+        int over = Math.max(sum.subtract(HUNDRED).intValue(), 0);
+        int band = over == 0 ? 100 : 100 + (over - 1) / SUM_BUCKET_PERCENT * SUM_BUCKET_PERCENT;
+        return Math.min(ratings, 3) + "R/" + Math.min(types, 2) + "T@" + band;
+    }
+
+    /**
+     * Prices a deal along the route its shape has learned.
+     *
+     * @param deal the deal to price
+     * @param borrowMarket the available borrow market
+     * @param listener receives the allocations of the chosen solution
+     * @return the total borrow cost
+     * @throws UnfulfillableConstraintException if the deal cannot be priced
+     * @throws IllegalArgumentException if the market lacks a rating or type
+     * the greedy strategy needs
+     */
+    public BigDecimal price(RepoDeal deal, List<PossibleBorrowedBond> borrowMarket, AllocationListener listener) {
+        ShapeStats stats = shapes.computeIfAbsent(shapeOf(deal), ShapeStats::new);
+        if (stats.route(checkEstimate()) == Route.CHECKED && !check(deal, borrowMarket, stats)) {
+            return afterGreedy(deal, borrowMarket, listener, stats);
+        }
+        long start = System.nanoTime();
+        try {
+            BigDecimal cost = AllocationEngine.calculateLowToHighRatingStrategy(deal, borrowMarket, listener);
+            stats.recordGreedy(true, System.nanoTime() - start);
+            return cost;
+        } catch (UnfulfillableConstraintException e) {
+            listener.onStrategyFailed(deal, AllocationStrategy.LOW_TO_HIGH_RATING, e.getMessage());
+            stats.recordGreedy(false, System.nanoTime() - start);
+        }
+        return afterGreedy(deal, borrowMarket, listener, stats);
+    }
+
+    /**
+     * Returns false if the check shows greedy would fail the deal.
+     */
+    private boolean check(RepoDeal deal, List<PossibleBorrowedBond> borrowMarket, ShapeStats stats) {
+        long start = System.nanoTime();
+        ScratchGreedyPricer.Outcome outcome = ScratchGreedyPricer.price(deal, borrowMarket, IGNORED);
+        long nanos = System.nanoTime() - start;
+        boolean unmet = outcome == ScratchGreedyPricer.Outcome.CONSTRAINTS_UNMET;
+        stats.recordCheck(unmet, nanos);
+        fastestCheck.accumulate(nanos);
+        return !unmet;
+    }
+
+    private BigDecimal afterGreedy(RepoDeal deal, List<PossibleBorrowedBond> borrowMarket,
+            AllocationListener listener, ShapeStats stats) {
+        long start = System.nanoTime();
+        try {
+            return mode == Mode.EXACT ? RateGrid.of(borrowMarket).price(deal, listener)
+                    : AllocationEngine.calculateFallbackStrategy(deal, borrowMarket, listener);
+        } finally {
+            stats.recordAfterGreedy(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The fastest check across all shapes, or a negative value before the
+     * first one.
+     */
+    private long checkEstimate() {
+        long fastest = fastestCheck.get();
+        return fastest == Long.MAX_VALUE ? -1 : fastest;
+    }
+
+    /**
+     * @return the number of deals whose greedy attempt was skipped because
+     * the check showed it would fail
+     */
+    public long getGreedySkipped() {
+        return shapes.values().stream().mapToLong(s -> s.snapshot().skipped).sum();
+    }
+
+    /**
+     * Estimates the time saved against always trying greedy first from each
+     * shape's averages: each skipped attempt saves a greedy failure, and
+     * every check costs its time.
+     *
+     * @return the estimated time saved, negative if routing cost time
+     */
+    public long getEstimatedNanosSaved() {
+        return shapes.values().stream().mapToLong(s -> s.snapshot().saved()).sum();
+    }
+
+    /**
+     * Prints one line per shape, most frequent first: deals priced, how they
+     * were routed, the greedy failure rate, average timings and the
+     * estimated time saved, then the totals.
+     *
+     * @param out where to print
+     */
+    public void printReport(PrintStream out) {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (ShapeStats stats : shapes.values()) {
+            snapshots.add(stats.snapshot());
+        }
+        snapshots.sort(Comparator.comparingLong((Snapshot s) -> s.deals).reversed().thenComparing(s -> s.shape));
+        out.printf("%-12s %7s %8s %8s %8s %8s %9s %11s %11s %11s %11s %10s%n", "shape", "deals", "greedy",
+                "explore", "checked", "skipped", "fail rate", "greedy ok", "greedy fail", "check",
+                mode == Mode.EXACT ? "exact" : "search", "saved");
+        long deals = 0;
+        long checked = 0;
+        long skipped = 0;
+        long saved = 0;
+        for (Snapshot s : snapshots) {
+            out.printf("%-12s %7d %8d %8d %8d %8d %8.1f%% %9.3fms %9.3fms %9.3fms %9.3fms %8.1fms%n", s.shape,
+                    s.deals, s.greedyFirst, s.explored, s.checked, s.skipped, s.failureRate() * 100,
+                    s.greedySuccessNanos() / 1e6, s.greedyFailureNanos() / 1e6, s.checkNanos() / 1e6,
+                    s.afterGreedyNanos() / 1e6, s.saved() / 1e6);
+            deals += s.deals;
+            checked += s.checked;
+            skipped += s.skipped;
+            saved += s.saved();
+        }
+        out.printf("Mode: %s | Shapes: %d | Deals: %d | Checked first: %d | Greedy skipped: %d | "
+                + "Estimated time saved: %.1f ms%n", mode, snapshots.size(), deals, checked, skipped, saved / 1e6);
+    }
+
+    /**
+     * Counters and timings for one shape. Routing and recording are
+     * synchronized per shape, so deals of different shapes do not contend.
+     */
+    private static final class ShapeStats {
+        private final String shape;
+        private long greedyFirst;
+        private long explored;
+        private long checked;
+        private long sinceExplore;
+        private long greedySuccesses;
+        private long greedyFailures;
+        private long greedySuccessNanos;
+        private long greedyFailureNanos;
+        private long checks;
+        private long checkNanos;
+        private long fastestCheckNanos = Long.MAX_VALUE;
+        private long skipped;
+        private long afterGreedy;
+        private long afterGreedyNanos;
+
+        ShapeStats(String shape) {
+            this.shape = shape;
+        }
+
+        synchronized Route route(long checkEstimate) {
+            Snapshot snapshot = snapshotLocked();
+            boolean check = snapshot.prefersCheck(checkEstimate);
+            if (snapshot.isEligible() && ++sinceExplore >= EXPLORE_INTERVAL) {
+                sinceExplore = 0;
+                explored++;
+                check = !check;
+            }
+            if (check) {
+                checked++;
+                return Route.CHECKED;
+            }
+            greedyFirst++;
+            return Route.GREEDY_FIRST;
+        }
+
+        synchronized void recordGreedy(boolean succeeded, long nanos) {
+            if (succeeded) {
+                greedySuccesses++;
+                greedySuccessNanos += nanos;
+            } else {
+                greedyFailures++;
+                greedyFailureNanos += nanos;
+            }
+        }
+
+        synchronized void recordCheck(boolean unmet, long nanos) {
+            checks++;
+            checkNanos += nanos;
+            fastestCheckNanos = Math.min(fastestCheckNanos, nanos);
+            if (unmet) {
+                skipped++;
+            }
+        }
+
+        synchronized void recordAfterGreedy(long nanos) {
+            afterGreedy++;
+            afterGreedyNanos += nanos;
+        }
+
+        synchronized Snapshot snapshot() {
+            return snapshotLocked();
+        }
+
+        private Snapshot snapshotLocked() {
+            return new Snapshot(shape, greedyFirst + checked, greedyFirst, explored, checked, skipped,
+                    greedySuccesses, greedyFailures, greedySuccessNanos, greedyFailureNanos, checks, checkNanos,
+                    fastestCheckNanos, afterGreedy, afterGreedyNanos);
+        }
+    }
+
+    /**
+     * A consistent copy of one shape's counters, with the averages and
+     * estimates derived from them.
+     */
+    private record Snapshot(String shape, long deals, long greedyFirst, long explored, long checked, long skipped,
+            long greedySuccesses, long greedyFailures, long greedySuccessTotal, long greedyFailureTotal,
+            long checks, long checkTotal, long fastestCheck, long afterGreedy, long afterGreedyTotal) {
+
+        double failureRate() {
+            long attempts = greedySuccesses + greedyFailures;
+            return attempts == 0 ? 0 : (double) greedyFailures / attempts;
+        }
+
+        double greedySuccessNanos() {
+            return greedySuccesses == 0 ? 0 : (double) greedySuccessTotal / greedySuccesses;
+        }
+
+        double greedyFailureNanos() {
+            return greedyFailures == 0 ? 0 : (double) greedyFailureTotal / greedyFailures;
+        }
+
+        double checkNanos() {
+            return checks == 0 ? 0 : (double) checkTotal / checks;
+        }
+
+        double afterGreedyNanos() {
+            return afterGreedy == 0 ? 0 : (double) afterGreedyTotal / afterGreedy;
+        }
+
+        /**
+         * Whether greedy has been tried often enough on the shape, and has
+         * failed, for checking first to be worth considering.
+         */
+        boolean isEligible() {
+            return greedySuccesses + greedyFailures >= MIN_SAMPLES && greedyFailures > 0;
+        }
+
+        /**
+         * @param checkEstimate the router-wide fastest check, negative if
+         * none has been timed
+         */
+        boolean prefersCheck(long checkEstimate) {
+            if (!isEligible()) {
+                return false;
+            }
+            long check = checks > 0 ? fastestCheck : checkEstimate;
+            return check < 0 || check < failureRate() * greedyFailureNanos();
+        }
+
+        long saved() {
+            return (long) (skipped * greedyFailureNanos() - checkTotal);
+        }
+    }
+}
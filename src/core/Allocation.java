@@ -0,0 +1,33 @@
+package core;
+
+import java.math.BigDecimal;
+import java.util.Set;
+import models.PossibleBorrowedBond;
+
+/**
+ * A single allocation decision: an amount of a borrowed bond applied to a
+ * deal, together with the constraints it was used to satisfy.
+ */
+public class Allocation {
+    public final String bondId;
+    public final String bondType;
+    public final String creditRating;
+    public final BigDecimal rate;
+    public final BigDecimal amount;
+    public final Set<String> constraintsUsed;
+
+    public Allocation(PossibleBorrowedBond bond, BigDecimal amount, Set<String> constraintsUsed) {
+        this.bondId = bond.getId();
+        this.bondType = bond.getBondType();
+        this.creditRating = bond.getCreditRating();
+        this.rate = bond.getBorrowRate();
+        this.amount = amount;
+        this.constraintsUsed = constraintsUsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Bond %s (%s/%s @ %s%%) → $%.2f used for %s",
+                bondId, creditRating, bondType, rate, amount, constraintsUsed);
+    }
+}
@@ -2,23 +2,78 @@ package core;
 
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import models.PossibleBorrowedBond;
 import models.RepoDeal;
 
 public class AllocationEngine {
 
+    private static volatile int fallbackParallelism = 1;
+    private static ForkJoinPool fallbackPool;
+
+    /**
+     * Sets how many threads the backtracking fallback uses. With more than
+     * one thread the search runs through {@link ParallelBacktrackingSearch},
+     * which returns the same allocation as the sequential search.
+     *
+     * @param parallelism number of worker threads, at least 1
+     */
+    public static synchronized void setFallbackParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Fallback parallelism must be at least 1: " + parallelism);
+        }
+        if (fallbackPool != null) {
+            fallbackPool.shutdown();
+            fallbackPool = null;
+        }
+        fallbackParallelism = parallelism;
+    }
+
+    private static synchronized ForkJoinPool fallbackPool() {
+        if (fallbackPool == null) {
+            fallbackPool = new ForkJoinPool(fallbackParallelism);
+        }
+        return fallbackPool;
+    }
+
     public static BigDecimal calculateExternalBorrowCost(RepoDeal deal, List<PossibleBorrowedBond> borrowMarket) {
+        return calculateExternalBorrowCost(deal, borrowMarket, new ConsoleAllocationListener());
+    }
+
+    /**
+     * Prices a deal against the borrow market, reporting the chosen
+     * allocations to {@code listener} instead of printing them.
+     *
+     * @param deal the deal to price
+     * @param borrowMarket the available borrow market
+     * @param listener receives the allocations of the chosen solution
+     * @return the total borrow cost
+     */
+    public static BigDecimal calculateExternalBorrowCost(RepoDeal deal, List<PossibleBorrowedBond> borrowMarket,
+            AllocationListener listener) {
         try {
-            return calculateLowToHighRatingStrategy(deal, borrowMarket);
+            return calculateLowToHighRatingStrategy(deal, borrowMarket, listener);
         } catch (UnfulfillableConstraintException e) {
-            System.out.println("Greedy strategy failed for deal " + deal.getId() + ": " + e.getMessage());
-            System.out.println("Falling back to LP strategy...");
-            return calculateFallbackStrategy(deal, borrowMarket);
+            listener.onStrategyFailed(deal, AllocationStrategy.LOW_TO_HIGH_RATING, e.getMessage());
+            return calculateFallbackStrategy(deal, borrowMarket, listener);
         }
     }
 
-    private static BigDecimal calculateLowToHighRatingStrategy(RepoDeal deal, List<PossibleBorrowedBond> borrowMarket) {
+    /**
+     * Prices a deal by covering each rating minimum, lowest rating first,
+     * with the cheapest bond of that rating, then the remaining type minimums
+     * and finally any unconstrained remainder.
+     *
+     * @param deal the deal to price
+     * @param borrowMarket the available borrow market
+     * @param listener receives the allocations if the strategy succeeds
+     * @return the total borrow cost
+     * @throws UnfulfillableConstraintException if the result breaks the deal's
+     * constraints
+     */
+    public static BigDecimal calculateLowToHighRatingStrategy(RepoDeal deal, List<PossibleBorrowedBond> borrowMarket,
+            AllocationListener listener) {
         BigDecimal totalRequired = deal.getTotalValueRequired();
         BigDecimal totalCost = BigDecimal.ZERO;
         BigDecimal remaining = totalRequired;
@@ -106,32 +161,46 @@ public class AllocationEngine {
             throw new UnfulfillableConstraintException("Invalid allocation: constraints unmet or over-allocated.");
         }
 
-        System.out.println("\n---- Allocation Breakdown for Deal " + deal.getId() + " ----");
-        allocations.forEach(System.out::println);
-        System.out.printf("Total Borrow Cost: $%.2f%n", totalCost);
-        System.out.println("--------------------------------------------\n\n\n");
+        for (Allocation alloc : allocations) {
+            listener.onAllocation(deal, alloc, AllocationStrategy.LOW_TO_HIGH_RATING);
+        }
+        listener.onDealPriced(deal, totalCost, AllocationStrategy.LOW_TO_HIGH_RATING);
 
         return totalCost;
     }
 
-    private static BigDecimal calculateFallbackStrategy(RepoDeal deal, List<PossibleBorrowedBond> borrowMarket) {
+    /**
+     * Prices a deal by searching 20% allocation steps across the whole borrow
+     * market for the cheapest valid combination.
+     *
+     * @param deal the deal to price
+     * @param borrowMarket the available borrow market
+     * @param listener receives the allocations if a solution is found
+     * @return the total borrow cost
+     * @throws UnfulfillableConstraintException if no valid allocation exists
+     */
+    public static BigDecimal calculateFallbackStrategy(RepoDeal deal, List<PossibleBorrowedBond> borrowMarket,
+            AllocationListener listener) {
         List<Allocation> bestSolution = new ArrayList<>();
         BigDecimal[] bestCost = {null};
 
-        backtrack(deal, borrowMarket, 0, new ArrayList<>(), BigDecimal.ZERO, BigDecimal.ZERO, bestSolution, bestCost);
+        if (fallbackParallelism > 1) {
+            bestSolution = ParallelBacktrackingSearch.search(deal, borrowMarket, fallbackPool());
+        } else {
+            backtrack(deal, borrowMarket, 0, new ArrayList<>(), BigDecimal.ZERO, BigDecimal.ZERO, bestSolution, bestCost);
+        }
 
         if (bestSolution.isEmpty()) {
+            listener.onStrategyFailed(deal, AllocationStrategy.BACKTRACKING, "no valid allocation found");
             throw new UnfulfillableConstraintException("Backtracking failed: no valid allocation found.");
         }
 
-        System.out.println("\n\n\n---- Backtracking Allocation Breakdown for Deal " + deal.getId() + " ----");
         BigDecimal totalCost = BigDecimal.ZERO;
         for (Allocation alloc : bestSolution) {
-            System.out.println(alloc);
+            listener.onAllocation(deal, alloc, AllocationStrategy.BACKTRACKING);
             totalCost = totalCost.add(alloc.rate.divide(BigDecimal.valueOf(100)).multiply(alloc.amount));
         }
-        System.out.printf("Total Backtracking Borrow Cost: $%.2f%n", totalCost);
-        System.out.println("--------------------------------------------------");
+        listener.onDealPriced(deal, totalCost, AllocationStrategy.BACKTRACKING);
 
         return totalCost;
     }
@@ -182,7 +251,15 @@ public class AllocationEngine {
         }
     }
 
-    private static boolean isValidAllocation(RepoDeal deal, List<Allocation> allocations) {
+    /**
+     * Checks that a set of allocations meets every rating and type minimum of
+     * the deal.
+     *
+     * @param deal the deal the allocations are for
+     * @param allocations the allocations to check
+     * @return true if all minimums are met
+     */
+    public static boolean isValidAllocation(RepoDeal deal, List<Allocation> allocations) {
         BigDecimal total = deal.getTotalValueRequired();
 
         Map<String, BigDecimal> ratingMap = new HashMap<>();
@@ -206,33 +283,3 @@ public class AllocationEngine {
         return true;
     }
 }
-
-class Allocation {
-    public final String bondId;
-    public final String bondType;
-    public final String creditRating;
-    public final BigDecimal rate;
-    public final BigDecimal amount;
-    public final Set<String> constraintsUsed;
-
-    public Allocation(PossibleBorrowedBond bond, BigDecimal amount, Set<String> constraintsUsed) {
-        this.bondId = bond.getId();
-        this.bondType = bond.getBondType();
-        this.creditRating = bond.getCreditRating();
-        this.rate = bond.getBorrowRate();
-        this.amount = amount;
-        this.constraintsUsed = constraintsUsed;
-    }
-
-    @Override
-    public String toString() {
-        return String.format("Bond %s (%s/%s @ %s%%) → $%.2f used for %s",
-                bondId, creditRating, bondType, rate, amount, constraintsUsed);
-    }
-}
-
-class UnfulfillableConstraintException extends RuntimeException {
-    public UnfulfillableConstraintException(String message) {
-        super(message);
-    }
-}
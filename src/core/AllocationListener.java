@@ -0,0 +1,107 @@
+package core;
+
+import java.math.BigDecimal;
+import models.Bond;
+import models.RepoDeal;
+
+/**
+ * Receives the allocation decisions made by {@link AllocationEngine}.
+ * <p>
+ * For each deal, {@link #onAllocation} is called once per allocation in the
+ * final solution, followed by a single {@link #onDealPriced} call. Strategies
+ * that are attempted and abandoned report through {@link #onStrategyFailed}
+ * and never emit allocations. Allocators that apply internal collateral
+ * report each reservation through {@link #onReservation}, before the deal's
+ * {@link #onDealPriced} call when they make one.
+ */
+public interface AllocationListener {
+
+    /**
+     * A listener that ignores every event, for callers that only need the
+     * returned cost.
+     */
+    AllocationListener NONE = new AllocationListener() {
+        @Override
+        public void onAllocation(RepoDeal deal, Allocation allocation, AllocationStrategy strategy) {
+        }
+
+        @Override
+        public void onDealPriced(RepoDeal deal, BigDecimal totalCost, AllocationStrategy strategy) {
+        }
+    };
+
+    /**
+     * Called for each allocation in the chosen solution for a deal.
+     *
+     * @param deal the deal being priced
+     * @param allocation the allocation decision
+     * @param strategy the strategy that produced it
+     */
+    void onAllocation(RepoDeal deal, Allocation allocation, AllocationStrategy strategy);
+
+    /**
+     * Called once all allocations for a deal have been reported.
+     *
+     * @param deal the deal that was priced
+     * @param totalCost the total borrow cost of the chosen solution
+     * @param strategy the strategy that produced it
+     */
+    void onDealPriced(RepoDeal deal, BigDecimal totalCost, AllocationStrategy strategy);
+
+    /**
+     * Called when a strategy could not produce a valid allocation and the
+     * engine is moving on to the next one.
+     *
+     * @param deal the deal being priced
+     * @param strategy the strategy that failed
+     * @param reason the failure message
+     */
+    default void onStrategyFailed(RepoDeal deal, AllocationStrategy strategy, String reason) {
+    }
+
+    /**
+     * Called for each piece of internal collateral reserved for a deal.
+     *
+     * @param deal the deal the collateral is reserved for
+     * @param bond the internal bond
+     * @param value the market value reserved
+     */
+    default void onReservation(RepoDeal deal, Bond bond, BigDecimal value) {
+    }
+
+    /**
+     * Returns a listener that forwards every event to this listener and then
+     * to {@code next}.
+     *
+     * @param next the listener to call second
+     * @return the combined listener
+     */
+    default AllocationListener andThen(AllocationListener next) {
+        AllocationListener first = this;
+        return new AllocationListener() {
+            @Override
+            public void onAllocation(RepoDeal deal, Allocation allocation, AllocationStrategy strategy) {
+                first.onAllocation(deal, allocation, strategy);
+                next.onAllocation(deal, allocation, strategy);
+            }
+
+            @Override
+            public void onDealPriced(RepoDeal deal, BigDecimal totalCost, AllocationStrategy strategy) {
+                first.onDealPriced(deal, totalCost, strategy);
+                next.onDealPriced(deal, totalCost, strategy);
+            }
+
+            @Override
+            public void onStrategyFailed(RepoDeal deal, AllocationStrategy strategy, String reason) {
+                first.onStrategyFailed(deal, strategy, reason);
+                next.onStrategyFailed(deal, strategy, reason);
+            }
+
+            @Override
+            public void onReservation(RepoDeal deal, Bond bond, BigDecimal value) {
+                first.onReservation(deal, bond, value);
+                next.onReservation(deal, bond, value);
+            }
+        };
+    }
+}
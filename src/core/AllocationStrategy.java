@@ -0,0 +1,45 @@
+package core;
+
+/**
+ * Identifies which pricing strategy produced an allocation. Each strategy has
+ * a stable one-byte code so it can be persisted (see
+ * {@link util.AllocationJournal}); new strategies must take a new code rather
+ * than reuse an existing one.
+ */
+public enum AllocationStrategy {
+    LOW_TO_HIGH_RATING((byte) 1),
+    BACKTRACKING((byte) 2),
+    INTERNAL((byte) 3),
+    EXACT((byte) 4),
+    MAX_FILL((byte) 5),
+    REPAIR((byte) 6);
+
+    private final byte code;
+
+    AllocationStrategy(byte code) {
+        this.code = code;
+    }
+
+    /**
+     * @return the persisted code for this strategy
+     */
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * Looks up a strategy by its persisted code.
+     *
+     * @param code the code written by {@link #getCode()}
+     * @return the matching strategy
+     * @throws IllegalArgumentException if the code is unknown
+     */
+    public static AllocationStrategy fromCode(byte code) {
+        for (AllocationStrategy strategy : values()) {
+            if (strategy.code == code) {
+                return strategy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown allocation strategy code: " + code);
+    }
+}
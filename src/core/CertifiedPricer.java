@@ -0,0 +1,189 @@
+package core;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+
+/**
+ * Prices deals with the greedy strategy and proves, where it can, that the
+ * greedy answer is the cheapest possible, so the expensive search is only run
+ * when it can still improve the result.
+ * <p>
+ * For each deal the {@link RateGrid#lowerBound dual lower bound} is computed
+ * first; no valid allocation can cost less. Then:
+ * <ul>
+ * <li>If the greedy cost equals the bound, the greedy result is optimal and
+ * is returned as {@link Certificate#CERTIFIED} without any search.</li>
+ * <li>Otherwise the grid is solved exactly with {@link RateGrid#solve}. If
+ * the greedy cost matches the exact optimum, the gap was in the bound, not
+ * the allocation, and the greedy result is returned as
+ * {@link Certificate#GAP_CLOSED}.</li>
+ * <li>If the exact optimum is cheaper, or the greedy strategy failed, the
+ * exact allocation is returned as {@link Certificate#EXACT_SOLVED} under
+ * {@link AllocationStrategy#EXACT}.</li>
+ * </ul>
+ * The exact solve is over ratings × types cells rather than the whole market
+ * and allocates continuous amounts, so it replaces the backtracking search
+ * of {@link AllocationEngine#calculateExternalBorrowCost}: its optimum is
+ * never dearer than the best 20% step combination, and when it finds no
+ * allocation none exists, so the search is never needed. Costs can
+ * therefore be lower than the engine's for deals that fall back.
+ * <p>
+ * Greedy failures are counted but not reported to the listener: greedy is
+ * only a candidate here, and its failure leads to the exact solve, not to
+ * the engine's fallback. Only a deal the exact solve cannot price is
+ * reported, through {@link AllocationListener#onStrategyFailed} under
+ * {@link AllocationStrategy#EXACT}.
+ * <p>
+ * The pricer is built for one market and may be shared between threads.
+ */
+public class CertifiedPricer {
+
+    /**
+     * How a priced deal's result was shown to be optimal.
+     */
+    public enum Certificate {
+        /** The greedy cost equals the dual lower bound. */
+        CERTIFIED,
+        /** The greedy cost equals the exact optimum, which is above the bound. */
+        GAP_CLOSED,
+        /** The exact optimum beats the greedy result, or greedy failed. */
+        EXACT_SOLVED
+    }
+
+    /**
+     * The outcome of pricing one deal.
+     *
+     * @param cost the total borrow cost
+     * @param lowerBound the dual lower bound on the cost
+     * @param certificate how the cost was shown to be optimal
+     */
+    public record Result(BigDecimal cost, BigDecimal lowerBound, Certificate certificate) {
+    }
+
+    private final List<PossibleBorrowedBond> borrowMarket;
+    private final RateGrid grid;
+    private final LongAdder certified = new LongAdder();
+    private final LongAdder gapClosed = new LongAdder();
+    private final LongAdder exactSolved = new LongAdder();
+    private final LongAdder greedyFailures = new LongAdder();
+    private final LongAdder unpriceable = new LongAdder();
+
+    /**
+     * @param borrowMarket the borrow market every deal is priced against
+     */
+    public CertifiedPricer(List<PossibleBorrowedBond> borrowMarket) {
+        this.borrowMarket = borrowMarket;
+        this.grid = new RateGrid(borrowMarket);
+    }
+
+    /**
+     * Prices a deal, reporting the chosen allocations to {@code listener}.
+     *
+     * @param deal the deal to price
+     * @param listener receives the allocations of the chosen solution
+     * @return the cost, bound and certificate
+     * @throws UnfulfillableConstraintException if no allocation meets the
+     * deal's minimums
+     */
+    public Result price(RepoDeal deal, AllocationListener listener) {
+        BigDecimal bound = grid.lowerBound(deal);
+        Collected greedy = new Collected();
+        try {
+            AllocationEngine.calculateLowToHighRatingStrategy(deal, borrowMarket, greedy);
+        } catch (UnfulfillableConstraintException | IllegalArgumentException e) {
+            greedyFailures.increment();
+            greedy = null;
+        }
+
+        if (greedy != null && greedy.cost.compareTo(bound) == 0) {
+            certified.increment();
+            return greedy.emit(deal, listener, AllocationStrategy.LOW_TO_HIGH_RATING, bound, Certificate.CERTIFIED);
+        }
+
+        List<Allocation> exact = grid.solve(deal);
+        if (exact == null) {
+            unpriceable.increment();
+            listener.onStrategyFailed(deal, AllocationStrategy.EXACT, "no valid allocation exists");
+            throw new UnfulfillableConstraintException("Exact solve failed: no valid allocation exists.");
+        }
+        Collected optimum = new Collected();
+        for (Allocation allocation : exact) {
+            optimum.onAllocation(deal, allocation, AllocationStrategy.EXACT);
+        }
+
+        if (greedy != null && greedy.cost.compareTo(optimum.cost) <= 0) {
+            gapClosed.increment();
+            return greedy.emit(deal, listener, AllocationStrategy.LOW_TO_HIGH_RATING, bound, Certificate.GAP_CLOSED);
+        }
+        exactSolved.increment();
+        return optimum.emit(deal, listener, AllocationStrategy.EXACT, bound, Certificate.EXACT_SOLVED);
+    }
+
+    /**
+     * @return deals whose greedy result matched the dual bound
+     */
+    public long getCertified() {
+        return certified.sum();
+    }
+
+    /**
+     * @return deals whose greedy result was proven optimal by the exact solve
+     */
+    public long getGapClosed() {
+        return gapClosed.sum();
+    }
+
+    /**
+     * @return deals priced from the exact solve
+     */
+    public long getExactSolved() {
+        return exactSolved.sum();
+    }
+
+    /**
+     * @return deals the greedy strategy could not price, each of which the
+     * engine would have sent to the backtracking search
+     */
+    public long getSearchesAvoided() {
+        return greedyFailures.sum();
+    }
+
+    /**
+     * @return deals with no valid allocation
+     */
+    public long getUnpriceable() {
+        return unpriceable.sum();
+    }
+
+    /**
+     * Holds one candidate's allocations and cost until it is chosen.
+     */
+    private static final class Collected implements AllocationListener {
+        private final List<Allocation> allocations = new ArrayList<>();
+        private BigDecimal cost = BigDecimal.ZERO;
+
+        @Override
+        public void onAllocation(RepoDeal deal, Allocation allocation, AllocationStrategy strategy) {
+            allocations.add(allocation);
+            cost = cost.add(allocation.rate.divide(BigDecimal.valueOf(100)).multiply(allocation.amount));
+        }
+
+        @Override
+        public void onDealPriced(RepoDeal deal, BigDecimal totalCost, AllocationStrategy strategy) {
+            cost = totalCost;
+        }
+
+        Result emit(RepoDeal deal, AllocationListener listener, AllocationStrategy strategy, BigDecimal bound,
+                Certificate certificate) {
+            for (Allocation allocation : allocations) {
+                listener.onAllocation(deal, allocation, strategy);
+            }
+            listener.onDealPriced(deal, cost, strategy);
+            return new Result(cost, bound, certificate);
+        }
+    }
+}
@@ -0,0 +1,673 @@
+package core;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import models.Bond;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+
+/**
+ * Repairs the internal collateral of the deals affected when a bond held by
+ * an {@link InternalCollateralAllocator} is recalled or repriced, without
+ * re-allocating the rest of the book.
+ * <p>
+ * The value a deal loses leaves a hole of one rating and one type. The deal
+ * must get the lost value back, and as much of it in that rating and that
+ * type as it needs to keep those minimums at least where they were, or met
+ * if they were met before. Candidate sources are:
+ * <ul>
+ * <li>what is left of other internal bonds, at no cost;</li>
+ * <li>the cheapest market bond of each rating and type, at its borrow
+ * rate;</li>
+ * <li>a transfer from another deal that holds more of the rating and type
+ * than its own minimums need; the donor is then backfilled with unconstrained
+ * value, so a transfer costs three changes and is only offered when that
+ * value is there.</li>
+ * </ul>
+ * A local search tries combinations of up to {@value #MAX_SOURCES} sources,
+ * drawn from the largest or cheapest few of each kind, and keeps the plan
+ * with the fewest changes and then the lowest borrow cost. The search stops at the
+ * time budget with the best plan found so far; if it found none, the hole is
+ * filled greedily from every internal bond and the market instead. A deal
+ * that still cannot be filled is reported as unrepaired, holding what could
+ * be found.
+ * <p>
+ * Market bonds borrowed are added to the deal's borrow cost and recorded
+ * with the allocator ({@link InternalCollateralAllocator#getBorrowings}).
+ * Every change is reported to the listener under
+ * {@link AllocationStrategy#REPAIR}: internal value gained or lost as a
+ * positive or negative reservation, market bonds as allocations, and then
+ * one {@link AllocationListener#onDealPriced} per changed deal with its new
+ * total borrow cost, so a journal replays the repair as a further commit.
+ * <p>
+ * The repairer takes the allocator's lock for the whole repair.
+ */
+public class CollateralRepairer {
+
+    public static final Duration DEFAULT_BUDGET = Duration.ofMillis(50);
+
+    private static final BigDecimal HUNDRED = BigDecimal.valueOf(100);
+    private static final int MAX_SOURCES = 3;
+    private static final int TRANSFER_CHANGES = 3;
+
+    /**
+     * What a change did to a deal.
+     */
+    public enum ChangeKind {
+        /** Value lost with the recalled or repriced bond. */
+        LOST,
+        /** Value of an internal bond reserved. */
+        RESERVED,
+        /** Value borrowed from the market. */
+        BORROWED,
+        /** Value handed over to another deal. */
+        RELEASED
+    }
+
+    /**
+     * One change to one deal's collateral.
+     *
+     * @param deal the deal changed
+     * @param kind what was done
+     * @param bondId the internal or market bond
+     * @param value the value moved
+     * @param cost the borrow cost; zero for internal collateral
+     */
+    public record Change(RepoDeal deal, ChangeKind kind, String bondId, BigDecimal value, BigDecimal cost) {
+    }
+
+    /**
+     * The outcome of one recall or price move.
+     *
+     * @param bondId the affected bond
+     * @param affected the deals that held it
+     * @param changes every change, the forced losses first
+     * @param unrepaired deals left short
+     * @param timedOut true if the search hit its budget for some deal
+     * @param elapsedNanos time taken
+     */
+    public record Repair(String bondId, List<RepoDeal> affected, List<Change> changes, List<RepoDeal> unrepaired,
+            boolean timedOut, long elapsedNanos) {
+
+        /**
+         * @return the changes made by the repair, not counting the losses
+         */
+        public int getChangeCount() {
+            return (int) changes.stream().filter(c -> c.kind() != ChangeKind.LOST).count();
+        }
+
+        /**
+         * @return the borrow cost of the market value taken
+         */
+        public BigDecimal getBorrowCost() {
+            return changes.stream().map(Change::cost).reduce(BigDecimal.ZERO, BigDecimal::add);
+        }
+    }
+
+    private final InternalCollateralAllocator allocator;
+    private final AllocationListener listener;
+    private final List<PossibleBorrowedBond> cheapestByCell = new ArrayList<>();
+
+    /**
+     * @param allocator the allocator whose deals are repaired
+     * @param borrowMarket the market to borrow from when internal collateral
+     * is not enough
+     */
+    public CollateralRepairer(InternalCollateralAllocator allocator, List<PossibleBorrowedBond> borrowMarket) {
+        this(allocator, borrowMarket, AllocationListener.NONE);
+    }
+
+    /**
+     * @param allocator the allocator whose deals are repaired
+     * @param borrowMarket the market to borrow from when internal collateral
+     * is not enough
+     * @param listener receives every change made to a deal
+     */
+    public CollateralRepairer(InternalCollateralAllocator allocator, List<PossibleBorrowedBond> borrowMarket,
+            AllocationListener listener) {
+        this.allocator = allocator;
+        this.listener = listener;
+        Map<String, PossibleBorrowedBond> cells = new HashMap<>();
+        for (PossibleBorrowedBond bond : borrowMarket) {
+            String cell = bond.getCreditRating().toUpperCase() + "/" + bond.getBondType().toUpperCase();
+            cells.merge(cell, bond, (a, b) -> b.getBorrowRate().compareTo(a.getBorrowRate()) < 0 ? b : a);
+        }
+        cheapestByCell.addAll(cells.values());
+        cheapestByCell.sort(Comparator.comparing(PossibleBorrowedBond::getBorrowRate));
+    }
+
+    /**
+     * Takes a bond out of the inventory and repairs every deal that held it.
+     *
+     * @param bondId the internal bond recalled
+     * @param budget search time allowed for the whole repair
+     * @return the changes made
+     * @throws IllegalArgumentException if the bond is unknown
+     */
+    public Repair recall(String bondId, Duration budget) {
+        synchronized (allocator) {
+            int index = index(bondId);
+            allocator.setRemaining(index, BigDecimal.ZERO);
+            return repair(index, BigDecimal.ZERO, budget);
+        }
+    }
+
+    /**
+     * Moves a bond's price and repairs every deal whose holding of it lost
+     * value. Holdings that gain value keep what they had, and the surplus
+     * goes back to the inventory.
+     *
+     * @param bondId the internal bond repriced
+     * @param newPrice its new price
+     * @param budget search time allowed for the whole repair
+     * @return the changes made
+     * @throws IllegalArgumentException if the bond is unknown
+     */
+    public Repair reprice(String bondId, BigDecimal newPrice, Duration budget) {
+        synchronized (allocator) {
+            int index = index(bondId);
+            BigDecimal oldPrice = allocator.priceAt(index);
+            allocator.setPrice(index, newPrice);
+            allocator.setRemaining(index, scale(allocator.remainingAt(index), newPrice, oldPrice));
+            if (newPrice.compareTo(oldPrice) >= 0) {
+                BigDecimal surplus = BigDecimal.ZERO;
+                for (RepoDeal deal : allocator.getDealsUsing(bondId)) {
+                    for (InternalCollateralAllocator.Reservation r : allocator.getReservations(deal)) {
+                        if (r.bond() == allocator.bondAt(index)) {
+                            surplus = surplus.add(scale(r.value(), newPrice, oldPrice).subtract(r.value()));
+                        }
+                    }
+                }
+                allocator.setRemaining(index, allocator.remainingAt(index).add(surplus));
+                return new Repair(bondId, List.of(), List.of(), List.of(), false, 0);
+            }
+            return repair(index, newPrice.divide(oldPrice, 34, RoundingMode.DOWN), budget);
+        }
+    }
+
+    private int index(String bondId) {
+        int index = allocator.indexOf(bondId);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown internal bond: " + bondId);
+        }
+        return index;
+    }
+
+    private static BigDecimal scale(BigDecimal value, BigDecimal newPrice, BigDecimal oldPrice) {
+        return value.multiply(newPrice).divide(oldPrice, Math.max(value.scale(), 2), RoundingMode.DOWN);
+    }
+
+    /**
+     * Shrinks every holding of the bond to {@code keep} of its value and
+     * fills the holes.
+     */
+    private Repair repair(int index, BigDecimal keep, Duration budget) {
+        long start = System.nanoTime();
+        long deadline = start + budget.toNanos();
+        Bond bond = allocator.bondAt(index);
+        List<RepoDeal> affected = allocator.getDealsUsing(bond.getId());
+        List<Change> changes = new ArrayList<>();
+        List<RepoDeal> unrepaired = new ArrayList<>();
+        boolean timedOut = false;
+
+        for (RepoDeal deal : affected) {
+            Map<String, BigDecimal> ratingBefore = new HashMap<>(deal.getRatingFulfilled());
+            Map<String, BigDecimal> typeBefore = new HashMap<>(deal.getTypeFulfilled());
+            BigDecimal lost = BigDecimal.ZERO;
+            for (InternalCollateralAllocator.Reservation r : allocator.getReservations(deal)) {
+                if (r.bond() != bond) continue;
+                BigDecimal kept = keep.signum() == 0 ? BigDecimal.ZERO
+                        : r.value().multiply(keep).setScale(Math.max(r.value().scale(), 2), RoundingMode.DOWN);
+                allocator.resize(deal, r, kept);
+                lost = lost.add(r.value().subtract(kept));
+            }
+            changes.add(new Change(deal, ChangeKind.LOST, bond.getId(), lost, BigDecimal.ZERO));
+            listener.onReservation(deal, bond, lost.negate());
+            Hole hole = new Hole(deal, lost, bond.getCreditRating(), bond.getType(), ratingBefore, typeBefore);
+            timedOut |= fill(hole, deadline, true, changes, unrepaired);
+        }
+
+        Set<RepoDeal> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Change change : changes) {
+            if (changed.add(change.deal())) {
+                listener.onDealPriced(change.deal(), change.deal().getBorrowCost(), AllocationStrategy.REPAIR);
+            }
+        }
+        return new Repair(bond.getId(), affected, changes, unrepaired, timedOut, System.nanoTime() - start);
+    }
+
+    /**
+     * Searches for and applies the best plan for one hole. Returns true if
+     * the search ran out of time.
+     */
+    private boolean fill(Hole hole, long deadline, boolean allowTransfers, List<Change> changes,
+            List<RepoDeal> unrepaired) {
+        BigDecimal spare = spareValue();
+        Plan best = search(hole, candidates(hole, false), spare, deadline, null);
+        // A transfer costs as many changes as the longest plan, so donors
+        // are only looked for when nothing shorter was found.
+        if (allowTransfers && (best == null || best.changes >= TRANSFER_CHANGES)
+                && System.nanoTime() <= deadline) {
+            best = search(hole, candidates(hole, true), spare, deadline, best);
+        }
+        boolean timedOut = System.nanoTime() > deadline;
+
+        if (best == null) {
+            best = assign(hole, greedySources(hole), false);
+            if ((best.left.signum() > 0 || best.ratingLeft.signum() > 0 || best.typeLeft.signum() > 0)
+                    && !unrepaired.contains(hole.deal)) {
+                unrepaired.add(hole.deal);
+            }
+        }
+        apply(hole.deal, best, deadline, changes, unrepaired);
+        return timedOut;
+    }
+
+    /**
+     * Tries every combination of up to {@value #MAX_SOURCES} candidates,
+     * fewest first, until the deadline, and returns the best plan that
+     * fills the hole, or {@code best} if none beats it.
+     */
+    private static Plan search(Hole hole, List<Source> candidates, BigDecimal spare, long deadline, Plan best) {
+        int[] picks = new int[MAX_SOURCES];
+        for (int size = 1; size <= Math.min(MAX_SOURCES, candidates.size()); size++) {
+            if (best != null && best.changes <= size) break;
+            for (int i = 0; i < size; i++) {
+                picks[i] = i;
+            }
+            do {
+                if (System.nanoTime() > deadline) {
+                    return best;
+                }
+                List<Source> sources = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    sources.add(candidates.get(picks[i]));
+                }
+                Plan plan = assign(hole, sources, true);
+                if (plan != null && plan.fitsIn(spare) && (best == null || plan.isBetterThan(best))) {
+                    best = plan;
+                }
+            } while (nextCombination(picks, size, candidates.size()));
+        }
+        return best;
+    }
+
+    /**
+     * The internal value available to backfill donors, or {@code null} when
+     * the market can always backfill them.
+     */
+    private BigDecimal spareValue() {
+        if (!cheapestByCell.isEmpty()) return null;
+        BigDecimal spare = BigDecimal.ZERO;
+        for (int i = 0; i < allocator.bondCount(); i++) {
+            spare = spare.add(allocator.remainingAt(i));
+        }
+        return spare;
+    }
+
+    private static boolean nextCombination(int[] picks, int size, int n) {
+        int i = size - 1;
+        while (i >= 0 && picks[i] == n - size + i) {
+            i--;
+        }
+        if (i < 0) return false;
+        picks[i]++;
+        for (int j = i + 1; j < size; j++) {
+            picks[j] = picks[j - 1] + 1;
+        }
+        return true;
+    }
+
+    /**
+     * The sources worth trying. Within one group, sources of a kind differ
+     * only in how much they hold or what they cost, so a plan never needs
+     * more than the {@value #MAX_SOURCES} largest internal bonds and
+     * transfers of a group, or more than its cheapest market bond.
+     */
+    private List<Source> candidates(Hole hole, boolean allowTransfers) {
+        List<Source> internal = new ArrayList<>();
+        for (int i = 0; i < allocator.bondCount(); i++) {
+            if (allocator.remainingAt(i).signum() > 0) {
+                Bond bond = allocator.bondAt(i);
+                internal.add(Source.internal(hole, i, bond, allocator.remainingAt(i)));
+            }
+        }
+        List<Source> market = new ArrayList<>();
+        for (PossibleBorrowedBond bond : cheapestByCell) {
+            market.add(Source.market(hole, bond));
+        }
+        List<Source> transfers = new ArrayList<>();
+        if (allowTransfers) {
+            for (RepoDeal donor : donors(hole)) {
+                for (InternalCollateralAllocator.Reservation r : allocator.getReservations(donor)) {
+                    Bond bond = r.bond();
+                    boolean useful = hole.ratingNeed.signum() > 0 && matches(bond.getCreditRating(), hole.rating)
+                            || hole.typeNeed.signum() > 0 && matches(bond.getType(), hole.type);
+                    if (!useful) continue;
+                    BigDecimal cap = r.value().min(slack(donor, donor.getRatingRequirements(),
+                            donor.getRatingFulfilled(), bond.getCreditRating()))
+                            .min(slack(donor, donor.getTypeRequirements(), donor.getTypeFulfilled(), bond.getType()));
+                    if (cap.signum() > 0) {
+                        transfers.add(Source.transfer(hole, donor, r, allocator.indexOf(bond.getId()), cap));
+                    }
+                }
+            }
+        }
+
+        List<Source> candidates = new ArrayList<>();
+        Comparator<Source> byCapacity = Comparator.comparing((Source s) -> s.capacity).reversed();
+        for (int group = 0; group < 4; group++) {
+            int g = group;
+            internal.stream().filter(s -> s.group == g).sorted(byCapacity).limit(MAX_SOURCES)
+                    .forEach(candidates::add);
+            market.stream().filter(s -> s.group == g).limit(1).forEach(candidates::add);
+            transfers.stream().filter(s -> s.group == g).sorted(byCapacity).limit(MAX_SOURCES)
+                    .forEach(candidates::add);
+        }
+        return candidates;
+    }
+
+    /**
+     * Every internal bond with value left and every market cell, for the
+     * greedy fallback.
+     */
+    private List<Source> greedySources(Hole hole) {
+        List<Source> sources = new ArrayList<>();
+        for (int i = 0; i < allocator.bondCount(); i++) {
+            if (allocator.remainingAt(i).signum() > 0) {
+                sources.add(Source.internal(hole, i, allocator.bondAt(i), allocator.remainingAt(i)));
+            }
+        }
+        for (PossibleBorrowedBond bond : cheapestByCell) {
+            sources.add(Source.market(hole, bond));
+        }
+        return sources;
+    }
+
+    private List<RepoDeal> donors(Hole hole) {
+        List<RepoDeal> donors = new ArrayList<>();
+        for (Map.Entry<RepoDeal, List<InternalCollateralAllocator.Reservation>> entry
+                : allocator.holdings().entrySet()) {
+            if (entry.getKey() == hole.deal) continue;
+            for (InternalCollateralAllocator.Reservation r : entry.getValue()) {
+                if (matches(r.bond().getCreditRating(), hole.rating) || matches(r.bond().getType(), hole.type)) {
+                    donors.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return donors;
+    }
+
+    /**
+     * How much of a rating or type a deal holds beyond its own minimum.
+     */
+    private static BigDecimal slack(RepoDeal deal, Map<String, BigDecimal> requirements,
+            Map<String, BigDecimal> fulfilled, String key) {
+        BigDecimal held = fulfilled.getOrDefault(key, BigDecimal.ZERO);
+        return held.subtract(required(deal, requirements, key));
+    }
+
+    private static BigDecimal required(RepoDeal deal, Map<String, BigDecimal> requirements, String key) {
+        for (Map.Entry<String, BigDecimal> req : requirements.entrySet()) {
+            if (matches(req.getKey(), key)) {
+                return deal.getTotalValueRequired().multiply(req.getValue()).divide(HUNDRED);
+            }
+        }
+        return BigDecimal.ZERO;
+    }
+
+    private static boolean matches(String a, String b) {
+        return a.equalsIgnoreCase(b);
+    }
+
+    /**
+     * Splits the hole across the sources: sources of the hole's rating and
+     * type first, then those of its rating up to the rating need, then its
+     * type up to the type need, then any source for the rest, cheapest
+     * first within each group. With {@code strict}, returns {@code null}
+     * unless the hole is filled and every source is used.
+     */
+    private static Plan assign(Hole hole, List<Source> sources, boolean strict) {
+        List<Source> ordered = new ArrayList<>(sources);
+        ordered.sort(Comparator.comparingInt((Source s) -> s.group).thenComparing(s -> s.rate));
+        BigDecimal[] amounts = new BigDecimal[ordered.size()];
+        BigDecimal left = hole.value;
+        BigDecimal ratingLeft = hole.ratingNeed;
+        BigDecimal typeLeft = hole.typeNeed;
+        for (int pass = 0; pass < 4; pass++) {
+            for (int i = 0; i < ordered.size(); i++) {
+                Source s = ordered.get(i);
+                BigDecimal used = amounts[i] == null ? BigDecimal.ZERO : amounts[i];
+                BigDecimal want = switch (pass) {
+                    case 0 -> s.group == 0 ? left : BigDecimal.ZERO;
+                    case 1 -> s.group == 1 ? ratingLeft.min(left) : BigDecimal.ZERO;
+                    case 2 -> s.group == 2 ? typeLeft.min(left) : BigDecimal.ZERO;
+                    default -> left;
+                };
+                BigDecimal take = s.capacity == null ? want : want.min(s.capacity.subtract(used));
+                if (take.signum() <= 0) continue;
+                amounts[i] = used.add(take);
+                left = left.subtract(take);
+                if (s.matchesRating) ratingLeft = ratingLeft.subtract(take);
+                if (s.matchesType) typeLeft = typeLeft.subtract(take);
+            }
+        }
+
+        Plan plan = new Plan(left, ratingLeft.max(BigDecimal.ZERO), typeLeft.max(BigDecimal.ZERO));
+        for (int i = 0; i < ordered.size(); i++) {
+            if (amounts[i] == null || amounts[i].signum() <= 0) {
+                if (strict) return null;
+                continue;
+            }
+            Source s = ordered.get(i);
+            plan.sources.add(s);
+            plan.amounts.add(amounts[i]);
+            plan.changes += s.changes;
+            plan.cost = plan.cost.add(s.rate.multiply(amounts[i]));
+        }
+        if (strict && (left.signum() > 0 || plan.ratingLeft.signum() > 0 || plan.typeLeft.signum() > 0)) {
+            return null;
+        }
+        return plan;
+    }
+
+    /**
+     * Applies a plan's internal and market sources, then its transfers, so a
+     * donor's backfill only sees the internal value the plan left over. An
+     * internal bond with less left than planned is taken as far as it goes
+     * and the deal reported as unrepaired.
+     */
+    private void apply(RepoDeal deal, Plan plan, long deadline, List<Change> changes, List<RepoDeal> unrepaired) {
+        for (Kind kind : List.of(Kind.INTERNAL, Kind.MARKET, Kind.TRANSFER)) {
+            for (int i = 0; i < plan.sources.size(); i++) {
+                if (plan.sources.get(i).kind == kind) {
+                    apply(deal, plan.sources.get(i), plan.amounts.get(i), deadline, changes, unrepaired);
+                }
+            }
+        }
+    }
+
+    private void apply(RepoDeal deal, Source s, BigDecimal amount, long deadline, List<Change> changes,
+            List<RepoDeal> unrepaired) {
+        switch (s.kind) {
+            case INTERNAL -> {
+                BigDecimal left = allocator.remainingAt(s.index);
+                if (left.compareTo(amount) < 0) {
+                    amount = left;
+                    if (!unrepaired.contains(deal)) {
+                        unrepaired.add(deal);
+                    }
+                    if (amount.signum() <= 0) return;
+                }
+                allocator.reserve(deal, s.index, amount);
+                changes.add(new Change(deal, ChangeKind.RESERVED, s.bondId, amount, BigDecimal.ZERO));
+                listener.onReservation(deal, allocator.bondAt(s.index), amount);
+            }
+            case MARKET -> {
+                BigDecimal cost = s.rate.multiply(amount);
+                Allocation allocation = new Allocation(s.market, amount,
+                        Set.of(s.market.getCreditRating(), s.market.getBondType()));
+                deal.addToRatingFulfilled(s.market.getCreditRating(), amount);
+                deal.addToTypeFulfilled(s.market.getBondType(), amount);
+                deal.subtractFromShortfall(amount);
+                deal.addToBorrowCost(cost);
+                allocator.borrow(deal, allocation);
+                changes.add(new Change(deal, ChangeKind.BORROWED, s.bondId, amount, cost));
+                listener.onAllocation(deal, allocation, AllocationStrategy.REPAIR);
+            }
+            case TRANSFER -> {
+                Map<String, BigDecimal> ratingBefore = new HashMap<>(s.donor.getRatingFulfilled());
+                Map<String, BigDecimal> typeBefore = new HashMap<>(s.donor.getTypeFulfilled());
+                InternalCollateralAllocator.Reservation current = allocator.getReservations(s.donor).stream()
+                        .filter(r -> r.equals(s.reservation)).findFirst().orElseThrow();
+                allocator.resize(s.donor, current, current.value().subtract(amount));
+                allocator.setRemaining(s.index, allocator.remainingAt(s.index).add(amount));
+                allocator.reserve(deal, s.index, amount);
+                changes.add(new Change(s.donor, ChangeKind.RELEASED, s.bondId, amount, BigDecimal.ZERO));
+                changes.add(new Change(deal, ChangeKind.RESERVED, s.bondId, amount, BigDecimal.ZERO));
+                Bond bond = allocator.bondAt(s.index);
+                listener.onReservation(s.donor, bond, amount.negate());
+                listener.onReservation(deal, bond, amount);
+                fill(new Hole(s.donor, amount, bond.getCreditRating(), bond.getType(), ratingBefore, typeBefore),
+                        deadline, false, changes, unrepaired);
+            }
+        }
+    }
+
+    /**
+     * Value a deal lost from one rating and type, and how much of it must
+     * come back in that rating and that type.
+     */
+    private static final class Hole {
+        final RepoDeal deal;
+        final BigDecimal value;
+        final String rating;
+        final String type;
+        final BigDecimal ratingNeed;
+        final BigDecimal typeNeed;
+
+        Hole(RepoDeal deal, BigDecimal value, String rating, String type, Map<String, BigDecimal> ratingBefore,
+                Map<String, BigDecimal> typeBefore) {
+            this.deal = deal;
+            this.value = value;
+            this.rating = rating;
+            this.type = type;
+            this.ratingNeed = need(deal, deal.getRatingRequirements(), ratingBefore, deal.getRatingFulfilled(), rating);
+            this.typeNeed = need(deal, deal.getTypeRequirements(), typeBefore, deal.getTypeFulfilled(), type);
+        }
+
+        /**
+         * The shortfall against the lower of the minimum and what was held
+         * before the loss.
+         */
+        private static BigDecimal need(RepoDeal deal, Map<String, BigDecimal> requirements,
+                Map<String, BigDecimal> before, Map<String, BigDecimal> now, String key) {
+            BigDecimal target = required(deal, requirements, key).min(before.getOrDefault(key, BigDecimal.ZERO));
+            return target.subtract(now.getOrDefault(key, BigDecimal.ZERO)).max(BigDecimal.ZERO);
+        }
+    }
+
+    private enum Kind { INTERNAL, MARKET, TRANSFER }
+
+    /**
+     * Somewhere value can come from. Groups: 0 has the hole's rating and
+     * type, 1 its rating only, 2 its type only, 3 neither. A {@code null}
+     * capacity is unlimited.
+     */
+    private static final class Source {
+        Kind kind;
+        String bondId;
+        int index = -1;
+        PossibleBorrowedBond market;
+        RepoDeal donor;
+        InternalCollateralAllocator.Reservation reservation;
+        BigDecimal capacity;
+        BigDecimal rate = BigDecimal.ZERO;
+        int changes = 1;
+        boolean matchesRating;
+        boolean matchesType;
+        int group;
+
+        private Source(Hole hole, Kind kind, String bondId, String rating, String type) {
+            this.kind = kind;
+            this.bondId = bondId;
+            this.matchesRating = matches(rating, hole.rating);
+            this.matchesType = matches(type, hole.type);
+            this.group = matchesRating ? (matchesType ? 0 : 1) : (matchesType ? 2 : 3);
+        }
+
+        static Source internal(Hole hole, int index, Bond bond, BigDecimal remaining) {
+            Source s = new Source(hole, Kind.INTERNAL, bond.getId(), bond.getCreditRating(), bond.getType());
+            s.index = index;
+            s.capacity = remaining;
+            return s;
+        }
+
+        static Source market(Hole hole, PossibleBorrowedBond bond) {
+            Source s = new Source(hole, Kind.MARKET, bond.getId(), bond.getCreditRating(), bond.getBondType());
+            s.market = bond;
+            s.rate = bond.getBorrowRate().divide(HUNDRED);
+            return s;
+        }
+
+        static Source transfer(Hole hole, RepoDeal donor, InternalCollateralAllocator.Reservation reservation,
+                int index, BigDecimal capacity) {
+            Bond bond = reservation.bond();
+            Source s = new Source(hole, Kind.TRANSFER, bond.getId(), bond.getCreditRating(), bond.getType());
+            s.donor = donor;
+            s.reservation = reservation;
+            s.index = index;
+            s.capacity = capacity;
+            s.changes = TRANSFER_CHANGES;
+            return s;
+        }
+    }
+
+    /**
+     * Sources and the amount taken from each, with what is still missing.
+     */
+    private static final class Plan {
+        final List<Source> sources = new ArrayList<>();
+        final List<BigDecimal> amounts = new ArrayList<>();
+        final BigDecimal left;
+        final BigDecimal ratingLeft;
+        final BigDecimal typeLeft;
+        int changes;
+        BigDecimal cost = BigDecimal.ZERO;
+
+        Plan(BigDecimal left, BigDecimal ratingLeft, BigDecimal typeLeft) {
+            this.left = left;
+            this.ratingLeft = ratingLeft;
+            this.typeLeft = typeLeft;
+        }
+
+        /**
+         * Whether the donors of the plan's transfers can be backfilled from
+         * {@code spare}, after the internal value the plan takes itself.
+         */
+        boolean fitsIn(BigDecimal spare) {
+            if (spare == null) return true;
+            BigDecimal needed = BigDecimal.ZERO;
+            for (int i = 0; i < sources.size(); i++) {
+                if (sources.get(i).kind != Kind.MARKET) {
+                    needed = needed.add(amounts.get(i));
+                }
+            }
+            return needed.compareTo(spare) <= 0;
+        }
+
+        boolean isBetterThan(Plan other) {
+            return changes != other.changes ? changes < other.changes : cost.compareTo(other.cost) < 0;
+        }
+    }
+}
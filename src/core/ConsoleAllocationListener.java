@@ -0,0 +1,47 @@
+package core;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import models.RepoDeal;
+
+/**
+ * Prints the allocation breakdown for each deal to standard output. This is
+ * the listener used when callers do not supply their own.
+ */
+public class ConsoleAllocationListener implements AllocationListener {
+
+    private final List<Allocation> pending = new ArrayList<>();
+
+    @Override
+    public void onAllocation(RepoDeal deal, Allocation allocation, AllocationStrategy strategy) {
+        pending.add(allocation);
+    }
+
+    @Override
+    public void onDealPriced(RepoDeal deal, BigDecimal totalCost, AllocationStrategy strategy) {
+        if (strategy == AllocationStrategy.BACKTRACKING) {
+            System.out.println("\n\n\n---- Backtracking Allocation Breakdown for Deal " + deal.getId() + " ----");
+            pending.forEach(System.out::println);
+            System.out.printf("Total Backtracking Borrow Cost: $%.2f%n", totalCost);
+            System.out.println("--------------------------------------------------");
+        } else {
+            System.out.println("\n---- Allocation Breakdown for Deal " + deal.getId() + " ----");
+            pending.forEach(System.out::println);
+            System.out.printf("Total Borrow Cost: $%.2f%n", totalCost);
+            System.out.println("--------------------------------------------\n\n\n");
+        }
+        pending.clear();
+    }
+
+    @Override
+    public void onStrategyFailed(RepoDeal deal, AllocationStrategy strategy, String reason) {
+        pending.clear();
+        if (strategy == AllocationStrategy.LOW_TO_HIGH_RATING) {
+            System.out.println("Greedy strategy failed for deal " + deal.getId() + ": " + reason);
+            System.out.println("Falling back to LP strategy...");
+        } else if (strategy == AllocationStrategy.EXACT) {
+            System.out.println("Exact solve failed for deal " + deal.getId() + ": " + reason);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package core;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import models.Bond;
+import models.RepoDeal;
+
+/**
+ * Applies internally held collateral to deals, drawing down a shared
+ * inventory so each unit of a bond's value is used at most once.
+ * <p>
+ * For each deal the rating minimums are covered first, lowest rating first
+ * as in {@link AllocationEngine}, then the type minimums, and then any
+ * remaining shortfall from whatever inventory is left. Ratings and types are
+ * matched ignoring case, and bonds are used in inventory order. The deal's
+ * fulfilled maps and shortfall are updated as value is applied. Allocation
+ * is synchronized, so deals can be allocated from several threads, but the
+ * result then depends on the order in which deals arrive.
+ * <p>
+ * The reservations of every deal are kept, so a {@link CollateralRepairer}
+ * can move them when a bond is recalled or repriced, together with any
+ * market bonds the repairer borrowed for the deal. {@link #release} hands a
+ * deal's collateral back when it matures or is cancelled.
+ */
+public class InternalCollateralAllocator {
+
+    private static final BigDecimal HUNDRED = BigDecimal.valueOf(100);
+    private static final List<String> RATING_ORDER = List.of("B", "BB", "BBB", "A", "AA", "AAA");
+
+    /**
+     * Value of one internal bond applied to a deal.
+     *
+     * @param bond the internal bond
+     * @param value the market value applied
+     */
+    public record Reservation(Bond bond, BigDecimal value) {
+    }
+
+    private final List<Bond> bonds;
+    private final BigDecimal[] remaining;
+    private final Map<String, Pool> byRating = new HashMap<>();
+    private final Map<String, Pool> byType = new HashMap<>();
+    private final Pool all = new Pool();
+    private final BigDecimal[] prices;
+    private final Map<String, Integer> indexById = new HashMap<>();
+    private final Map<RepoDeal, List<Reservation>> held = new IdentityHashMap<>();
+    private final Map<RepoDeal, List<Allocation>> borrowed = new IdentityHashMap<>();
+
+    /**
+     * @param inventory the internal collateral; each bond's available value
+     * is its quantity times its price
+     */
+    public InternalCollateralAllocator(List<Bond> inventory) {
+        this.bonds = new ArrayList<>(inventory);
+        this.remaining = new BigDecimal[bonds.size()];
+        this.prices = new BigDecimal[bonds.size()];
+        for (int i = 0; i < bonds.size(); i++) {
+            Bond bond = bonds.get(i);
+            remaining[i] = new BigDecimal(bond.getQuantity()).multiply(bond.getPrice());
+            prices[i] = bond.getPrice();
+            indexById.putIfAbsent(bond.getId(), i);
+            byRating.computeIfAbsent(bond.getCreditRating().toUpperCase(Locale.ROOT), k -> new Pool()).add(i);
+            byType.computeIfAbsent(bond.getType().toUpperCase(Locale.ROOT), k -> new Pool()).add(i);
+            all.add(i);
+        }
+    }
+
+    /**
+     * Applies internal collateral to a deal's shortfall.
+     *
+     * @param deal the deal to allocate to
+     * @return the value taken from each bond, in the order it was applied
+     */
+    public List<Reservation> allocate(RepoDeal deal) {
+        return allocate(deal, AllocationListener.NONE);
+    }
+
+    /**
+     * Applies internal collateral to a deal's shortfall and reports each
+     * reservation to {@code listener} as it is made.
+     *
+     * @param deal the deal to allocate to
+     * @param listener receives the reservations
+     * @return the value taken from each bond, in the order it was applied
+     */
+    public synchronized List<Reservation> allocate(RepoDeal deal, AllocationListener listener) {
+        List<Reservation> reservations = new ArrayList<>();
+        BigDecimal total = deal.getTotalValueRequired();
+
+        for (String rating : RATING_ORDER) {
+            BigDecimal percent = deal.getRatingRequirements().get(rating);
+            if (percent == null) continue;
+            BigDecimal needed = total.multiply(percent).divide(HUNDRED)
+                    .subtract(deal.getRatingFulfilled().getOrDefault(rating, BigDecimal.ZERO));
+            take(deal, needed, byRating.get(rating), reservations, listener);
+        }
+
+        for (Map.Entry<String, BigDecimal> req : deal.getTypeRequirements().entrySet()) {
+            BigDecimal needed = total.multiply(req.getValue()).divide(HUNDRED)
+                    .subtract(deal.getTypeFulfilled().getOrDefault(req.getKey(), BigDecimal.ZERO));
+            take(deal, needed, byType.get(req.getKey().toUpperCase(Locale.ROOT)), reservations, listener);
+        }
+
+        take(deal, deal.getShortfall(), all, reservations, listener);
+        return reservations;
+    }
+
+    /**
+     * @param deal a deal
+     * @return the internal collateral the deal currently holds
+     */
+    public synchronized List<Reservation> getReservations(RepoDeal deal) {
+        return List.copyOf(held.getOrDefault(deal, List.of()));
+    }
+
+    /**
+     * @param deal a deal
+     * @return the market bonds borrowed for the deal by a
+     * {@link CollateralRepairer}
+     */
+    public synchronized List<Allocation> getBorrowings(RepoDeal deal) {
+        return List.copyOf(borrowed.getOrDefault(deal, List.of()));
+    }
+
+    /**
+     * Returns a deal's internal collateral to the inventory and forgets its
+     * reservations and borrowings, for example when the deal matures or is
+     * cancelled. The deal itself is left as it is.
+     *
+     * @param deal the deal to release
+     * @return the reservations released, empty if the deal held none
+     */
+    public synchronized List<Reservation> release(RepoDeal deal) {
+        borrowed.remove(deal);
+        List<Reservation> reservations = held.remove(deal);
+        if (reservations == null) {
+            return List.of();
+        }
+        for (Reservation reservation : reservations) {
+            int index = indexOf(reservation.bond());
+            setRemaining(index, remaining[index].add(reservation.value()));
+        }
+        return reservations;
+    }
+
+    /**
+     * @param bondId an internal bond id
+     * @return the deals holding some of the bond, in no particular order
+     */
+    public synchronized List<RepoDeal> getDealsUsing(String bondId) {
+        List<RepoDeal> deals = new ArrayList<>();
+        for (Map.Entry<RepoDeal, List<Reservation>> entry : held.entrySet()) {
+            for (Reservation reservation : entry.getValue()) {
+                if (reservation.bond().getId().equals(bondId)) {
+                    deals.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return deals;
+    }
+
+    /**
+     * Takes value reserved in an earlier run off the inventory, for example
+     * {@link util.AllocationJournal.Recovery#getReservedByBond}, so it is not
+     * handed out again. The value is not attached to any deal. Ids not in the
+     * inventory are ignored, and no more than the remaining value of a
+     * bond's rows is taken.
+     *
+     * @param reservedByBond value reserved, by internal bond id
+     */
+    public synchronized void reserveRecovered(Map<String, BigDecimal> reservedByBond) {
+        Map<String, BigDecimal> left = new HashMap<>(reservedByBond);
+        for (int i = 0; i < bonds.size(); i++) {
+            BigDecimal reserved = left.get(bonds.get(i).getId());
+            if (reserved == null || reserved.signum() <= 0) continue;
+            BigDecimal applied = remaining[i].min(reserved);
+            remaining[i] = remaining[i].subtract(applied);
+            left.put(bonds.get(i).getId(), reserved.subtract(applied));
+        }
+    }
+
+    /**
+     * @return the total value still available across all bonds
+     */
+    public synchronized BigDecimal getRemainingValue() {
+        BigDecimal sum = BigDecimal.ZERO;
+        for (BigDecimal value : remaining) {
+            sum = sum.add(value);
+        }
+        return sum;
+    }
+
+    /**
+     * Takes up to {@code needed} (and never more than the deal's shortfall)
+     * from the bonds in {@code pool}, in inventory order.
+     */
+    private void take(RepoDeal deal, BigDecimal needed, Pool pool, List<Reservation> reservations,
+            AllocationListener listener) {
+        needed = needed.min(deal.getShortfall());
+        if (pool == null || needed.signum() <= 0) {
+            return;
+        }
+        pool.skipExhausted(remaining);
+        for (int p = pool.next; p < pool.size && needed.signum() > 0; p++) {
+            int i = pool.indexes[p];
+            if (remaining[i].signum() <= 0) continue;
+            Bond bond = bonds.get(i);
+            BigDecimal value = remaining[i].min(needed);
+            remaining[i] = remaining[i].subtract(value);
+            needed = needed.subtract(value);
+
+            deal.addToRatingFulfilled(bond.getCreditRating(), value);
+            deal.addToTypeFulfilled(bond.getType(), value);
+            deal.subtractFromShortfall(value);
+            Reservation reservation = new Reservation(bond, value);
+            reservations.add(reservation);
+            held.computeIfAbsent(deal, k -> new ArrayList<>()).add(reservation);
+            listener.onReservation(deal, bond, value);
+        }
+    }
+
+    // The methods below are used by CollateralRepairer, which holds this
+    // allocator's lock while it calls them.
+
+    int indexOf(String bondId) {
+        return indexById.getOrDefault(bondId, -1);
+    }
+
+    int bondCount() {
+        return bonds.size();
+    }
+
+    Bond bondAt(int index) {
+        return bonds.get(index);
+    }
+
+    /**
+     * The position of this very bond. Rows sharing an id are indexed by the
+     * first, so later ones are found after it.
+     */
+    private int indexOf(Bond bond) {
+        int index = indexOf(bond.getId());
+        while (bonds.get(index) != bond) {
+            index++;
+        }
+        return index;
+    }
+
+    /** Records a market bond borrowed for a deal. */
+    void borrow(RepoDeal deal, Allocation allocation) {
+        borrowed.computeIfAbsent(deal, k -> new ArrayList<>()).add(allocation);
+    }
+
+    /** Every deal holding internal collateral, with its reservations. */
+    Map<RepoDeal, List<Reservation>> holdings() {
+        return Collections.unmodifiableMap(held);
+    }
+
+    BigDecimal remainingAt(int index) {
+        return remaining[index];
+    }
+
+    BigDecimal priceAt(int index) {
+        return prices[index];
+    }
+
+    void setPrice(int index, BigDecimal price) {
+        prices[index] = price;
+    }
+
+    /**
+     * Sets the value still available from a bond. Raising it rewinds the
+     * pools, whose cursors assume bonds are only ever drawn down.
+     */
+    void setRemaining(int index, BigDecimal value) {
+        if (value.compareTo(remaining[index]) > 0) {
+            byRating.get(bonds.get(index).getCreditRating().toUpperCase(Locale.ROOT)).next = 0;
+            byType.get(bonds.get(index).getType().toUpperCase(Locale.ROOT)).next = 0;
+            all.next = 0;
+        }
+        remaining[index] = value;
+    }
+
+    /**
+     * Takes {@code value} of a bond for a deal.
+     *
+     * @throws IllegalArgumentException if less than {@code value} of the
+     * bond is left
+     */
+    Reservation reserve(RepoDeal deal, int index, BigDecimal value) {
+        Bond bond = bonds.get(index);
+        if (value.compareTo(remaining[index]) > 0) {
+            throw new IllegalArgumentException("Cannot reserve " + value + " of bond " + bond.getId() + ": only "
+                    + remaining[index] + " left");
+        }
+        remaining[index] = remaining[index].subtract(value);
+        deal.addToRatingFulfilled(bond.getCreditRating(), value);
+        deal.addToTypeFulfilled(bond.getType(), value);
+        deal.subtractFromShortfall(value);
+        Reservation reservation = new Reservation(bond, value);
+        held.computeIfAbsent(deal, k -> new ArrayList<>()).add(reservation);
+        return reservation;
+    }
+
+    /**
+     * Changes the value a deal holds under one reservation, updating the
+     * deal but not the bond's remaining value. A value of zero removes the
+     * reservation.
+     */
+    void resize(RepoDeal deal, Reservation reservation, BigDecimal value) {
+        List<Reservation> reservations = held.get(deal);
+        int position = reservations.indexOf(reservation);
+        BigDecimal delta = value.subtract(reservation.value());
+        Bond bond = reservation.bond();
+        deal.addToRatingFulfilled(bond.getCreditRating(), delta);
+        deal.addToTypeFulfilled(bond.getType(), delta);
+        deal.subtractFromShortfall(delta);
+        if (value.signum() > 0) {
+            reservations.set(position, new Reservation(bond, value));
+        } else {
+            reservations.remove(position);
+        }
+    }
+
+    /**
+     * The inventory positions of the bonds sharing a rating or type, with a
+     * cursor past the leading bonds that are used up. Bonds are drawn down
+     * in order, so the cursor only moves forward and each lookup skips
+     * exhausted bonds once rather than on every deal.
+     */
+    private static final class Pool {
+        private int[] indexes = new int[8];
+        private int size;
+        private int next;
+
+        void add(int index) {
+            if (size == indexes.length) {
+                indexes = Arrays.copyOf(indexes, size * 2);
+            }
+            indexes[size++] = index;
+        }
+
+        void skipExhausted(BigDecimal[] remaining) {
+            while (next < size && remaining[indexes[next]].signum() <= 0) {
+                next++;
+            }
+        }
+    }
+}
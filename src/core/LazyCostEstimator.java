@@ -0,0 +1,390 @@
+package core;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+
+/**
+ * Answers cost questions about a set of deals while running
+ * {@link AllocationEngine#calculateExternalBorrowCost} on as few of them as
+ * possible.
+ * <p>
+ * Every deal first gets a lower and upper bound on the cost the engine would
+ * return, computed from the borrow market's {@link RateGrid}, so each bound
+ * costs a walk over the grid's cells rather than over the market:
+ * <ul>
+ * <li>The lower bound is {@link RateGrid#lowerBound}, which is at least the
+ * rating minimums at the cheapest rate for each rating and the rest at the
+ * cheapest rate in the market, and likewise for the type minimums. Both the
+ * greedy strategy and the backtracking fallback meet every minimum and
+ * allocate the full amount, so neither can cost less.</li>
+ * <li>If the rating and type minimums together fit in the deal, the greedy
+ * strategy always succeeds, and its cost is at most the rating minimums at
+ * their cheapest rates plus the type minimums at theirs plus the rest at the
+ * cheapest rate. Otherwise the engine may fall back to backtracking, and the
+ * only safe upper bound is the full amount at the dearest rate.</li>
+ * </ul>
+ * A deal is only fully priced (a "full solve") when its bounds are too wide
+ * for the question being asked. Deals the engine cannot price are known
+ * without a solve when their minimums alone exceed the deal or a required
+ * rating or type is missing from the market; they are left out of every
+ * answer. Full solve results are cached, so later questions reuse them.
+ */
+public class LazyCostEstimator {
+
+    private static final BigDecimal HUNDRED = BigDecimal.valueOf(100);
+    private static final List<String> RATINGS = List.of("B", "BB", "BBB", "A", "AA", "AAA");
+
+    /**
+     * Whether the engine can price a deal.
+     */
+    public enum Priceability {
+        /** The engine is certain to price the deal. */
+        PRICEABLE,
+        /** The engine may need the fallback search, which may fail. */
+        UNKNOWN,
+        /** The engine is certain to fail. */
+        UNPRICEABLE
+    }
+
+    /**
+     * The bounds for one deal, narrowed to its exact cost once it has been
+     * fully solved.
+     */
+    public static final class Estimate {
+        private final RepoDeal deal;
+        private final int position;
+        private BigDecimal lower;
+        private BigDecimal upper;
+        private Priceability priceability;
+        private boolean solved;
+
+        private Estimate(RepoDeal deal, int position) {
+            this.deal = deal;
+            this.position = position;
+        }
+
+        public RepoDeal getDeal() {
+            return deal;
+        }
+
+        /**
+         * @return a lower bound on the deal's cost, or the exact cost once
+         * known
+         */
+        public BigDecimal getLower() {
+            return lower;
+        }
+
+        /**
+         * @return an upper bound on the deal's cost, or the exact cost once
+         * known
+         */
+        public BigDecimal getUpper() {
+            return upper;
+        }
+
+        public Priceability getPriceability() {
+            return priceability;
+        }
+
+        /**
+         * @return true if the deal has been fully solved
+         */
+        public boolean isSolved() {
+            return solved;
+        }
+
+        /**
+         * @return true if the exact cost is known, either from a full solve
+         * or because the bounds met
+         */
+        public boolean isExact() {
+            return priceability == Priceability.PRICEABLE && lower.compareTo(upper) == 0;
+        }
+    }
+
+    private final List<PossibleBorrowedBond> borrowMarket;
+    private final List<Estimate> estimates = new ArrayList<>();
+    private final Map<RepoDeal, Estimate> byDeal = new IdentityHashMap<>();
+    private int fullSolves;
+
+    /**
+     * Computes the bounds of every deal. No deal is solved yet.
+     *
+     * @param deals the deals to answer questions about
+     * @param borrowMarket the borrow market they are priced against
+     */
+    public LazyCostEstimator(List<RepoDeal> deals, List<PossibleBorrowedBond> borrowMarket) {
+        this.borrowMarket = borrowMarket;
+        RateGrid grid = new RateGrid(borrowMarket);
+        for (RepoDeal deal : deals) {
+            Estimate estimate = new Estimate(deal, estimates.size());
+            bound(grid, estimate);
+            estimates.add(estimate);
+            byDeal.put(deal, estimate);
+        }
+    }
+
+    /**
+     * @return the estimates, in the order the deals were given
+     */
+    public List<Estimate> getEstimates() {
+        return estimates;
+    }
+
+    /**
+     * @return how many deals have been fully solved so far
+     */
+    public int getFullSolves() {
+        return fullSolves;
+    }
+
+    /**
+     * @return how many deals have not needed a full solve so far
+     */
+    public int getSolvesAvoided() {
+        return estimates.size() - fullSolves;
+    }
+
+    /**
+     * Returns the exact cost of one deal, solving it if the bounds have not
+     * already met.
+     *
+     * @param deal one of the estimator's deals
+     * @return the cost, or {@code null} if the engine cannot price the deal
+     */
+    public BigDecimal cost(RepoDeal deal) {
+        Estimate estimate = byDeal.get(deal);
+        if (estimate == null) {
+            throw new IllegalArgumentException("Unknown deal: " + deal.getId());
+        }
+        resolve(estimate);
+        return estimate.priceability == Priceability.PRICEABLE ? estimate.lower : null;
+    }
+
+    /**
+     * Returns the priceable deals ordered by cost, cheapest first, with equal
+     * costs kept in their original order. Two deals are only solved when
+     * their bounds overlap, and deals that might be unpriceable are always
+     * solved.
+     *
+     * @return the priceable deals in cost order
+     */
+    public List<RepoDeal> sortedByCost() {
+        List<Estimate> priceable = new ArrayList<>();
+        for (Estimate estimate : estimates) {
+            if (estimate.priceability == Priceability.UNKNOWN) {
+                resolve(estimate);
+            }
+            if (estimate.priceability == Priceability.PRICEABLE) {
+                priceable.add(estimate);
+            }
+        }
+        priceable.sort(this::compareCost);
+        return deals(priceable);
+    }
+
+    /**
+     * Returns the priceable deals costing at least {@code threshold}, in their
+     * original order.
+     *
+     * @param threshold the minimum cost
+     * @return the matching deals
+     */
+    public List<RepoDeal> costAtLeast(BigDecimal threshold) {
+        List<Estimate> matches = new ArrayList<>();
+        for (Estimate estimate : estimates) {
+            if (estimate.priceability == Priceability.UNPRICEABLE || estimate.upper.compareTo(threshold) < 0) {
+                continue;
+            }
+            if (estimate.priceability == Priceability.UNKNOWN || estimate.lower.compareTo(threshold) < 0) {
+                resolve(estimate);
+            }
+            if (estimate.priceability == Priceability.PRICEABLE && estimate.lower.compareTo(threshold) >= 0) {
+                matches.add(estimate);
+            }
+        }
+        return deals(matches);
+    }
+
+    /**
+     * Returns the priceable deals costing at most {@code threshold}, in their
+     * original order.
+     *
+     * @param threshold the maximum cost
+     * @return the matching deals
+     */
+    public List<RepoDeal> costAtMost(BigDecimal threshold) {
+        List<Estimate> matches = new ArrayList<>();
+        for (Estimate estimate : estimates) {
+            if (estimate.priceability == Priceability.UNPRICEABLE || estimate.lower.compareTo(threshold) > 0) {
+                continue;
+            }
+            if (estimate.priceability == Priceability.UNKNOWN || estimate.upper.compareTo(threshold) > 0) {
+                resolve(estimate);
+            }
+            if (estimate.priceability == Priceability.PRICEABLE && estimate.upper.compareTo(threshold) <= 0) {
+                matches.add(estimate);
+            }
+        }
+        return deals(matches);
+    }
+
+    /**
+     * Returns the {@code k} most expensive priceable deals, dearest first,
+     * with equal costs kept in their original order.
+     * <p>
+     * Deals are taken from a queue ordered by upper bound. A deal whose
+     * exact cost is known and is at least every other deal's upper bound is
+     * the next answer; otherwise the deal at the head is solved and put back.
+     * Deals whose upper bound never reaches the head are never solved.
+     *
+     * @param k how many deals to return
+     * @return up to {@code k} deals, dearest first
+     */
+    public List<RepoDeal> mostExpensive(int k) {
+        PriorityQueue<Estimate> queue = new PriorityQueue<>(Comparator
+                .comparing((Estimate e) -> e.upper, Comparator.reverseOrder())
+                .thenComparingInt(e -> e.position));
+        for (Estimate estimate : estimates) {
+            if (estimate.priceability != Priceability.UNPRICEABLE) {
+                queue.add(estimate);
+            }
+        }
+
+        List<Estimate> top = new ArrayList<>();
+        while (top.size() < k && !queue.isEmpty()) {
+            Estimate head = queue.poll();
+            if (head.isExact()) {
+                top.add(head);
+                continue;
+            }
+            resolve(head);
+            if (head.priceability == Priceability.PRICEABLE) {
+                queue.add(head);
+            }
+        }
+        return deals(top);
+    }
+
+    /**
+     * Orders two priceable estimates by cost, solving the wider one, and then
+     * if needed the other, until their bounds no longer overlap.
+     */
+    private int compareCost(Estimate a, Estimate b) {
+        while (true) {
+            if (a.isExact() && b.isExact()) {
+                int byCost = a.lower.compareTo(b.lower);
+                return byCost != 0 ? byCost : Integer.compare(a.position, b.position);
+            }
+            if (a.upper.compareTo(b.lower) < 0) return -1;
+            if (b.upper.compareTo(a.lower) < 0) return 1;
+
+            Estimate wider = a.isExact() || (!b.isExact()
+                    && b.upper.subtract(b.lower).compareTo(a.upper.subtract(a.lower)) > 0) ? b : a;
+            resolve(wider);
+        }
+    }
+
+    /**
+     * Runs the engine on a deal unless its exact cost or failure is already
+     * known, and narrows its bounds to the result.
+     */
+    private void resolve(Estimate estimate) {
+        if (estimate.solved || estimate.isExact() || estimate.priceability == Priceability.UNPRICEABLE) {
+            return;
+        }
+        fullSolves++;
+        estimate.solved = true;
+        try {
+            BigDecimal cost = AllocationEngine.calculateExternalBorrowCost(estimate.deal, borrowMarket,
+                    AllocationListener.NONE);
+            estimate.lower = cost;
+            estimate.upper = cost;
+            estimate.priceability = Priceability.PRICEABLE;
+        } catch (UnfulfillableConstraintException | IllegalArgumentException e) {
+            estimate.priceability = Priceability.UNPRICEABLE;
+        }
+    }
+
+    private static List<RepoDeal> deals(List<Estimate> estimates) {
+        List<RepoDeal> deals = new ArrayList<>(estimates.size());
+        for (Estimate estimate : estimates) {
+            deals.add(estimate.deal);
+        }
+        return deals;
+    }
+
+    /**
+     * Sets the bounds of one deal from the market's {@link RateGrid}. The
+     * lower bound is the grid's dual bound; the upper bound and priceability
+     * come from the rating and type minimums at their cheapest rates.
+     */
+    private static void bound(RateGrid grid, Estimate estimate) {
+        RepoDeal deal = estimate.deal;
+        BigDecimal total = deal.getTotalValueRequired();
+        if (grid.isEmpty()) {
+            estimate.lower = BigDecimal.ZERO;
+            estimate.upper = BigDecimal.ZERO;
+            estimate.priceability = Priceability.UNPRICEABLE;
+            return;
+        }
+
+        boolean missing = false;
+        BigDecimal ratingMinimums = BigDecimal.ZERO;
+        BigDecimal ratingCost = BigDecimal.ZERO;
+        for (Map.Entry<String, BigDecimal> req : deal.getRatingRequirements().entrySet()) {
+            BigDecimal needed = total.multiply(req.getValue()).divide(HUNDRED);
+            if (needed.signum() <= 0) continue;
+            String rating = req.getKey().toUpperCase(Locale.ROOT);
+            if (!RATINGS.contains(rating)) {
+                // The greedy strategy ignores ratings outside its order,
+                // so they cannot raise the bounds of its result.
+                continue;
+            }
+            BigDecimal rate = grid.getCheapestForRating(rating);
+            if (rate == null) {
+                missing = true;
+                continue;
+            }
+            ratingMinimums = ratingMinimums.add(needed);
+            ratingCost = ratingCost.add(rate.multiply(needed));
+        }
+
+        BigDecimal typeMinimums = BigDecimal.ZERO;
+        BigDecimal typeCost = BigDecimal.ZERO;
+        for (Map.Entry<String, BigDecimal> req : deal.getTypeRequirements().entrySet()) {
+            BigDecimal needed = total.multiply(req.getValue()).divide(HUNDRED);
+            if (needed.signum() <= 0) continue;
+            BigDecimal rate = grid.getCheapestForType(req.getKey());
+            if (rate == null) {
+                missing = true;
+                continue;
+            }
+            typeMinimums = typeMinimums.add(needed);
+            typeCost = typeCost.add(rate.multiply(needed));
+        }
+
+        estimate.lower = grid.lowerBound(deal);
+
+        BigDecimal unconstrained = total.subtract(ratingMinimums).subtract(typeMinimums);
+        if (missing || ratingMinimums.compareTo(total) > 0 || typeMinimums.compareTo(total) > 0) {
+            estimate.priceability = Priceability.UNPRICEABLE;
+            estimate.upper = estimate.lower;
+        } else if (unconstrained.signum() >= 0) {
+            estimate.priceability = Priceability.PRICEABLE;
+            estimate.upper = ratingCost.add(typeCost).add(grid.getCheapest().multiply(unconstrained));
+        } else {
+            estimate.priceability = Priceability.UNKNOWN;
+            estimate.upper = grid.getDearest().multiply(total);
+        }
+    }
+}
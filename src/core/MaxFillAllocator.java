@@ -0,0 +1,394 @@
+package core;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import models.Bond;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+
+/**
+ * Fills as much of each deal as internal collateral and the borrow market
+ * allow, instead of failing the deals that cannot be filled completely.
+ * <p>
+ * A deal is filled to a fraction {@code f} of its total when {@code f} of
+ * the total can be allocated with every rating and type minimum met at
+ * {@code f} of its amount, so a partial fill keeps the deal's proportions.
+ * Supply is grouped by rating and type: each combination can take what is
+ * left of the internal bonds with it, at no cost, and, if the market offers
+ * it, any amount at its cheapest borrow rate. Feasibility of a fill is a
+ * {@link MinCostFlow} from the deal's ratings through those cells to its
+ * types. Any smaller fill of a feasible fill is feasible too, so the largest
+ * fill is found by bisection to {@link #FILL_SCALE} decimal places, one
+ * polynomial flow per step, and the same flow gives the cheapest allocation
+ * at that fill: internal collateral first, then the cheapest market bonds.
+ * <p>
+ * Deals are filled one at a time, in the order they are given, each drawing
+ * down the internal inventory for the ones after it; internal bonds of a
+ * cell are used in inventory order. Ratings and types are matched ignoring
+ * case. A required rating or type with no supply at all gives a fill of
+ * zero. Allocation is synchronized, so deals can be filled from several
+ * threads, but the result then depends on the order in which they arrive.
+ * <p>
+ * The internal value left in each cell is kept as a running total, and a
+ * fill's internal collateral can be handed back with {@link #release}, so one
+ * allocator can follow a book as deals start and mature.
+ */
+public class MaxFillAllocator {
+
+    /** Fills are found to this many decimal places. */
+    public static final int FILL_SCALE = 6;
+
+    private static final BigDecimal HUNDRED = BigDecimal.valueOf(100);
+    private static final int FILL_STEPS = BigDecimal.ONE.movePointRight(FILL_SCALE).intValueExact();
+
+    /**
+     * The result of filling one deal.
+     *
+     * @param deal the deal
+     * @param fill the fraction of the deal's total that was filled, from 0 to 1
+     * @param filled the value allocated
+     * @param borrowCost the cost of the market allocations
+     * @param borrowed the market allocations
+     * @param internal the internal collateral applied
+     */
+    public record Fill(RepoDeal deal, BigDecimal fill, BigDecimal filled, BigDecimal borrowCost,
+            List<Allocation> borrowed, List<InternalCollateralAllocator.Reservation> internal) {
+
+        /**
+         * @return the value still missing from the deal's total
+         */
+        public BigDecimal shortfall() {
+            return deal.getTotalValueRequired().subtract(filled);
+        }
+
+        /**
+         * @return true if the whole deal was filled
+         */
+        public boolean isComplete() {
+            return shortfall().signum() <= 0;
+        }
+    }
+
+    private final List<String> ratings = new ArrayList<>();
+    private final List<String> types = new ArrayList<>();
+    private final Map<String, Integer> ratingIndex = new HashMap<>();
+    private final Map<String, Integer> typeIndex = new HashMap<>();
+    private final List<Bond> bonds;
+    private final BigDecimal[] remaining;
+    private final Map<Bond, Integer> bondIndex = new IdentityHashMap<>();
+    private final List<List<List<Integer>>> cellBonds = new ArrayList<>();
+    private final BigDecimal[][] cellAvailable;
+    private final PossibleBorrowedBond[][] marketBond;
+    private final BigDecimal[][] marketRate;
+
+    /**
+     * @param inventory the internal collateral; each bond's available value
+     * is its quantity times its price
+     * @param borrowMarket the borrow market, with no limit on any bond
+     */
+    public MaxFillAllocator(List<Bond> inventory, List<PossibleBorrowedBond> borrowMarket) {
+        this.bonds = new ArrayList<>(inventory);
+        this.remaining = new BigDecimal[bonds.size()];
+        for (Bond bond : bonds) {
+            index(ratings, ratingIndex, bond.getCreditRating());
+            index(types, typeIndex, bond.getType());
+        }
+        for (PossibleBorrowedBond bond : borrowMarket) {
+            index(ratings, ratingIndex, bond.getCreditRating());
+            index(types, typeIndex, bond.getBondType());
+        }
+
+        for (int r = 0; r < ratings.size(); r++) {
+            List<List<Integer>> row = new ArrayList<>();
+            for (int t = 0; t < types.size(); t++) {
+                row.add(new ArrayList<>());
+            }
+            cellBonds.add(row);
+        }
+        cellAvailable = new BigDecimal[ratings.size()][types.size()];
+        for (BigDecimal[] row : cellAvailable) {
+            Arrays.fill(row, BigDecimal.ZERO);
+        }
+        for (int i = 0; i < bonds.size(); i++) {
+            Bond bond = bonds.get(i);
+            remaining[i] = new BigDecimal(bond.getQuantity()).multiply(bond.getPrice());
+            bondIndex.putIfAbsent(bond, i);
+            int r = rating(bond.getCreditRating());
+            int t = type(bond.getType());
+            cellBonds.get(r).get(t).add(i);
+            cellAvailable[r][t] = cellAvailable[r][t].add(remaining[i]);
+        }
+
+        marketBond = new PossibleBorrowedBond[ratings.size()][types.size()];
+        marketRate = new BigDecimal[ratings.size()][types.size()];
+        for (PossibleBorrowedBond bond : borrowMarket) {
+            int r = rating(bond.getCreditRating());
+            int t = type(bond.getBondType());
+            BigDecimal rate = bond.getBorrowRate().divide(HUNDRED);
+            if (marketRate[r][t] == null || rate.compareTo(marketRate[r][t]) < 0) {
+                marketRate[r][t] = rate;
+                marketBond[r][t] = bond;
+            }
+        }
+    }
+
+    private static void index(List<String> names, Map<String, Integer> index, String name) {
+        String key = name.toUpperCase(Locale.ROOT);
+        if (!index.containsKey(key)) {
+            index.put(key, names.size());
+            names.add(key);
+        }
+    }
+
+    private int rating(String rating) {
+        return ratingIndex.get(rating.toUpperCase(Locale.ROOT));
+    }
+
+    private int type(String type) {
+        return typeIndex.get(type.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Fills a deal as far as the remaining supply allows, applies the result
+     * to the deal's fulfilled maps and shortfall and reports the market
+     * reservations and market allocations to {@code listener}. The deal is
+     * always reported as priced, even at a fill of zero.
+     *
+     * @param deal the deal to fill
+     * @param listener receives the reservations, market allocations and the
+     * borrow cost
+     * @return the fill
+     */
+    public synchronized Fill allocate(RepoDeal deal, AllocationListener listener) {
+        BigDecimal[] ratingMinimums = new BigDecimal[ratings.size()];
+        BigDecimal[] typeMinimums = new BigDecimal[types.size()];
+        boolean blocked = minimums(deal, deal.getRatingRequirements(), ratingIndex, ratingMinimums);
+        blocked |= minimums(deal, deal.getTypeRequirements(), typeIndex, typeMinimums);
+
+        Attempt best = null;
+        BigDecimal fill = BigDecimal.ZERO;
+        if (!blocked) {
+            best = attempt(deal, BigDecimal.ONE, ratingMinimums, typeMinimums);
+            if (best != null) {
+                fill = BigDecimal.ONE;
+            } else {
+                int low = 0;
+                int high = FILL_STEPS;
+                while (high - low > 1) {
+                    int mid = (low + high) >>> 1;
+                    BigDecimal candidate = BigDecimal.valueOf(mid, FILL_SCALE);
+                    Attempt attempt = attempt(deal, candidate, ratingMinimums, typeMinimums);
+                    if (attempt != null) {
+                        low = mid;
+                        best = attempt;
+                        fill = candidate;
+                    } else {
+                        high = mid;
+                    }
+                }
+            }
+        }
+
+        List<Allocation> borrowed = new ArrayList<>();
+        List<InternalCollateralAllocator.Reservation> internal = new ArrayList<>();
+        BigDecimal filled = BigDecimal.ZERO;
+        BigDecimal cost = BigDecimal.ZERO;
+        if (best != null) {
+            for (int r = 0; r < ratings.size(); r++) {
+                for (int t = 0; t < types.size(); t++) {
+                    if (best.inventoryArcs[r][t] >= 0) {
+                        BigDecimal value = best.network.flow(best.inventoryArcs[r][t]);
+                        filled = filled.add(value);
+                        take(deal, r, t, value, internal, listener);
+                    }
+                    if (best.marketArcs[r][t] >= 0) {
+                        BigDecimal amount = best.network.flow(best.marketArcs[r][t]);
+                        if (amount.signum() <= 0) continue;
+                        PossibleBorrowedBond bond = marketBond[r][t];
+                        Allocation allocation = new Allocation(bond, amount,
+                                Set.of(bond.getCreditRating(), bond.getBondType()));
+                        borrowed.add(allocation);
+                        filled = filled.add(amount);
+                        cost = cost.add(marketRate[r][t].multiply(amount));
+                        deal.addToRatingFulfilled(bond.getCreditRating(), amount);
+                        deal.addToTypeFulfilled(bond.getBondType(), amount);
+                        deal.subtractFromShortfall(amount);
+                        listener.onAllocation(deal, allocation, AllocationStrategy.MAX_FILL);
+                    }
+                }
+            }
+        }
+        listener.onDealPriced(deal, cost, AllocationStrategy.MAX_FILL);
+        return new Fill(deal, fill, filled, cost, borrowed, internal);
+    }
+
+    /**
+     * Converts a deal's requirements to amounts by grid index. Returns true
+     * if a positive minimum names a rating or type with no supply.
+     */
+    private static boolean minimums(RepoDeal deal, Map<String, BigDecimal> requirements, Map<String, Integer> index,
+            BigDecimal[] amounts) {
+        Arrays.fill(amounts, BigDecimal.ZERO);
+        boolean blocked = false;
+        for (Map.Entry<String, BigDecimal> req : requirements.entrySet()) {
+            BigDecimal needed = deal.getTotalValueRequired().multiply(req.getValue()).divide(HUNDRED);
+            if (needed.signum() <= 0) continue;
+            Integer i = index.get(req.getKey().toUpperCase(Locale.ROOT));
+            if (i == null) {
+                blocked = true;
+            } else {
+                amounts[i] = amounts[i].max(needed);
+            }
+        }
+        return blocked;
+    }
+
+    /**
+     * Builds and solves the flow for {@code fill} of the deal. Returns
+     * {@code null} if that fill cannot be reached.
+     */
+    private Attempt attempt(RepoDeal deal, BigDecimal fill, BigDecimal[] ratingMinimums, BigDecimal[] typeMinimums) {
+        int source = 0;
+        int sink = ratings.size() + types.size() + 1;
+        Attempt attempt = new Attempt(new MinCostFlow(sink + 1), ratings.size(), types.size());
+        List<Integer> minimumArcs = new ArrayList<>();
+        for (int r = 0; r < ratings.size(); r++) {
+            BigDecimal minimum = ratingMinimums[r].multiply(fill);
+            if (minimum.signum() > 0) {
+                minimumArcs.add(attempt.network.addArc(source, 1 + r, minimum, -1, BigDecimal.ZERO));
+            }
+            attempt.network.addArc(source, 1 + r, null, 0, BigDecimal.ZERO);
+            for (int t = 0; t < types.size(); t++) {
+                BigDecimal available = cellAvailable[r][t];
+                if (available.signum() > 0) {
+                    attempt.inventoryArcs[r][t] = attempt.network.addArc(1 + r, 1 + ratings.size() + t, available,
+                            0, BigDecimal.ZERO);
+                }
+                if (marketRate[r][t] != null) {
+                    attempt.marketArcs[r][t] = attempt.network.addArc(1 + r, 1 + ratings.size() + t, null,
+                            0, marketRate[r][t]);
+                }
+            }
+        }
+        for (int t = 0; t < types.size(); t++) {
+            BigDecimal minimum = typeMinimums[t].multiply(fill);
+            if (minimum.signum() > 0) {
+                minimumArcs.add(attempt.network.addArc(1 + ratings.size() + t, sink, minimum, -1, BigDecimal.ZERO));
+            }
+            attempt.network.addArc(1 + ratings.size() + t, sink, null, 0, BigDecimal.ZERO);
+        }
+
+        BigDecimal target = deal.getTotalValueRequired().multiply(fill);
+        if (attempt.network.send(source, sink, target).compareTo(target) < 0) {
+            return null;
+        }
+        for (int arc : minimumArcs) {
+            if (!attempt.network.isSaturated(arc)) {
+                return null;
+            }
+        }
+        return attempt;
+    }
+
+    /**
+     * Returns a fill's internal collateral to the inventory, for example when
+     * the deal matures. The deal itself is left as it is.
+     *
+     * @param fill a fill returned by this allocator, not yet released
+     */
+    public synchronized void release(Fill fill) {
+        for (InternalCollateralAllocator.Reservation reservation : fill.internal()) {
+            Bond bond = reservation.bond();
+            int i = bondIndex.get(bond);
+            remaining[i] = remaining[i].add(reservation.value());
+            int r = rating(bond.getCreditRating());
+            int t = type(bond.getType());
+            cellAvailable[r][t] = cellAvailable[r][t].add(reservation.value());
+        }
+    }
+
+    /**
+     * Takes value reserved in an earlier run off the inventory, for example
+     * {@link util.AllocationJournal.Recovery#getReservedByBond}, so it is not
+     * handed out again. Ids not in the inventory are ignored, and no more
+     * than the remaining value of a bond's rows is taken.
+     *
+     * @param reservedByBond value reserved, by internal bond id
+     */
+    public synchronized void reserveRecovered(Map<String, BigDecimal> reservedByBond) {
+        Map<String, BigDecimal> left = new HashMap<>(reservedByBond);
+        for (int i = 0; i < bonds.size(); i++) {
+            Bond bond = bonds.get(i);
+            BigDecimal reserved = left.get(bond.getId());
+            if (reserved == null || reserved.signum() <= 0) continue;
+            BigDecimal applied = remaining[i].min(reserved);
+            remaining[i] = remaining[i].subtract(applied);
+            left.put(bond.getId(), reserved.subtract(applied));
+            int r = rating(bond.getCreditRating());
+            int t = type(bond.getType());
+            cellAvailable[r][t] = cellAvailable[r][t].subtract(applied);
+        }
+    }
+
+    /**
+     * @return the total value still available across all bonds
+     */
+    public synchronized BigDecimal getRemainingValue() {
+        BigDecimal total = BigDecimal.ZERO;
+        for (BigDecimal[] row : cellAvailable) {
+            for (BigDecimal value : row) {
+                total = total.add(value);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Draws {@code value} from the bonds of one cell, in inventory order.
+     */
+    private void take(RepoDeal deal, int r, int t, BigDecimal value,
+            List<InternalCollateralAllocator.Reservation> reservations, AllocationListener listener) {
+        cellAvailable[r][t] = cellAvailable[r][t].subtract(value);
+        for (int i : cellBonds.get(r).get(t)) {
+            if (value.signum() <= 0) break;
+            if (remaining[i].signum() <= 0) continue;
+            Bond bond = bonds.get(i);
+            BigDecimal applied = remaining[i].min(value);
+            remaining[i] = remaining[i].subtract(applied);
+            value = value.subtract(applied);
+
+            deal.addToRatingFulfilled(bond.getCreditRating(), applied);
+            deal.addToTypeFulfilled(bond.getType(), applied);
+            deal.subtractFromShortfall(applied);
+            reservations.add(new InternalCollateralAllocator.Reservation(bond, applied));
+            listener.onReservation(deal, bond, applied);
+        }
+    }
+
+    /**
+     * A solved flow and the arcs of each cell's two sources, {@code -1}
+     * where a cell has none.
+     */
+    private static final class Attempt {
+        final MinCostFlow network;
+        final int[][] inventoryArcs;
+        final int[][] marketArcs;
+
+        Attempt(MinCostFlow network, int ratings, int types) {
+            this.network = network;
+            this.inventoryArcs = new int[ratings][types];
+            this.marketArcs = new int[ratings][types];
+            for (int r = 0; r < ratings; r++) {
+                Arrays.fill(inventoryArcs[r], -1);
+                Arrays.fill(marketArcs[r], -1);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package core;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small min-cost flow network with exact amounts, solved by successive
+ * shortest paths.
+ * <p>
+ * Each arc has a capacity (or none), a cost per unit and a priority per
+ * unit. Paths are ordered by priority first and cost second, so arcs with a
+ * negative priority are filled before any cost is considered. A minimum is
+ * modelled as an arc of that capacity with priority -1 in parallel with an
+ * unbounded arc of priority 0; once the whole amount is sent, the minimum is
+ * met exactly when its arc is saturated, and among the flows that meet the
+ * most minimums the cheapest is found. Amounts stay exact, since every
+ * augmentation only adds and subtracts amounts already in play.
+ * <p>
+ * The networks built here have a handful of nodes, so paths are found with
+ * Bellman-Ford.
+ */
+final class MinCostFlow {
+
+    private static final int MAX_AUGMENTATIONS = 10_000;
+
+    private final int nodes;
+    private final List<Arc> arcs = new ArrayList<>();
+
+    /**
+     * @param nodes the number of nodes, numbered from zero
+     */
+    MinCostFlow(int nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * @param capacity the capacity, or {@code null} for unbounded
+     * @return the arc's index, for {@link #flow} and {@link #isSaturated}
+     */
+    int addArc(int from, int to, BigDecimal capacity, int priority, BigDecimal cost) {
+        arcs.add(new Arc(from, to, capacity, priority, cost));
+        return arcs.size() - 1;
+    }
+
+    /**
+     * Sends up to {@code amount} from {@code source} to {@code sink} along
+     * the best paths.
+     *
+     * @return the amount sent; less than {@code amount} if the network
+     * cannot carry it all
+     */
+    BigDecimal send(int source, int sink, BigDecimal amount) {
+        BigDecimal left = amount;
+        for (int augmentations = 0; left.signum() > 0; augmentations++) {
+            if (augmentations == MAX_AUGMENTATIONS) {
+                throw new IllegalStateException("Min-cost flow did not converge");
+            }
+            Arc[] via = shortestPath(source);
+            if (via[sink] == null) {
+                break;
+            }
+            BigDecimal step = left;
+            for (int node = sink; node != source; node = via[node].tail(node)) {
+                BigDecimal residual = via[node].residual(node);
+                if (residual != null) {
+                    step = step.min(residual);
+                }
+            }
+            for (int node = sink; node != source; node = via[node].tail(node)) {
+                via[node].push(node, step);
+            }
+            left = left.subtract(step);
+        }
+        return amount.subtract(left);
+    }
+
+    BigDecimal flow(int arc) {
+        return arcs.get(arc).flow;
+    }
+
+    boolean isSaturated(int arc) {
+        Arc a = arcs.get(arc);
+        return a.capacity != null && a.flow.compareTo(a.capacity) >= 0;
+    }
+
+    /**
+     * Bellman-Ford over the residual arcs. Returns, for each node, the arc
+     * used to reach it.
+     */
+    private Arc[] shortestPath(int source) {
+        int[] priority = new int[nodes];
+        BigDecimal[] cost = new BigDecimal[nodes];
+        Arc[] via = new Arc[nodes];
+        cost[source] = BigDecimal.ZERO;
+        for (int round = 0; round < nodes; round++) {
+            boolean changed = false;
+            for (Arc arc : arcs) {
+                if (cost[arc.from] != null && (arc.capacity == null || arc.flow.compareTo(arc.capacity) < 0)) {
+                    changed |= relax(priority, cost, via, arc, arc.to,
+                            priority[arc.from] + arc.priority, cost[arc.from].add(arc.cost));
+                }
+                if (cost[arc.to] != null && arc.flow.signum() > 0) {
+                    changed |= relax(priority, cost, via, arc, arc.from,
+                            priority[arc.to] - arc.priority, cost[arc.to].subtract(arc.cost));
+                }
+            }
+            if (!changed) break;
+        }
+        return via;
+    }
+
+    private static boolean relax(int[] priority, BigDecimal[] cost, Arc[] via, Arc arc, int node,
+            int newPriority, BigDecimal newCost) {
+        if (cost[node] != null && (newPriority > priority[node]
+                || newPriority == priority[node] && newCost.compareTo(cost[node]) >= 0)) {
+            return false;
+        }
+        priority[node] = newPriority;
+        cost[node] = newCost;
+        via[node] = arc;
+        return true;
+    }
+
+    /**
+     * An arc of the network with its current flow.
+     */
+    private static final class Arc {
+        final int from;
+        final int to;
+        final BigDecimal capacity;
+        final int priority;
+        final BigDecimal cost;
+        BigDecimal flow = BigDecimal.ZERO;
+
+        Arc(int from, int to, BigDecimal capacity, int priority, BigDecimal cost) {
+            this.from = from;
+            this.to = to;
+            this.capacity = capacity;
+            this.priority = priority;
+            this.cost = cost;
+        }
+
+        /** The node the path left to reach {@code head} over this arc. */
+        int tail(int head) {
+            return head == to ? from : to;
+        }
+
+        /** The residual capacity towards {@code head}, {@code null} if unbounded. */
+        BigDecimal residual(int head) {
+            if (head == from) {
+                return flow;
+            }
+            return capacity == null ? null : capacity.subtract(flow);
+        }
+
+        void push(int head, BigDecimal amount) {
+            flow = head == to ? flow.add(amount) : flow.subtract(amount);
+        }
+    }
+}
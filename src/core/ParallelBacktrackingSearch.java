@@ -0,0 +1,269 @@
+package core;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+
+/**
+ * Parallel version of the backtracking fallback in {@link AllocationEngine}.
+ * <p>
+ * The search explores the same tree as {@code AllocationEngine.backtrack}:
+ * each bond in market order is given 0-100% of the deal in 20% steps until the
+ * deal is covered. The top {@code splitDepth} levels of the tree are split into
+ * fork/join tasks; below that each task searches sequentially. All tasks share
+ * the best solution found so far through an atomic incumbent and prune any
+ * branch whose cost, plus the cheapest possible way to fill the rest, exceeds
+ * it.
+ * <p>
+ * Ties on cost are broken by the order in which the sequential search visits
+ * solutions, so the result is the same as the sequential search and does not
+ * depend on the number of threads or on task scheduling.
+ */
+public class ParallelBacktrackingSearch {
+
+    /** Number of 20% steps that make up a whole deal. */
+    private static final int STEPS = 5;
+
+    /** Default number of tree levels split into separate tasks. */
+    public static final int DEFAULT_SPLIT_DEPTH = 3;
+
+    private final List<PossibleBorrowedBond> market;
+    private final int splitDepth;
+    private final BigDecimal step;
+    private final BigDecimal[][] stepCost;
+    private final BigDecimal[] suffixMinStepCost;
+    private final int[] bondRating;
+    private final int[] bondType;
+    private final int[] ratingStepsRequired;
+    private final int[] typeStepsRequired;
+    private final AtomicReference<Incumbent> incumbent = new AtomicReference<>();
+
+    private ParallelBacktrackingSearch(RepoDeal deal, List<PossibleBorrowedBond> market, int splitDepth) {
+        this.market = market;
+        this.splitDepth = splitDepth;
+
+        BigDecimal totalRequired = deal.getTotalValueRequired();
+        this.step = totalRequired.multiply(BigDecimal.valueOf(0.20));
+
+        int n = market.size();
+        this.stepCost = new BigDecimal[n][STEPS + 1];
+        this.suffixMinStepCost = new BigDecimal[n + 1];
+        suffixMinStepCost[n] = null;
+        for (int i = n - 1; i >= 0; i--) {
+            BigDecimal rate = market.get(i).getBorrowRate().divide(BigDecimal.valueOf(100));
+            BigDecimal amt = BigDecimal.ZERO;
+            stepCost[i][0] = BigDecimal.ZERO;
+            for (int k = 1; k <= STEPS; k++) {
+                amt = amt.add(step);
+                stepCost[i][k] = rate.multiply(amt);
+            }
+            BigDecimal next = suffixMinStepCost[i + 1];
+            suffixMinStepCost[i] = next == null ? stepCost[i][1] : next.min(stepCost[i][1]);
+        }
+
+        Map<String, Integer> ratingIndex = new HashMap<>();
+        Map<String, Integer> typeIndex = new HashMap<>();
+        this.ratingStepsRequired = requiredSteps(deal.getRatingRequirements(), totalRequired, ratingIndex);
+        this.typeStepsRequired = requiredSteps(deal.getTypeRequirements(), totalRequired, typeIndex);
+        this.bondRating = new int[n];
+        this.bondType = new int[n];
+        for (int i = 0; i < n; i++) {
+            bondRating[i] = ratingIndex.getOrDefault(market.get(i).getCreditRating(), -1);
+            bondType[i] = typeIndex.getOrDefault(market.get(i).getBondType(), -1);
+        }
+    }
+
+    /**
+     * Searches for the cheapest valid allocation of {@code deal} using the
+     * default split depth.
+     *
+     * @param deal the deal to allocate
+     * @param market the borrow market, in search order
+     * @param pool the pool to run the search in
+     * @return the allocations of the best solution, or an empty list if there
+     * is none
+     */
+    public static List<Allocation> search(RepoDeal deal, List<PossibleBorrowedBond> market, ForkJoinPool pool) {
+        return search(deal, market, pool, DEFAULT_SPLIT_DEPTH);
+    }
+
+    /**
+     * Searches for the cheapest valid allocation of {@code deal}.
+     *
+     * @param deal the deal to allocate
+     * @param market the borrow market, in search order
+     * @param pool the pool to run the search in
+     * @param splitDepth number of tree levels split into separate tasks
+     * @return the allocations of the best solution, or an empty list if there
+     * is none
+     */
+    public static List<Allocation> search(RepoDeal deal, List<PossibleBorrowedBond> market, ForkJoinPool pool,
+            int splitDepth) {
+        ParallelBacktrackingSearch search = new ParallelBacktrackingSearch(deal, market, splitDepth);
+        if (deal.getTotalValueRequired().compareTo(BigDecimal.ZERO) <= 0) {
+            return new ArrayList<>();
+        }
+
+        pool.invoke(search.new SearchTask(0, new int[market.size()], STEPS, BigDecimal.ZERO));
+
+        List<Allocation> result = new ArrayList<>();
+        Incumbent best = search.incumbent.get();
+        if (best == null) {
+            return result;
+        }
+        for (int i = 0; i < best.steps.length; i++) {
+            if (best.steps[i] > 0) {
+                PossibleBorrowedBond bond = market.get(i);
+                result.add(new Allocation(bond, search.step.multiply(BigDecimal.valueOf(best.steps[i])),
+                        Set.of(bond.getBondType(), bond.getCreditRating())));
+            }
+        }
+        return result;
+    }
+
+    private static int[] requiredSteps(Map<String, BigDecimal> requirements, BigDecimal totalRequired,
+            Map<String, Integer> index) {
+        int[] required = new int[requirements.size()];
+        BigDecimal step = totalRequired.multiply(BigDecimal.valueOf(0.20));
+        int i = 0;
+        for (Map.Entry<String, BigDecimal> req : requirements.entrySet()) {
+            BigDecimal value = totalRequired.multiply(req.getValue()).divide(BigDecimal.valueOf(100));
+            int k = 0;
+            BigDecimal covered = BigDecimal.ZERO;
+            while (covered.compareTo(value) < 0 && k <= STEPS) {
+                covered = covered.add(step);
+                k++;
+            }
+            required[i] = k;
+            index.put(req.getKey(), i++);
+        }
+        return required;
+    }
+
+    private void searchSequential(int index, int[] steps, int remaining, BigDecimal cost) {
+        if (remaining == 0) {
+            if (isValid(steps)) {
+                offer(cost, steps);
+            }
+            return;
+        }
+        if (index >= market.size() || cannotBeat(index, remaining, cost)) {
+            return;
+        }
+
+        for (int k = 0; k <= remaining; k++) {
+            steps[index] = k;
+            searchSequential(index + 1, steps, remaining - k, k == 0 ? cost : cost.add(stepCost[index][k]));
+        }
+        steps[index] = 0;
+    }
+
+    private boolean cannotBeat(int index, int remaining, BigDecimal cost) {
+        Incumbent best = incumbent.get();
+        if (best == null) {
+            return false;
+        }
+        BigDecimal bound = cost.add(suffixMinStepCost[index].multiply(BigDecimal.valueOf(remaining)));
+        return bound.compareTo(best.cost) > 0;
+    }
+
+    private boolean isValid(int[] steps) {
+        int[] ratingSteps = new int[ratingStepsRequired.length];
+        int[] typeSteps = new int[typeStepsRequired.length];
+        for (int i = 0; i < steps.length; i++) {
+            if (steps[i] == 0) continue;
+            if (bondRating[i] >= 0) ratingSteps[bondRating[i]] += steps[i];
+            if (bondType[i] >= 0) typeSteps[bondType[i]] += steps[i];
+        }
+        for (int r = 0; r < ratingSteps.length; r++) {
+            if (ratingSteps[r] < ratingStepsRequired[r]) return false;
+        }
+        for (int t = 0; t < typeSteps.length; t++) {
+            if (typeSteps[t] < typeStepsRequired[t]) return false;
+        }
+        return true;
+    }
+
+    private void offer(BigDecimal cost, int[] steps) {
+        Incumbent candidate = null;
+        while (true) {
+            Incumbent best = incumbent.get();
+            if (best != null && !isBetter(cost, steps, best)) {
+                return;
+            }
+            if (candidate == null) {
+                candidate = new Incumbent(cost, steps.clone());
+            }
+            if (incumbent.compareAndSet(best, candidate)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Lower cost wins; on equal cost the solution the sequential search would
+     * reach first (lexicographically smallest step vector) wins.
+     */
+    private static boolean isBetter(BigDecimal cost, int[] steps, Incumbent best) {
+        int byCost = cost.compareTo(best.cost);
+        if (byCost != 0) {
+            return byCost < 0;
+        }
+        return Arrays.compare(steps, best.steps) < 0;
+    }
+
+    private static final class Incumbent {
+        final BigDecimal cost;
+        final int[] steps;
+
+        Incumbent(BigDecimal cost, int[] steps) {
+            this.cost = cost;
+            this.steps = steps;
+        }
+    }
+
+    private final class SearchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+        private final int[] steps;
+        private final int remaining;
+        private final BigDecimal cost;
+
+        SearchTask(int index, int[] steps, int remaining, BigDecimal cost) {
+            this.index = index;
+            this.steps = steps;
+            this.remaining = remaining;
+            this.cost = cost;
+        }
+
+        @Override
+        protected void compute() {
+            if (index >= splitDepth || remaining == 0 || index >= market.size()) {
+                searchSequential(index, steps, remaining, cost);
+                return;
+            }
+            if (cannotBeat(index, remaining, cost)) {
+                return;
+            }
+
+            List<SearchTask> children = new ArrayList<>(remaining + 1);
+            for (int k = 0; k <= remaining; k++) {
+                int[] childSteps = steps.clone();
+                childSteps[index] = k;
+                children.add(new SearchTask(index + 1, childSteps, remaining - k,
+                        k == 0 ? cost : cost.add(stepCost[index][k])));
+            }
+            invokeAll(children);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package core;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+
+/**
+ * The borrow market indexed by rating and type: for every combination that
+ * is offered, the cheapest bond (the first one in market order on ties, as
+ * the greedy strategy picks), plus the cheapest rate per rating, per type and
+ * overall. Ratings and types are matched ignoring case. Building the grid is
+ * one pass over the market; after that everything a deal needs is a walk
+ * over at most ratings × types cells, whatever the size of the market.
+ * <p>
+ * Pricing a deal against the grid is a small linear program: choose an
+ * amount per cell so the amounts add up to the deal total and every rating
+ * and type minimum is met, at the least cost. Any allocation the engine
+ * returns is one such choice, so the program's optimum is a lower bound on
+ * every strategy's cost. {@link #lowerBound} gives a cheap bound on it from a
+ * feasible dual solution; {@link #solve} finds it exactly.
+ * <p>
+ * Only the six ratings the greedy strategy knows are treated as
+ * requirements; it ignores any other rating, so they cannot bound its cost.
+ * <p>
+ * {@link #of} reuses the grid last built for the same market list, so
+ * callers pricing one deal at a time do not re-index the market per deal. A
+ * market list must therefore not be modified in place between calls; pass a
+ * new list when the market changes.
+ */
+public final class RateGrid {
+
+    private static final BigDecimal HUNDRED = BigDecimal.valueOf(100);
+    private static final List<String> RATINGS = List.of("B", "BB", "BBB", "A", "AA", "AAA");
+
+    private static volatile Cached last;
+
+    private final List<String> ratings = new ArrayList<>();
+    private final List<String> types = new ArrayList<>();
+    private final Map<String, Integer> ratingIndex = new HashMap<>();
+    private final Map<String, Integer> typeIndex = new HashMap<>();
+    private final PossibleBorrowedBond[][] cellBond;
+    private final BigDecimal[][] cellRate;
+    private final BigDecimal[] ratingRate;
+    private final BigDecimal[] typeRate;
+    private BigDecimal cheapest;
+    private BigDecimal dearest;
+
+    /**
+     * @param market the borrow market
+     */
+    public RateGrid(List<PossibleBorrowedBond> market) {
+        for (PossibleBorrowedBond bond : market) {
+            index(ratings, ratingIndex, bond.getCreditRating());
+            index(types, typeIndex, bond.getBondType());
+        }
+        cellBond = new PossibleBorrowedBond[ratings.size()][types.size()];
+        cellRate = new BigDecimal[ratings.size()][types.size()];
+        ratingRate = new BigDecimal[ratings.size()];
+        typeRate = new BigDecimal[types.size()];
+        for (PossibleBorrowedBond bond : market) {
+            int r = ratingIndex.get(bond.getCreditRating().toUpperCase(Locale.ROOT));
+            int t = typeIndex.get(bond.getBondType().toUpperCase(Locale.ROOT));
+            BigDecimal rate = bond.getBorrowRate().divide(HUNDRED);
+            if (cellRate[r][t] == null || rate.compareTo(cellRate[r][t]) < 0) {
+                cellRate[r][t] = rate;
+                cellBond[r][t] = bond;
+            }
+            ratingRate[r] = ratingRate[r] == null ? rate : ratingRate[r].min(rate);
+            typeRate[t] = typeRate[t] == null ? rate : typeRate[t].min(rate);
+            cheapest = cheapest == null ? rate : cheapest.min(rate);
+            dearest = dearest == null ? rate : dearest.max(rate);
+        }
+    }
+
+    /**
+     * Returns the grid of {@code market}, building it only when the market
+     * differs from the one passed last.
+     *
+     * @param market the borrow market
+     * @return the market's grid
+     */
+    public static RateGrid of(List<PossibleBorrowedBond> market) {
+        Cached cached = last;
+        if (cached == null || cached.market != market || cached.size != market.size()) {
+            cached = new Cached(market, market.size(), new RateGrid(market));
+            last = cached;
+        }
+        return cached.grid;
+    }
+
+    private static void index(List<String> names, Map<String, Integer> index, String name) {
+        String key = name.toUpperCase(Locale.ROOT);
+        if (!index.containsKey(key)) {
+            index.put(key, names.size());
+            names.add(key);
+        }
+    }
+
+    /**
+     * @return true if the market has no bonds
+     */
+    public boolean isEmpty() {
+        return cheapest == null;
+    }
+
+    /**
+     * @return the cheapest rate in the market as a fraction, or {@code null}
+     * if it is empty
+     */
+    public BigDecimal getCheapest() {
+        return cheapest;
+    }
+
+    /**
+     * @return the dearest rate in the market as a fraction, or {@code null}
+     * if it is empty
+     */
+    public BigDecimal getDearest() {
+        return dearest;
+    }
+
+    /**
+     * @param rating a credit rating, in any case
+     * @return the cheapest rate for the rating as a fraction, or {@code null}
+     * if no bond has it
+     */
+    public BigDecimal getCheapestForRating(String rating) {
+        Integer r = ratingIndex.get(rating.toUpperCase(Locale.ROOT));
+        return r == null ? null : ratingRate[r];
+    }
+
+    /**
+     * @param type a bond type, in any case
+     * @return the cheapest rate for the type as a fraction, or {@code null} if
+     * no bond has it
+     */
+    public BigDecimal getCheapestForType(String type) {
+        Integer t = typeIndex.get(type.toUpperCase(Locale.ROOT));
+        return t == null ? null : typeRate[t];
+    }
+
+    /**
+     * A lower bound on the cost of any allocation that meets the deal's
+     * minimums and allocates exactly its total.
+     * <p>
+     * The bound is the value of a feasible dual solution: a price {@code g}
+     * per unit allocated, a premium per unit of each rating minimum and a
+     * premium per unit of each type minimum, such that no cell costs less
+     * than {@code g} plus its rating and type premiums. {@code g} is the
+     * cheapest rate in the market. The rating premiums are set first, to
+     * what the cheapest bond of each required rating costs over {@code g};
+     * each required type then gets the largest premium its cells still
+     * allow. The same is done with types first, and the larger of the two
+     * values is returned. Ratings and types with no minimum get no premium,
+     * which leaves more room for the others. This is never weaker than
+     * pricing the rating minimums, or the type minimums, alone at their
+     * cheapest rates.
+     *
+     * @param deal the deal
+     * @return the bound, or zero if the market is empty
+     */
+    public BigDecimal lowerBound(RepoDeal deal) {
+        if (isEmpty()) {
+            return BigDecimal.ZERO;
+        }
+        Minimums minimums = minimums(deal);
+        return dual(minimums, true).max(dual(minimums, false));
+    }
+
+    private BigDecimal dual(Minimums minimums, boolean ratingsFirst) {
+        BigDecimal[] ratingPremium = new BigDecimal[ratings.size()];
+        BigDecimal[] typePremium = new BigDecimal[types.size()];
+        if (ratingsFirst) {
+            for (int r = 0; r < ratings.size(); r++) {
+                ratingPremium[r] = minimums.rating[r].signum() > 0 ? ratingRate[r].subtract(cheapest) : BigDecimal.ZERO;
+            }
+            for (int t = 0; t < types.size(); t++) {
+                BigDecimal premium = null;
+                if (minimums.type[t].signum() > 0) {
+                    for (int r = 0; r < ratings.size(); r++) {
+                        if (cellRate[r][t] == null) continue;
+                        BigDecimal slack = cellRate[r][t].subtract(cheapest).subtract(ratingPremium[r]);
+                        premium = premium == null ? slack : premium.min(slack);
+                    }
+                }
+                typePremium[t] = premium == null ? BigDecimal.ZERO : premium;
+            }
+        } else {
+            for (int t = 0; t < types.size(); t++) {
+                typePremium[t] = minimums.type[t].signum() > 0 ? typeRate[t].subtract(cheapest) : BigDecimal.ZERO;
+            }
+            for (int r = 0; r < ratings.size(); r++) {
+                BigDecimal premium = null;
+                if (minimums.rating[r].signum() > 0) {
+                    for (int t = 0; t < types.size(); t++) {
+                        if (cellRate[r][t] == null) continue;
+                        BigDecimal slack = cellRate[r][t].subtract(cheapest).subtract(typePremium[t]);
+                        premium = premium == null ? slack : premium.min(slack);
+                    }
+                }
+                ratingPremium[r] = premium == null ? BigDecimal.ZERO : premium;
+            }
+        }
+
+        BigDecimal bound = cheapest.multiply(minimums.total);
+        for (int r = 0; r < ratings.size(); r++) {
+            bound = bound.add(ratingPremium[r].multiply(minimums.rating[r]));
+        }
+        for (int t = 0; t < types.size(); t++) {
+            bound = bound.add(typePremium[t].multiply(minimums.type[t]));
+        }
+        return bound;
+    }
+
+    /**
+     * Finds the cheapest allocation of the deal's total over the grid's
+     * cells that meets every rating and type minimum, or shows there is none.
+     * <p>
+     * The program is solved as a {@link MinCostFlow}: the total flows from a
+     * source through a rating node and a cell into a type node and on to the
+     * sink, with each minimum on the arc into or out of its node. The deal is
+     * infeasible if, with the whole total sent, some minimum is still short.
+     *
+     * @param deal the deal
+     * @return one allocation per cell used, from the cheapest bond of the
+     * cell, or {@code null} if no allocation meets the deal's minimums
+     */
+    public List<Allocation> solve(RepoDeal deal) {
+        Minimums minimums = minimums(deal);
+        if (isEmpty() || minimums.missing) {
+            return null;
+        }
+
+        int source = 0;
+        int sink = ratings.size() + types.size() + 1;
+        MinCostFlow network = new MinCostFlow(sink + 1);
+        List<Integer> minimumArcs = new ArrayList<>();
+        int[][] cellArcs = new int[ratings.size()][types.size()];
+        for (int r = 0; r < ratings.size(); r++) {
+            if (minimums.rating[r].signum() > 0) {
+                minimumArcs.add(network.addArc(source, 1 + r, minimums.rating[r], -1, BigDecimal.ZERO));
+            }
+            network.addArc(source, 1 + r, null, 0, BigDecimal.ZERO);
+            for (int t = 0; t < types.size(); t++) {
+                cellArcs[r][t] = cellRate[r][t] == null ? -1
+                        : network.addArc(1 + r, 1 + ratings.size() + t, null, 0, cellRate[r][t]);
+            }
+        }
+        for (int t = 0; t < types.size(); t++) {
+            if (minimums.type[t].signum() > 0) {
+                minimumArcs.add(network.addArc(1 + ratings.size() + t, sink, minimums.type[t], -1, BigDecimal.ZERO));
+            }
+            network.addArc(1 + ratings.size() + t, sink, null, 0, BigDecimal.ZERO);
+        }
+
+        if (network.send(source, sink, minimums.total).compareTo(minimums.total) < 0) {
+            return null;
+        }
+        for (int arc : minimumArcs) {
+            if (!network.isSaturated(arc)) {
+                return null;
+            }
+        }
+
+        List<Allocation> allocations = new ArrayList<>();
+        for (int r = 0; r < ratings.size(); r++) {
+            for (int t = 0; t < types.size(); t++) {
+                if (cellArcs[r][t] < 0) continue;
+                BigDecimal amount = network.flow(cellArcs[r][t]);
+                if (amount.signum() > 0) {
+                    PossibleBorrowedBond bond = cellBond[r][t];
+                    allocations.add(new Allocation(bond, amount, Set.of(bond.getCreditRating(), bond.getBondType())));
+                }
+            }
+        }
+        return allocations;
+    }
+
+    /**
+     * Prices a deal at the grid optimum found by {@link #solve}, reporting
+     * each allocation and the total to {@code listener} under
+     * {@link AllocationStrategy#EXACT}.
+     *
+     * @param deal the deal to price
+     * @param listener receives the allocations
+     * @return the total borrow cost
+     * @throws UnfulfillableConstraintException if no allocation meets the
+     * deal's minimums, after reporting the failure to {@code listener}
+     */
+    public BigDecimal price(RepoDeal deal, AllocationListener listener) {
+        List<Allocation> exact = solve(deal);
+        if (exact == null) {
+            listener.onStrategyFailed(deal, AllocationStrategy.EXACT, "no valid allocation exists");
+            throw new UnfulfillableConstraintException("Exact solve failed: no valid allocation exists.");
+        }
+        BigDecimal cost = BigDecimal.ZERO;
+        for (Allocation allocation : exact) {
+            cost = cost.add(allocation.rate.divide(HUNDRED).multiply(allocation.amount));
+            listener.onAllocation(deal, allocation, AllocationStrategy.EXACT);
+        }
+        listener.onDealPriced(deal, cost, AllocationStrategy.EXACT);
+        return cost;
+    }
+
+    private Minimums minimums(RepoDeal deal) {
+        Minimums minimums = new Minimums(deal.getTotalValueRequired(), ratings.size(), types.size());
+        for (Map.Entry<String, BigDecimal> req : deal.getRatingRequirements().entrySet()) {
+            String rating = req.getKey().toUpperCase(Locale.ROOT);
+            if (!RATINGS.contains(rating)) continue;
+            minimums.require(ratingIndex.get(rating), minimums.rating, req.getValue());
+        }
+        for (Map.Entry<String, BigDecimal> req : deal.getTypeRequirements().entrySet()) {
+            minimums.require(typeIndex.get(req.getKey().toUpperCase(Locale.ROOT)), minimums.type, req.getValue());
+        }
+        return minimums;
+    }
+
+    /**
+     * A deal's minimums by grid index, as amounts rather than percents. A
+     * positive minimum for a rating or type the market does not offer makes
+     * the deal infeasible.
+     */
+    private static final class Minimums {
+        final BigDecimal total;
+        final BigDecimal[] rating;
+        final BigDecimal[] type;
+        boolean missing;
+
+        Minimums(BigDecimal total, int ratings, int types) {
+            this.total = total;
+            this.rating = filled(ratings);
+            this.type = filled(types);
+        }
+
+        void require(Integer index, BigDecimal[] amounts, BigDecimal percent) {
+            BigDecimal needed = total.multiply(percent).divide(HUNDRED);
+            if (needed.signum() <= 0) return;
+            if (index == null) {
+                missing = true;
+            } else {
+                amounts[index] = amounts[index].max(needed);
+            }
+        }
+
+        private static BigDecimal[] filled(int size) {
+            BigDecimal[] amounts = new BigDecimal[size];
+            Arrays.fill(amounts, BigDecimal.ZERO);
+            return amounts;
+        }
+    }
+
+    /**
+     * The grid last returned by {@link #of} and the market it was built for.
+     */
+    private record Cached(List<PossibleBorrowedBond> market, int size, RateGrid grid) {
+    }
+}
@@ -0,0 +1,358 @@
+package core;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+
+/**
+ * Allocation-free version of
+ * {@link AllocationEngine#calculateLowToHighRatingStrategy}.
+ * <p>
+ * Amounts, rates and costs are handled as scaled {@code long}s in per-thread
+ * scratch buffers, and results go straight to a caller-supplied
+ * {@link Sink}. Once the borrow market has been indexed and the code is
+ * warmed up, pricing a deal allocates nothing, which keeps young-GC churn
+ * down on large books.
+ * <p>
+ * Results are exactly those of the {@code BigDecimal} strategy. Deals that
+ * cannot be represented exactly in the fixed scales below (for example a
+ * requirement with more than two decimal places), or that have rating or type
+ * keys outside the standard sets, are reported as {@link Outcome#UNSUPPORTED}
+ * so the caller can use the general strategy instead.
+ * <p>
+ * The market is indexed on first use and re-indexed whenever a different
+ * list is passed in. A market list must therefore not be modified in place
+ * between calls; pass a new list when the market changes.
+ */
+public final class ScratchGreedyPricer {
+
+    /** Scale of amounts passed to the sink: cents. */
+    public static final int AMOUNT_SCALE = 2;
+    /** Scale of borrow rates, which are in percent. */
+    public static final int RATE_SCALE = 4;
+    /** Scale of costs passed to the sink, in dollars. */
+    public static final int COST_SCALE = AMOUNT_SCALE + RATE_SCALE + 2;
+
+    private static final long NOT_REPRESENTABLE = Long.MIN_VALUE;
+    private static final String[] RATING_ORDER = {"B", "BB", "BBB", "A", "AA", "AAA"};
+    private static final String[] TYPE_ORDER = typeOrder();
+    private static final int MAX_ALLOCATIONS = RATING_ORDER.length + TYPE_ORDER.length + 1;
+    private static final long[] POW10 = new long[19];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * The result of pricing one deal.
+     */
+    public enum Outcome {
+        /** The deal was priced and its allocations sent to the sink. */
+        PRICED,
+        /** The greedy allocation breaks the deal's constraints. */
+        CONSTRAINTS_UNMET,
+        /** The deal or market cannot be priced exactly on this path. */
+        UNSUPPORTED
+    }
+
+    /**
+     * Receives the result of a successfully priced deal.
+     */
+    public interface Sink {
+
+        /**
+         * Called for each allocation, in the same order as the general
+         * strategy produces them.
+         *
+         * @param deal the deal being priced
+         * @param bond the borrowed bond
+         * @param amount the amount borrowed, scaled by {@link #AMOUNT_SCALE}
+         * @param rating the rating minimum this covers, or {@code null}
+         * @param type the type minimum this covers, or {@code null}
+         */
+        void onAllocation(RepoDeal deal, PossibleBorrowedBond bond, long amount, String rating, String type);
+
+        /**
+         * Called once after the deal's allocations.
+         *
+         * @param deal the deal that was priced
+         * @param totalCost the total borrow cost, scaled by
+         * {@link #COST_SCALE}
+         */
+        void onDealPriced(RepoDeal deal, long totalCost);
+    }
+
+    private ScratchGreedyPricer() {
+    }
+
+    /**
+     * Prices a deal with the low-to-high rating greedy strategy.
+     *
+     * @param deal the deal to price
+     * @param market the borrow market
+     * @param sink receives the allocations if the outcome is
+     * {@link Outcome#PRICED}
+     * @return the outcome
+     * @throws IllegalArgumentException if the market has no bond for a
+     * required rating or type
+     */
+    public static Outcome price(RepoDeal deal, List<PossibleBorrowedBond> market, Sink sink) {
+        Scratch s = SCRATCH.get();
+        if (!s.index(market)) {
+            return Outcome.UNSUPPORTED;
+        }
+
+        long total = scaled(deal.getTotalValueRequired(), AMOUNT_SCALE);
+        if (total == NOT_REPRESENTABLE
+                || !requirements(deal.getRatingRequirements(), RATING_ORDER, total, s.ratingLeft)
+                || !requirements(deal.getTypeRequirements(), TYPE_ORDER, total, s.typeLeft)) {
+            return Outcome.UNSUPPORTED;
+        }
+
+        s.count = 0;
+        long cost = 0;
+        long remaining = total;
+
+        for (int r = 0; r < RATING_ORDER.length; r++) {
+            long needed = s.ratingLeft[r];
+            if (needed <= 0) continue;
+
+            PossibleBorrowedBond bond = s.cheapestByRating[r];
+            if (bond == null) {
+                throw new IllegalArgumentException("No bond found for rating: " + RATING_ORDER[r]);
+            }
+            cost = addCost(cost, needed, s.rateByRating[r]);
+            remaining -= needed;
+            s.ratingLeft[r] = 0;
+
+            int t = s.typeOfCheapestByRating[r];
+            if (t >= 0 && s.typeLeft[t] > 0) {
+                s.typeLeft[t] = Math.max(s.typeLeft[t] - needed, 0);
+            }
+            s.record(bond, needed, RATING_ORDER[r], bond.getBondType());
+        }
+
+        for (int t = 0; t < TYPE_ORDER.length; t++) {
+            long typeNeed = s.typeLeft[t];
+            if (typeNeed <= 0) continue;
+
+            PossibleBorrowedBond bond = s.cheapestByType[t];
+            if (bond == null) {
+                throw new IllegalArgumentException("No bond found for type: " + TYPE_ORDER[t]);
+            }
+            cost = addCost(cost, typeNeed, s.rateByType[t]);
+            remaining -= typeNeed;
+            s.typeLeft[t] = 0;
+            s.record(bond, typeNeed, null, TYPE_ORDER[t]);
+        }
+
+        if (remaining > 0) {
+            if (s.cheapest == null) {
+                throw new IllegalArgumentException("Borrow market is empty");
+            }
+            cost = addCost(cost, remaining, s.cheapestRate);
+            s.record(s.cheapest, remaining, null, null);
+        }
+
+        // Every rating and type minimum has been zeroed above, so the only
+        // way to break the constraints is to over-allocate.
+        if (remaining < 0) {
+            return Outcome.CONSTRAINTS_UNMET;
+        }
+        if (cost == NOT_REPRESENTABLE) {
+            return Outcome.UNSUPPORTED;
+        }
+
+        for (int i = 0; i < s.count; i++) {
+            sink.onAllocation(deal, s.bonds[i], s.amounts[i], s.ratings[i], s.types[i]);
+        }
+        sink.onDealPriced(deal, cost);
+        return Outcome.PRICED;
+    }
+
+    /**
+     * Fills {@code left} with the scaled amount required for each key, in
+     * {@code order}. Returns false if a requirement is not representable or
+     * the map has keys outside {@code order}.
+     */
+    private static boolean requirements(Map<String, BigDecimal> requirements, String[] order, long total,
+            long[] left) {
+        int known = 0;
+        for (int i = 0; i < order.length; i++) {
+            BigDecimal percent = requirements.get(order[i]);
+            if (percent == null) {
+                left[i] = 0;
+                continue;
+            }
+            known++;
+            long pct = scaled(percent, 2);
+            long product = multiply(total, pct);
+            if (pct == NOT_REPRESENTABLE || product == NOT_REPRESENTABLE || product % 10_000 != 0) {
+                return false;
+            }
+            left[i] = product / 10_000;
+        }
+        return known == requirements.size();
+    }
+
+    private static long addCost(long cost, long amount, long rate) {
+        if (cost == NOT_REPRESENTABLE) {
+            return cost;
+        }
+        long product = multiply(amount, rate);
+        if (product == NOT_REPRESENTABLE) {
+            return product;
+        }
+        long sum = cost + product;
+        return ((cost ^ sum) & (product ^ sum)) < 0 ? NOT_REPRESENTABLE : sum;
+    }
+
+    private static long multiply(long a, long b) {
+        if (a == NOT_REPRESENTABLE || b == NOT_REPRESENTABLE) {
+            return NOT_REPRESENTABLE;
+        }
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+        if ((high == 0 && low >= 0) || (high == -1 && low < 0)) {
+            return low == NOT_REPRESENTABLE ? NOT_REPRESENTABLE : low;
+        }
+        return NOT_REPRESENTABLE;
+    }
+
+    /**
+     * Converts {@code value} to a long with {@code scale} decimal places.
+     * Integral values, which is what the CSV loaders produce for amounts and
+     * percentages, convert without allocating.
+     */
+    private static long scaled(BigDecimal value, int scale) {
+        if (value.scale() == 0) {
+            if (value.precision() > 18) {
+                return NOT_REPRESENTABLE;
+            }
+            return multiply(value.longValueExact(), POW10[scale]);
+        }
+        BigDecimal stripped = value.stripTrailingZeros();
+        if (stripped.scale() > scale) {
+            return NOT_REPRESENTABLE;
+        }
+        if (stripped.scale() < 0) {
+            stripped = stripped.setScale(0);
+        }
+        if (stripped.unscaledValue().bitLength() > 63) {
+            return NOT_REPRESENTABLE;
+        }
+        return multiply(stripped.unscaledValue().longValue(), POW10[scale - stripped.scale()]);
+    }
+
+    /**
+     * The order in which the general strategy visits type minimums: the
+     * iteration order of the {@code HashMap} it builds from the deal.
+     */
+    private static String[] typeOrder() {
+        Map<String, Boolean> probe = new HashMap<>();
+        for (String type : new String[]{"Municipal", "Sovereign", "Corporate"}) {
+            probe.put(type, Boolean.TRUE);
+        }
+        return probe.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Per-thread working state: the indexed market and the buffers for the
+     * deal being priced.
+     */
+    private static final class Scratch {
+        private List<PossibleBorrowedBond> indexedMarket;
+        private int indexedSize = -1;
+        private boolean supported;
+
+        private final PossibleBorrowedBond[] cheapestByRating = new PossibleBorrowedBond[RATING_ORDER.length];
+        private final long[] rateByRating = new long[RATING_ORDER.length];
+        private final int[] typeOfCheapestByRating = new int[RATING_ORDER.length];
+        private final PossibleBorrowedBond[] cheapestByType = new PossibleBorrowedBond[TYPE_ORDER.length];
+        private final long[] rateByType = new long[TYPE_ORDER.length];
+        private PossibleBorrowedBond cheapest;
+        private long cheapestRate;
+
+        private final long[] ratingLeft = new long[RATING_ORDER.length];
+        private final long[] typeLeft = new long[TYPE_ORDER.length];
+
+        private final PossibleBorrowedBond[] bonds = new PossibleBorrowedBond[MAX_ALLOCATIONS];
+        private final long[] amounts = new long[MAX_ALLOCATIONS];
+        private final String[] ratings = new String[MAX_ALLOCATIONS];
+        private final String[] types = new String[MAX_ALLOCATIONS];
+        private int count;
+
+        void record(PossibleBorrowedBond bond, long amount, String rating, String type) {
+            bonds[count] = bond;
+            amounts[count] = amount;
+            ratings[count] = rating;
+            types[count] = type;
+            count++;
+        }
+
+        /**
+         * Finds the cheapest bond per rating, per type and overall, keeping
+         * the first on ties as {@code Stream.min} does.
+         *
+         * @return false if a rate cannot be represented in
+         * {@link #RATE_SCALE}
+         */
+        boolean index(List<PossibleBorrowedBond> market) {
+            if (market == indexedMarket && market.size() == indexedSize) {
+                return supported;
+            }
+            Arrays.fill(cheapestByRating, null);
+            Arrays.fill(cheapestByType, null);
+            cheapest = null;
+            supported = true;
+
+            for (PossibleBorrowedBond bond : market) {
+                long rate = scaled(bond.getBorrowRate(), RATE_SCALE);
+                if (rate == NOT_REPRESENTABLE) {
+                    supported = false;
+                }
+                for (int r = 0; r < RATING_ORDER.length; r++) {
+                    if (bond.getCreditRating().equalsIgnoreCase(RATING_ORDER[r])
+                            && (cheapestByRating[r] == null || rate < rateByRating[r])) {
+                        cheapestByRating[r] = bond;
+                        rateByRating[r] = rate;
+                    }
+                }
+                for (int t = 0; t < TYPE_ORDER.length; t++) {
+                    if (bond.getBondType().equalsIgnoreCase(TYPE_ORDER[t])
+                            && (cheapestByType[t] == null || rate < rateByType[t])) {
+                        cheapestByType[t] = bond;
+                        rateByType[t] = rate;
+                    }
+                }
+                if (cheapest == null || rate < cheapestRate) {
+                    cheapest = bond;
+                    cheapestRate = rate;
+                }
+            }
+
+            for (int r = 0; r < RATING_ORDER.length; r++) {
+                typeOfCheapestByRating[r] = -1;
+                if (cheapestByRating[r] == null) continue;
+                for (int t = 0; t < TYPE_ORDER.length; t++) {
+                    if (TYPE_ORDER[t].equals(cheapestByRating[r].getBondType())) {
+                        typeOfCheapestByRating[r] = t;
+                    }
+                }
+            }
+
+            indexedMarket = market;
+            indexedSize = market.size();
+            return supported;
+        }
+    }
+}
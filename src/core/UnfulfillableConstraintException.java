@@ -0,0 +1,13 @@
+package core;
+
+/**
+ * Thrown when a pricing strategy cannot produce an allocation that satisfies
+ * a deal's rating and type constraints.
+ */
+public class UnfulfillableConstraintException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public UnfulfillableConstraintException(String message) {
+        super(message);
+    }
+}
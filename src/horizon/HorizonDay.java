@@ -0,0 +1,22 @@
+package horizon;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * The state of the book at the end of one simulated day.
+ *
+ * @param date the day
+ * @param started deals that started and were allocated
+ * @param matured deals that matured and released their collateral
+ * @param active deals live at the end of the day
+ * @param incomplete deals started that day that could not be filled
+ * completely
+ * @param shortfall value missing across all live deals
+ * @param internalInUse internal collateral held by live deals
+ * @param dailyCost borrow cost accrued over the day
+ * @param cumulativeCost borrow cost accrued up to and including the day
+ */
+public record HorizonDay(LocalDate date, int started, int matured, int active, int incomplete,
+        BigDecimal shortfall, BigDecimal internalInUse, BigDecimal dailyCost, BigDecimal cumulativeCost) {
+}
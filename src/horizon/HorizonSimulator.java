@@ -0,0 +1,154 @@
+package horizon;
+
+import core.AllocationListener;
+import core.InternalCollateralAllocator;
+import core.MaxFillAllocator;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import models.Bond;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+
+/**
+ * Replays a book of dated deals day by day against one internal inventory
+ * and borrow market.
+ * <p>
+ * Each day, deals maturing that day release their internal collateral back
+ * to the inventory first, and then the deals starting that day are filled
+ * with {@link MaxFillAllocator}: internal collateral first, then the
+ * cheapest market bonds, as far as supply allows. Deals starting before the
+ * first day start on it, and deals that have matured by then are skipped.
+ * <p>
+ * State carries forward from one day to the next: only the deals starting
+ * or maturing on a day are touched, and the live book's annual borrow cost,
+ * shortfall and internal holdings are kept as running totals. The borrow
+ * cost of a deal is read as an annual cost, accrued at
+ * 1/{@value #DAYS_PER_YEAR} for every day from its start up to, but not
+ * including, its maturity, rounded to cents each day.
+ */
+public class HorizonSimulator {
+
+    public static final int DAYS_PER_YEAR = 365;
+
+    private final MaxFillAllocator allocator;
+    private final AllocationListener listener;
+    private final List<ScheduledDeal> schedule;
+    private final PriorityQueue<Live> live = new PriorityQueue<>(Comparator.comparing(l -> l.scheduled.maturity()));
+    private int nextStart;
+    private LocalDate today;
+    private BigDecimal annualCost = BigDecimal.ZERO;
+    private BigDecimal shortfall = BigDecimal.ZERO;
+    private BigDecimal internalInUse = BigDecimal.ZERO;
+    private BigDecimal cumulativeCost = BigDecimal.ZERO;
+
+    /**
+     * @param inventory the internal collateral
+     * @param borrowMarket the borrow market
+     * @param schedule the deals and their dates, in any order
+     * @param firstDay the first day to simulate
+     * @param listener receives the market allocations of each deal as it
+     * starts
+     */
+    public HorizonSimulator(List<Bond> inventory, List<PossibleBorrowedBond> borrowMarket,
+            List<ScheduledDeal> schedule, LocalDate firstDay, AllocationListener listener) {
+        this.allocator = new MaxFillAllocator(inventory, borrowMarket);
+        this.listener = listener;
+        this.schedule = new ArrayList<>(schedule);
+        this.schedule.sort(Comparator.comparing(ScheduledDeal::start));
+        this.today = firstDay;
+    }
+
+    /**
+     * @return the next day {@link #step} will simulate
+     */
+    public LocalDate getToday() {
+        return today;
+    }
+
+    /**
+     * @return true once every deal has started and matured
+     */
+    public boolean isFinished() {
+        return nextStart == schedule.size() && live.isEmpty();
+    }
+
+    /**
+     * Simulates one day and moves on to the next.
+     *
+     * @return the state at the end of the day
+     */
+    public HorizonDay step() {
+        int matured = 0;
+        while (!live.isEmpty() && !live.peek().scheduled.maturity().isAfter(today)) {
+            Live deal = live.poll();
+            allocator.release(deal.fill);
+            annualCost = annualCost.subtract(deal.fill.borrowCost());
+            shortfall = shortfall.subtract(deal.fill.shortfall());
+            internalInUse = internalInUse.subtract(deal.internal);
+            matured++;
+        }
+
+        int started = 0;
+        int incomplete = 0;
+        while (nextStart < schedule.size() && !schedule.get(nextStart).start().isAfter(today)) {
+            ScheduledDeal scheduled = schedule.get(nextStart++);
+            if (!scheduled.maturity().isAfter(today)) continue;
+            RepoDeal deal = scheduled.deal();
+            MaxFillAllocator.Fill fill = allocator.allocate(deal, listener);
+            deal.setBorrowCost(fill.borrowCost());
+            BigDecimal internal = BigDecimal.ZERO;
+            for (InternalCollateralAllocator.Reservation reservation : fill.internal()) {
+                internal = internal.add(reservation.value());
+            }
+            live.add(new Live(scheduled, fill, internal));
+            annualCost = annualCost.add(fill.borrowCost());
+            shortfall = shortfall.add(fill.shortfall());
+            internalInUse = internalInUse.add(internal);
+            started++;
+            if (!fill.isComplete()) {
+                incomplete++;
+            }
+        }
+
+        BigDecimal dailyCost = annualCost.divide(BigDecimal.valueOf(DAYS_PER_YEAR), 2, RoundingMode.HALF_EVEN);
+        cumulativeCost = cumulativeCost.add(dailyCost);
+        HorizonDay day = new HorizonDay(today, started, matured, live.size(), incomplete, shortfall, internalInUse,
+                dailyCost, cumulativeCost);
+        today = today.plusDays(1);
+        return day;
+    }
+
+    /**
+     * Simulates every day up to and including {@code lastDay}.
+     *
+     * @param lastDay the last day to simulate
+     * @return the state at the end of each day
+     */
+    public List<HorizonDay> runUntil(LocalDate lastDay) {
+        List<HorizonDay> days = new ArrayList<>();
+        while (!today.isAfter(lastDay)) {
+            days.add(step());
+        }
+        return days;
+    }
+
+    /**
+     * A started deal, its fill and the internal value it holds.
+     */
+    private static final class Live {
+        final ScheduledDeal scheduled;
+        final MaxFillAllocator.Fill fill;
+        final BigDecimal internal;
+
+        Live(ScheduledDeal scheduled, MaxFillAllocator.Fill fill, BigDecimal internal) {
+            this.scheduled = scheduled;
+            this.fill = fill;
+            this.internal = internal;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package horizon;
+
+import java.time.LocalDate;
+import models.RepoDeal;
+
+/**
+ * A deal with the dates it is live between.
+ *
+ * @param deal the deal
+ * @param start the first day the deal needs collateral
+ * @param maturity the day the deal ends and its collateral is free again
+ */
+public record ScheduledDeal(RepoDeal deal, LocalDate start, LocalDate maturity) {
+
+    /**
+     * @throws IllegalArgumentException if the deal does not mature after it
+     * starts
+     */
+    public ScheduledDeal {
+        if (!maturity.isAfter(start)) {
+            throw new IllegalArgumentException("Deal " + deal.getId() + " matures on " + maturity
+                    + ", not after its start on " + start);
+        }
+    }
+}
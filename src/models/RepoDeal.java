@@ -11,6 +11,8 @@ import java.util.Map;
  */
 public class RepoDeal {
 
+    private static final BigDecimal ONE_HUNDRED_PERCENT = BigDecimal.valueOf(100);
+
     private final String id;
     private final BigDecimal totalValueRequired;
     private BigDecimal borrowCost = BigDecimal.ZERO;
@@ -117,8 +119,9 @@ public class RepoDeal {
     }
 
     /**
-     * Validates that all rating and type requirement proportions are ≥ 0 and
-     * their totals ≤ 1.
+     * Validates that all rating and type requirements are ≥ 0 and their
+     * totals ≤ 100. Requirements are whole percentages of the total value, as
+     * loaded from the deals CSV and applied by the allocation engine.
      *
      * @return true if all requirements are valid, false otherwise
      */
@@ -129,10 +132,10 @@ public class RepoDeal {
         BigDecimal typeSum = typeRequirements.values().stream()
                 .reduce(BigDecimal.ZERO, BigDecimal::add);
 
-        boolean ratingsValid = ratingSum.compareTo(BigDecimal.ONE) <= 0
+        boolean ratingsValid = ratingSum.compareTo(ONE_HUNDRED_PERCENT) <= 0
                 && ratingRequirements.values().stream().allMatch(v -> v.compareTo(BigDecimal.ZERO) >= 0);
 
-        boolean typesValid = typeSum.compareTo(BigDecimal.ONE) <= 0
+        boolean typesValid = typeSum.compareTo(ONE_HUNDRED_PERCENT) <= 0
                 && typeRequirements.values().stream().allMatch(v -> v.compareTo(BigDecimal.ZERO) >= 0);
 
         return ratingsValid && typesValid;
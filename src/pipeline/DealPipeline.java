@@ -0,0 +1,260 @@
+package pipeline;
+
+import core.AdaptiveRouter;
+import core.AllocationEngine;
+import core.AllocationListener;
+import core.InternalCollateralAllocator;
+import core.UnfulfillableConstraintException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+import util.DataLoader;
+
+/**
+ * Prices a deals file as a {@link StagedPipeline}:
+ *
+ * <pre>
+ * load → parse → validate → price → allocate → report
+ * </pre>
+ *
+ * Deals are streamed from the file rather than loaded up front. The borrow
+ * market and internal collateral are loaded on their own threads while the
+ * first deals are read; the price stage waits for the market and the
+ * allocate stage for the collateral. Lines that fail to parse and deals that
+ * fail {@link RepoDeal#validateRequirementsOrThrow()} are logged to standard
+ * error and dropped. Deals the engine cannot price still reach the report
+ * stage, which replays each deal's pricing events to the output listener.
+ * <p>
+ * The allocate stage draws down one shared inventory, so with more than one
+ * worker, or more than one parse, validate or price worker ahead of it, the
+ * collateral each deal receives depends on arrival order. The report stage
+ * always runs on one thread.
+ */
+public class DealPipeline {
+
+    public static final String[] STAGES = {"load", "parse", "validate", "price", "allocate", "report"};
+
+    /**
+     * Which engine entry point the price stage calls.
+     */
+    public enum Pricing {
+        /** Greedy with backtracking fallback, as {@code Main} prices. */
+        ENGINE,
+        /** The greedy strategy only; deals it cannot price are reported as failed. */
+        GREEDY,
+        /** The backtracking search only. */
+        FALLBACK,
+        /** Routed per deal shape by an {@link AdaptiveRouter}, with the engine's results. */
+        ADAPTIVE
+    }
+
+    private final Path dealsFile;
+    private final Path marketFile;
+    private final Path collateralFile;
+    private Pricing pricing = Pricing.ENGINE;
+    private final AdaptiveRouter router = new AdaptiveRouter();
+    private int batchSize = StagedPipeline.DEFAULT_BATCH_SIZE;
+    private int queueCapacity = StagedPipeline.DEFAULT_QUEUE_CAPACITY;
+    private final Map<String, Integer> parallelism = new LinkedHashMap<>();
+
+    /**
+     * @param dealsFile the repo deals CSV
+     * @param marketFile the borrow market CSV
+     * @param collateralFile the internal collateral CSV
+     */
+    public DealPipeline(Path dealsFile, Path marketFile, Path collateralFile) {
+        this.dealsFile = dealsFile;
+        this.marketFile = marketFile;
+        this.collateralFile = collateralFile;
+        for (String stage : STAGES) {
+            parallelism.put(stage, 1);
+        }
+    }
+
+    public void setPricing(Pricing pricing) {
+        this.pricing = pricing;
+    }
+
+    public Pricing getPricing() {
+        return pricing;
+    }
+
+    /**
+     * @return the router used by {@link Pricing#ADAPTIVE}, for its report
+     */
+    public AdaptiveRouter getRouter() {
+        return router;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets the number of worker threads for a stage. The load and report
+     * stages always run on one thread.
+     *
+     * @param stage one of {@link #STAGES}
+     * @param threads number of workers, at least 1
+     */
+    public void setParallelism(String stage, int threads) {
+        if (!parallelism.containsKey(stage)) {
+            throw new IllegalArgumentException("Unknown pipeline stage: " + stage);
+        }
+        if ((stage.equals("load") || stage.equals("report")) && threads != 1) {
+            throw new IllegalArgumentException("The " + stage + " stage runs on a single thread");
+        }
+        parallelism.put(stage, threads);
+    }
+
+    /**
+     * Runs the pipeline.
+     *
+     * @param listener receives every priced deal's allocation events, on the
+     * report thread
+     * @param summary if not {@code null}, a one-line summary of each deal is
+     * printed here
+     * @return the stats of every stage, load first
+     */
+    public List<StageStats> run(AllocationListener listener, PrintStream summary) {
+        CompletableFuture<List<PossibleBorrowedBond>> market =
+                loadAsync("market-loader", () -> DataLoader.loadPossibleBorrowedBonds(marketFile.toString()));
+        CompletableFuture<InternalCollateralAllocator> collateral = loadAsync("collateral-loader",
+                () -> new InternalCollateralAllocator(DataLoader.loadBonds(collateralFile.toString())));
+
+        return StagedPipeline.from("load", this::readDealLines)
+                .batchSize(batchSize)
+                .queueCapacity(queueCapacity)
+                .then("parse", parallelism.get("parse"), DealPipeline::parse)
+                .then("validate", parallelism.get("validate"), DealPipeline::validate)
+                .then("price", parallelism.get("price"), (RepoDeal deal) -> price(deal, join(market)))
+                .then("allocate", parallelism.get("allocate"), (PricedDeal priced) -> {
+                    if (priced.isPriced()) {
+                        priced.setReservations(join(collateral).allocate(priced.getDeal()));
+                    }
+                    return priced;
+                })
+                .to("report", (PricedDeal priced) -> report(priced, listener, summary))
+                .run();
+    }
+
+    /**
+     * Prints one line per stage: threads, items in and out, throughput, how
+     * busy the workers were and the input queue depth in batches.
+     *
+     * @param stats the stats returned by {@link #run}
+     * @param out where to print
+     */
+    public static void printStats(List<StageStats> stats, PrintStream out) {
+        out.printf("%-10s %7s %10s %10s %12s %6s %8s %6s%n",
+                "stage", "threads", "in", "out", "items/s", "busy", "avg q", "max q");
+        for (StageStats s : stats) {
+            out.printf("%-10s %7d %10d %10d %12.0f %5.0f%% %8.2f %6d%n", s.getName(), s.getParallelism(),
+                    s.getItemsIn(), s.getItemsOut(), s.getThroughput(), s.getUtilization() * 100,
+                    s.getAverageQueueDepth(), s.getMaxQueueDepth());
+        }
+    }
+
+    private void readDealLines(Consumer<String> emit) throws IOException {
+        try (BufferedReader br = Files.newBufferedReader(dealsFile)) {
+            String line = br.readLine(); // skip header
+            while ((line = br.readLine()) != null) {
+                if (!line.isBlank()) {
+                    emit.accept(line);
+                }
+            }
+        }
+    }
+
+    private static RepoDeal parse(String line) {
+        try {
+            return DataLoader.parseRepoDeal(line);
+        } catch (RuntimeException e) {
+            System.err.println("Error parsing line: " + line + " (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    private static RepoDeal validate(RepoDeal deal) {
+        try {
+            deal.validateRequirementsOrThrow();
+            return deal;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Rejected: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private PricedDeal price(RepoDeal deal, List<PossibleBorrowedBond> market) {
+        PricedDeal priced = new PricedDeal(deal);
+        try {
+            BigDecimal cost = switch (pricing) {
+                case ENGINE -> AllocationEngine.calculateExternalBorrowCost(deal, market, priced);
+                case GREEDY -> AllocationEngine.calculateLowToHighRatingStrategy(deal, market, priced);
+                case FALLBACK -> AllocationEngine.calculateFallbackStrategy(deal, market, priced);
+                case ADAPTIVE -> router.price(deal, market, priced);
+            };
+            deal.setBorrowCost(cost);
+        } catch (UnfulfillableConstraintException | IllegalArgumentException e) {
+            priced.fail(e.getMessage());
+        }
+        return priced;
+    }
+
+    private static void report(PricedDeal priced, AllocationListener listener, PrintStream summary) {
+        priced.replayTo(listener);
+        if (summary == null) {
+            return;
+        }
+        RepoDeal deal = priced.getDeal();
+        if (!priced.isPriced()) {
+            summary.printf("Deal ID: %s | Total Required: $%.2f | Not priced: %s%n",
+                    deal.getId(), deal.getTotalValueRequired(), priced.getError());
+            return;
+        }
+        BigDecimal internal = BigDecimal.ZERO;
+        for (InternalCollateralAllocator.Reservation reservation : priced.getReservations()) {
+            internal = internal.add(reservation.value());
+        }
+        summary.printf("Deal ID: %s | Total Required: $%.2f | Borrow Cost: $%.2f | Internal Collateral: $%.2f%n",
+                deal.getId(), deal.getTotalValueRequired(), priced.getCost(), internal);
+    }
+
+    private static <T> CompletableFuture<T> loadAsync(String name, Callable<T> loader) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                future.complete(loader.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package pipeline;
+
+import core.Allocation;
+import core.AllocationListener;
+import core.AllocationStrategy;
+import core.InternalCollateralAllocator;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import models.RepoDeal;
+
+/**
+ * A deal on its way through {@link DealPipeline}: the pricing events
+ * recorded by the price stage and the internal collateral applied by the
+ * allocate stage, held until the report stage replays them to the output
+ * listeners on a single thread.
+ */
+public class PricedDeal implements AllocationListener {
+
+    /**
+     * A strategy the engine tried and abandoned.
+     *
+     * @param strategy the strategy that failed
+     * @param reason the failure message
+     */
+    public record Failure(AllocationStrategy strategy, String reason) {
+    }
+
+    private final RepoDeal deal;
+    private final List<Allocation> allocations = new ArrayList<>();
+    private final List<Failure> failures = new ArrayList<>();
+    private BigDecimal cost;
+    private AllocationStrategy strategy;
+    private String error;
+    private List<InternalCollateralAllocator.Reservation> reservations = List.of();
+
+    PricedDeal(RepoDeal deal) {
+        this.deal = deal;
+    }
+
+    @Override
+    public void onAllocation(RepoDeal deal, Allocation allocation, AllocationStrategy strategy) {
+        allocations.add(allocation);
+    }
+
+    @Override
+    public void onDealPriced(RepoDeal deal, BigDecimal totalCost, AllocationStrategy strategy) {
+        this.cost = totalCost;
+        this.strategy = strategy;
+    }
+
+    @Override
+    public void onStrategyFailed(RepoDeal deal, AllocationStrategy strategy, String reason) {
+        allocations.clear();
+        failures.add(new Failure(strategy, reason));
+    }
+
+    void fail(String error) {
+        this.error = error;
+    }
+
+    void setReservations(List<InternalCollateralAllocator.Reservation> reservations) {
+        this.reservations = reservations;
+    }
+
+    /**
+     * Sends the recorded events to {@code listener} in the order the engine
+     * produced them.
+     *
+     * @param listener the output listener
+     */
+    public void replayTo(AllocationListener listener) {
+        for (Failure failure : failures) {
+            listener.onStrategyFailed(deal, failure.strategy(), failure.reason());
+        }
+        if (isPriced()) {
+            for (Allocation allocation : allocations) {
+                listener.onAllocation(deal, allocation, strategy);
+            }
+            for (InternalCollateralAllocator.Reservation reservation : reservations) {
+                listener.onReservation(deal, reservation.bond(), reservation.value());
+            }
+            listener.onDealPriced(deal, cost, strategy);
+        }
+    }
+
+    public RepoDeal getDeal() {
+        return deal;
+    }
+
+    /**
+     * @return true if a strategy produced a valid allocation
+     */
+    public boolean isPriced() {
+        return error == null && cost != null;
+    }
+
+    /**
+     * @return the total borrow cost, or {@code null} if the deal was not
+     * priced
+     */
+    public BigDecimal getCost() {
+        return cost;
+    }
+
+    /**
+     * @return the strategy that priced the deal, or {@code null}
+     */
+    public AllocationStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @return why the deal could not be priced, or {@code null}
+     */
+    public String getError() {
+        return error;
+    }
+
+    public List<Allocation> getAllocations() {
+        return allocations;
+    }
+
+    public List<Failure> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the internal collateral applied to the deal
+     */
+    public List<InternalCollateralAllocator.Reservation> getReservations() {
+        return reservations;
+    }
+}
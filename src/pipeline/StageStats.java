@@ -0,0 +1,105 @@
+package pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one stage of a {@link StagedPipeline}, updated by its workers
+ * while the pipeline runs.
+ * <p>
+ * Queue depth is sampled each time a worker takes a batch from the stage's
+ * input queue and is measured in batches. A stage that keeps its input queue
+ * full is the bottleneck; a stage whose queue is always empty is starved by
+ * the stage before it.
+ */
+public class StageStats {
+
+    private final String name;
+    private final int parallelism;
+    private final LongAdder itemsIn = new LongAdder();
+    private final LongAdder itemsOut = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder depthSamples = new LongAdder();
+    private final LongAdder depthTotal = new LongAdder();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    private final AtomicLong firstNanos = new AtomicLong();
+    private final AtomicLong lastNanos = new AtomicLong();
+
+    StageStats(String name, int parallelism) {
+        this.name = name;
+        this.parallelism = parallelism;
+    }
+
+    void sampleQueueDepth(int depth) {
+        depthSamples.increment();
+        depthTotal.add(depth);
+        maxDepth.accumulate(depth);
+    }
+
+    void recordBatch(long startNanos, int in, int out) {
+        long end = System.nanoTime();
+        firstNanos.compareAndSet(0, startNanos);
+        lastNanos.accumulateAndGet(end, Math::max);
+        itemsIn.add(in);
+        itemsOut.add(out);
+        batches.increment();
+        busyNanos.add(end - startNanos);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return items received from the previous stage; for the source stage,
+     * the items it produced
+     */
+    public long getItemsIn() {
+        return itemsIn.sum();
+    }
+
+    /**
+     * @return items passed on; fewer than {@link #getItemsIn()} when the
+     * stage drops items, for example deals that fail validation
+     */
+    public long getItemsOut() {
+        return itemsOut.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return items received per second between the stage's first and last
+     * batch
+     */
+    public double getThroughput() {
+        long elapsed = lastNanos.get() - firstNanos.get();
+        return elapsed <= 0 ? 0 : getItemsIn() * 1_000_000_000.0 / elapsed;
+    }
+
+    /**
+     * @return the fraction of the stage's active time its workers spent
+     * processing batches rather than waiting
+     */
+    public double getUtilization() {
+        long elapsed = lastNanos.get() - firstNanos.get();
+        return elapsed <= 0 ? 0 : Math.min(1.0, busyNanos.sum() / ((double) elapsed * parallelism));
+    }
+
+    public double getAverageQueueDepth() {
+        long samples = depthSamples.sum();
+        return samples == 0 ? 0 : (double) depthTotal.sum() / samples;
+    }
+
+    public long getMaxQueueDepth() {
+        return maxDepth.get();
+    }
+}
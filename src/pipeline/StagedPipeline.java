@@ -0,0 +1,327 @@
+package pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Runs a chain of stages concurrently, connected by bounded queues.
+ * <p>
+ * A single source thread produces items and groups them into batches. Each
+ * following stage has its own pool of worker threads that take a batch from
+ * the stage's input queue, apply the stage to every item and pass the
+ * results on as one batch; a stage drops an item by returning {@code null}.
+ * The last stage is a sink run on a single thread, so it can write to
+ * outputs that are not thread-safe. Queues hold a fixed number of batches,
+ * so a slow stage blocks the stages before it instead of letting work pile
+ * up in memory.
+ * <p>
+ * Stages with more than one worker do not preserve item order. If any stage
+ * throws, every thread is interrupted and {@link #run()} rethrows the first
+ * failure.
+ *
+ * <pre>
+ * List&lt;StageStats&gt; stats = StagedPipeline.from("load", source)
+ *         .batchSize(256)
+ *         .then("parse", 4, DataLoader::parseRepoDeal)
+ *         .to("report", deal -&gt; System.out.println(deal.getId()))
+ *         .run();
+ * </pre>
+ */
+public class StagedPipeline {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    /**
+     * Produces the pipeline's items, passing each one to {@code emit}.
+     */
+    @FunctionalInterface
+    public interface Source<T> {
+        void produce(Consumer<T> emit) throws Exception;
+    }
+
+    /**
+     * Transforms one item; returns {@code null} to drop it.
+     */
+    @FunctionalInterface
+    public interface Stage<T, R> {
+        R apply(T item) throws Exception;
+    }
+
+    /**
+     * Consumes the items that reach the end of the pipeline.
+     */
+    @FunctionalInterface
+    public interface Sink<T> {
+        void accept(T item) throws Exception;
+    }
+
+    /**
+     * Adds stages to a pipeline whose last stage produces {@code T}.
+     */
+    public static final class Builder<T> {
+        private final StagedPipeline pipeline;
+
+        private Builder(StagedPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        /**
+         * @param batchSize items per batch passed between stages
+         * @return this builder
+         */
+        public Builder<T> batchSize(int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+            }
+            pipeline.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * @param queueCapacity batches each queue between stages can hold
+         * @return this builder
+         */
+        public Builder<T> queueCapacity(int queueCapacity) {
+            if (queueCapacity < 1) {
+                throw new IllegalArgumentException("Queue capacity must be at least 1: " + queueCapacity);
+            }
+            pipeline.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Appends a stage run by {@code parallelism} worker threads.
+         *
+         * @param name the stage name used in stats and errors
+         * @param parallelism number of worker threads, at least 1
+         * @param stage the transformation
+         * @return a builder for the new end of the pipeline
+         */
+        @SuppressWarnings("unchecked")
+        public <R> Builder<R> then(String name, int parallelism, Stage<? super T, ? extends R> stage) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("Parallelism of stage " + name + " must be at least 1: "
+                        + parallelism);
+            }
+            pipeline.stages.add(new StageDef(name, parallelism, (Stage<Object, Object>) stage));
+            return (Builder<R>) this;
+        }
+
+        /**
+         * Ends the pipeline with a single-threaded sink.
+         *
+         * @param name the stage name used in stats and errors
+         * @param sink receives every item that reaches the end
+         * @return the pipeline, ready to run
+         */
+        @SuppressWarnings("unchecked")
+        public StagedPipeline to(String name, Sink<? super T> sink) {
+            Sink<Object> objectSink = (Sink<Object>) sink;
+            pipeline.stages.add(new StageDef(name, 1, item -> {
+                objectSink.accept(item);
+                return null;
+            }));
+            return pipeline;
+        }
+    }
+
+    /**
+     * Starts a pipeline.
+     *
+     * @param name the source stage name used in stats and errors
+     * @param source produces the items
+     * @return a builder for the rest of the pipeline
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Builder<T> from(String name, Source<T> source) {
+        return new Builder<>(new StagedPipeline(name, (Source<Object>) source));
+    }
+
+    private record StageDef(String name, int parallelism, Stage<Object, Object> stage) {
+    }
+
+    // Marks the end of the stream; compared by identity.
+    private static final List<Object> END = new ArrayList<>(0);
+
+    private final String sourceName;
+    private final Source<Object> source;
+    private final List<StageDef> stages = new ArrayList<>();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+    private StagedPipeline(String sourceName, Source<Object> source) {
+        this.sourceName = sourceName;
+        this.source = source;
+    }
+
+    /**
+     * Runs the pipeline to completion. A pipeline can only be run once.
+     *
+     * @return the stats of every stage, source first
+     * @throws IllegalStateException wrapping the first exception thrown by a
+     * stage
+     */
+    public List<StageStats> run() {
+        if (!threads.isEmpty()) {
+            throw new IllegalStateException("Pipeline has already been run");
+        }
+        List<StageStats> stats = new ArrayList<>();
+        List<BlockingQueue<List<Object>>> queues = new ArrayList<>();
+        for (int i = 0; i < stages.size(); i++) {
+            queues.add(new ArrayBlockingQueue<>(queueCapacity));
+        }
+
+        StageStats sourceStats = new StageStats(sourceName, 1);
+        stats.add(sourceStats);
+        threads.add(new Thread(() -> runSource(sourceStats, queues.get(0)), sourceName));
+
+        for (int i = 0; i < stages.size(); i++) {
+            StageDef def = stages.get(i);
+            StageStats stageStats = new StageStats(def.name, def.parallelism);
+            stats.add(stageStats);
+            BlockingQueue<List<Object>> in = queues.get(i);
+            BlockingQueue<List<Object>> out = i + 1 < queues.size() ? queues.get(i + 1) : null;
+            AtomicInteger active = new AtomicInteger(def.parallelism);
+            for (int w = 0; w < def.parallelism; w++) {
+                String threadName = def.parallelism == 1 ? def.name : def.name + "-" + w;
+                threads.add(new Thread(() -> runWorker(def, stageStats, in, out, active), threadName));
+            }
+        }
+
+        threads.forEach(Thread::start);
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    fail("caller", e);
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    private void runSource(StageStats stats, BlockingQueue<List<Object>> out) {
+        Batcher batcher = new Batcher(stats, out);
+        try {
+            source.produce(batcher);
+            batcher.flush();
+            out.put(END);
+        } catch (Cancelled | InterruptedException e) {
+            // Another stage failed.
+        } catch (Throwable t) {
+            fail(sourceName, t);
+        }
+    }
+
+    private void runWorker(StageDef def, StageStats stats, BlockingQueue<List<Object>> in,
+            BlockingQueue<List<Object>> out, AtomicInteger active) {
+        try {
+            while (true) {
+                List<Object> batch = in.take();
+                stats.sampleQueueDepth(in.size());
+                if (batch == END) {
+                    // Leave the marker for the other workers of this stage;
+                    // the last one to finish passes it downstream.
+                    in.put(END);
+                    if (active.decrementAndGet() == 0 && out != null) {
+                        out.put(END);
+                    }
+                    return;
+                }
+
+                long start = System.nanoTime();
+                List<Object> results = out == null ? null : new ArrayList<>(batch.size());
+                for (Object item : batch) {
+                    Object result = def.stage.apply(item);
+                    if (result != null && results != null) {
+                        results.add(result);
+                    }
+                }
+                stats.recordBatch(start, batch.size(), results == null ? batch.size() : results.size());
+                if (results != null && !results.isEmpty()) {
+                    out.put(results);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Another stage failed.
+        } catch (Throwable t) {
+            fail(def.name, t);
+        }
+    }
+
+    private void fail(String stage, Throwable cause) {
+        if (failure.compareAndSet(null, new IllegalStateException("Pipeline stage '" + stage + "' failed: "
+                + cause, cause))) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Collects the source's items into batches and queues each full batch.
+     */
+    private final class Batcher implements Consumer<Object> {
+        private final StageStats stats;
+        private final BlockingQueue<List<Object>> out;
+        private List<Object> batch = new ArrayList<>(batchSize);
+        private long batchStart = System.nanoTime();
+
+        Batcher(StageStats stats, BlockingQueue<List<Object>> out) {
+            this.stats = stats;
+            this.out = out;
+        }
+
+        @Override
+        public void accept(Object item) {
+            batch.add(item);
+            if (batch.size() == batchSize) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (batch.isEmpty()) return;
+            stats.recordBatch(batchStart, batch.size(), batch.size());
+            try {
+                out.put(batch);
+            } catch (InterruptedException e) {
+                throw new Cancelled();
+            }
+            batch = new ArrayList<>(batchSize);
+            batchStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * Unwinds the source when the pipeline is cancelled while it is blocked
+     * on a full queue.
+     */
+    private static final class Cancelled extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Cancelled() {
+            super(null, null, false, false);
+        }
+    }
+}
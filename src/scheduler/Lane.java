@@ -0,0 +1,15 @@
+package scheduler;
+
+/**
+ * The queues of a {@link PricingScheduler}, in the order workers serve them.
+ * A worker always takes the next interactive request before any batch
+ * request, and any batch request before background work.
+ */
+public enum Lane {
+    /** Single-deal quotes someone is waiting on. */
+    INTERACTIVE,
+    /** Re-pricing of the book. */
+    BATCH,
+    /** Scenario runs and other work nobody is waiting on. */
+    BACKGROUND
+}
@@ -0,0 +1,153 @@
+package scheduler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one lane of a {@link PricingScheduler}, updated by its
+ * workers as requests are taken and completed.
+ * <p>
+ * Queue waits are also kept in a histogram of power-of-two buckets, so
+ * percentiles cost nothing to record and are accurate to within a factor of
+ * two, which is enough to tell a lane that waits microseconds from one that
+ * waits seconds.
+ */
+public class LaneStats {
+
+    private static final int BUCKETS = 64;
+
+    private final Lane lane;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder priced = new LongAdder();
+    private final LongAdder degraded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitTotal = new LongAdder();
+    private final LongAccumulator maxWait = new LongAccumulator(Math::max, 0);
+    private final AtomicLongArray waitBuckets = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+
+    LaneStats(Lane lane) {
+        this.lane = lane;
+    }
+
+    void recordSubmitted(int depth) {
+        submitted.increment();
+        maxDepth.accumulate(depth);
+    }
+
+    void recordWait(long nanos) {
+        waits.increment();
+        waitTotal.add(nanos);
+        maxWait.accumulate(nanos);
+        waitBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+    }
+
+    void recordOutcome(PricingOutcome outcome) {
+        switch (outcome.status()) {
+            case PRICED -> priced.increment();
+            case DEGRADED -> degraded.increment();
+            case FAILED -> failed.increment();
+            case SHED -> shed.increment();
+            case REJECTED -> rejected.increment();
+        }
+        if (outcome.deadlineMissed() && (outcome.status() == PricingOutcome.Status.PRICED
+                || outcome.status() == PricingOutcome.Status.FAILED)) {
+            late.increment();
+        }
+    }
+
+    public Lane getLane() {
+        return lane;
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getPriced() {
+        return priced.sum();
+    }
+
+    /**
+     * @return requests left unpriced after greedy failed because the
+     * fallback would have missed the deadline
+     */
+    public long getDegraded() {
+        return degraded.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return requests dropped when a worker reached them too late to price
+     */
+    public long getShed() {
+        return shed.sum();
+    }
+
+    /**
+     * @return requests refused on submission
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return requests that finished pricing after their deadline
+     */
+    public long getLate() {
+        return late.sum();
+    }
+
+    /**
+     * @return requests that did not end with a price by their deadline:
+     * late, degraded, shed and rejected
+     */
+    public long getDeadlineMisses() {
+        return late.sum() + degraded.sum() + shed.sum() + rejected.sum();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = waits.sum();
+        return count == 0 ? 0 : waitTotal.sum() / (count * 1_000_000.0);
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWait.get() / 1_000_000.0;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper edge of the histogram bucket holding that percentile
+     * of queue waits
+     */
+    public double getWaitPercentileMillis(double percentile) {
+        long count = waits.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += waitBuckets.get(b);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(b >= 63 ? Long.MAX_VALUE : 1L << b, maxWait.get()) / 1_000_000.0;
+            }
+        }
+        return getMaxWaitMillis();
+    }
+
+    /**
+     * @return the most requests waiting in the lane at once
+     */
+    public long getMaxQueueDepth() {
+        return maxDepth.get();
+    }
+}
@@ -0,0 +1,43 @@
+package scheduler;
+
+import java.math.BigDecimal;
+import models.RepoDeal;
+
+/**
+ * What became of one request submitted to a {@link PricingScheduler}.
+ *
+ * @param deal the deal
+ * @param lane the lane it was submitted to
+ * @param status how the request ended
+ * @param cost the borrow cost, or {@code null} unless {@code status} is
+ * {@link Status#PRICED}
+ * @param reason why the deal was not priced, or {@code null}
+ * @param queueWaitNanos time between submission and a worker taking the
+ * request; zero if it was rejected
+ * @param serviceNanos time spent pricing
+ * @param deadlineMissed true if the request did not end with a price by its
+ * deadline: it was degraded, shed or rejected, or finished after its
+ * deadline
+ */
+public record PricingOutcome(RepoDeal deal, Lane lane, Status status, BigDecimal cost, String reason,
+        long queueWaitNanos, long serviceNanos, boolean deadlineMissed) {
+
+    /**
+     * How a request ended.
+     */
+    public enum Status {
+        /** Priced by the greedy strategy or, if that failed, the fallback. */
+        PRICED,
+        /**
+         * The greedy strategy failed and there was no time left for the
+         * fallback, so the deal was not priced.
+         */
+        DEGRADED,
+        /** No strategy could price the deal, or pricing threw. */
+        FAILED,
+        /** Taken off the queue too late to price. */
+        SHED,
+        /** Refused on submission: the lane was full or the deadline too close. */
+        REJECTED
+    }
+}
@@ -0,0 +1,367 @@
+package scheduler;
+
+import core.AllocationEngine;
+import core.AllocationListener;
+import core.AllocationStrategy;
+import core.UnfulfillableConstraintException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+import util.LiveMarketData;
+
+/**
+ * Queues pricing requests in front of {@link AllocationEngine} so urgent
+ * quotes are not stuck behind a re-price of the whole book.
+ * <p>
+ * Every request names a {@link Lane} and carries a deadline. Workers serve
+ * the lanes in strict priority order and, within a lane, the request with
+ * the earliest deadline first. A number of workers can be reserved for the
+ * interactive lane, so a quote never waits for a long fallback search on a
+ * batch deal to finish.
+ * <p>
+ * Requests are refused on submission when their lane is full or their
+ * deadline is closer than a greedy pricing takes. When a worker takes a
+ * request it is shed if the deadline can no longer be met. Otherwise the
+ * greedy strategy runs; if it fails, the backtracking fallback only runs
+ * when it is expected to finish before the deadline, and the request is
+ * otherwise answered greedy-only, without a price, as
+ * {@link PricingOutcome.Status#DEGRADED}. How long each strategy takes is
+ * learned as a moving average of the runs so far.
+ * <p>
+ * Requests submitted against {@link LiveMarketData} are priced against the
+ * snapshot that is current when a worker takes them, so a long-running
+ * scheduler picks up market reloads without being restarted.
+ * <p>
+ * The engine calls each request's listener on the worker thread that prices
+ * it.
+ */
+public class PricingScheduler implements AutoCloseable {
+
+    public static final int DEFAULT_LANE_CAPACITY = 100_000;
+    public static final Duration DEFAULT_GREEDY_ESTIMATE = Duration.ofMillis(1);
+    public static final Duration DEFAULT_FALLBACK_ESTIMATE = Duration.ofSeconds(1);
+
+    /** Weight of the newest run in the moving averages. */
+    private static final double SMOOTHING = 0.2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Map<Lane, PriorityQueue<Request>> queues = new EnumMap<>(Lane.class);
+    private final Map<Lane, LaneStats> stats = new EnumMap<>(Lane.class);
+    private final List<Thread> workers = new ArrayList<>();
+    private final int laneCapacity;
+    private final AtomicLong greedyEstimate = new AtomicLong(DEFAULT_GREEDY_ESTIMATE.toNanos());
+    private final AtomicLong fallbackEstimate = new AtomicLong(DEFAULT_FALLBACK_ESTIMATE.toNanos());
+    private long sequence;
+    private boolean closed;
+
+    /**
+     * Starts the workers.
+     *
+     * @param sharedWorkers workers that serve every lane, at least 1
+     * @param interactiveWorkers workers that only serve the interactive lane
+     * @param laneCapacity the most requests a lane holds before refusing
+     * more
+     */
+    public PricingScheduler(int sharedWorkers, int interactiveWorkers, int laneCapacity) {
+        if (sharedWorkers < 1 || interactiveWorkers < 0 || laneCapacity < 1) {
+            throw new IllegalArgumentException("Need at least one shared worker and a positive lane capacity");
+        }
+        this.laneCapacity = laneCapacity;
+        for (Lane lane : Lane.values()) {
+            queues.put(lane, new PriorityQueue<>(Comparator.comparingLong((Request r) -> r.deadline)
+                    .thenComparingLong(r -> r.sequence)));
+            stats.put(lane, new LaneStats(lane));
+        }
+        for (int i = 0; i < interactiveWorkers; i++) {
+            start("pricing-interactive-" + i, true);
+        }
+        for (int i = 0; i < sharedWorkers; i++) {
+            start("pricing-" + i, false);
+        }
+    }
+
+    /**
+     * Sets the initial guess for how long the backtracking fallback takes,
+     * used until a run has been measured.
+     *
+     * @param estimate the expected duration of one fallback search
+     */
+    public void setFallbackEstimate(Duration estimate) {
+        fallbackEstimate.set(estimate.toNanos());
+    }
+
+    /**
+     * Queues a deal for pricing.
+     *
+     * @param deal the deal to price
+     * @param borrowMarket the borrow market to price against
+     * @param lane the lane to queue in
+     * @param budget how long from now the price is still useful
+     * @param listener receives the allocations of the chosen solution
+     * @return completes with the outcome once the request is priced, shed
+     * or rejected
+     * @throws IllegalStateException if the scheduler has been closed
+     */
+    public CompletableFuture<PricingOutcome> submit(RepoDeal deal, List<PossibleBorrowedBond> borrowMarket,
+            Lane lane, Duration budget, AllocationListener listener) {
+        return submit(deal, () -> borrowMarket, lane, budget, listener);
+    }
+
+    /**
+     * Queues a deal for pricing against whatever version of the live borrow
+     * market is current when a worker takes it.
+     *
+     * @param deal the deal to price
+     * @param marketData the live market data to price against
+     * @param lane the lane to queue in
+     * @param budget how long from now the price is still useful
+     * @param listener receives the allocations of the chosen solution
+     * @return completes with the outcome once the request is priced, shed
+     * or rejected
+     * @throws IllegalStateException if the scheduler has been closed
+     */
+    public CompletableFuture<PricingOutcome> submit(RepoDeal deal, LiveMarketData marketData, Lane lane,
+            Duration budget, AllocationListener listener) {
+        return submit(deal, () -> marketData.snapshot().getBorrowMarket(), lane, budget, listener);
+    }
+
+    private CompletableFuture<PricingOutcome> submit(RepoDeal deal, Supplier<List<PossibleBorrowedBond>> market,
+            Lane lane, Duration budget, AllocationListener listener) {
+        long now = System.nanoTime();
+        Request request = new Request(deal, market, lane, now, now + budget.toNanos(), listener);
+        LaneStats laneStats = stats.get(lane);
+        String refusal = null;
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Pricing scheduler is closed");
+            }
+            PriorityQueue<Request> queue = queues.get(lane);
+            laneStats.recordSubmitted(queue.size() + 1);
+            if (queue.size() >= laneCapacity) {
+                refusal = "lane " + lane + " is full";
+            } else if (now + greedyEstimate.get() > request.deadline) {
+                refusal = "deadline too close";
+            } else {
+                request.sequence = sequence++;
+                queue.add(request);
+                workAvailable.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (refusal != null) {
+            complete(request, PricingOutcome.Status.REJECTED, null, refusal, 0, now);
+        }
+        return request.future;
+    }
+
+    /**
+     * @param lane a lane
+     * @return the lane's counters
+     */
+    public LaneStats getStats(Lane lane) {
+        return stats.get(lane);
+    }
+
+    /**
+     * @return the number of requests waiting in all lanes
+     */
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            int count = 0;
+            for (PriorityQueue<Request> queue : queues.values()) {
+                count += queue.size();
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prints one line per lane: requests by outcome, deadline misses and
+     * queue waits.
+     *
+     * @param out where to print
+     */
+    public void printStats(PrintStream out) {
+        out.printf("%-12s %9s %8s %8s %7s %7s %8s %6s %7s %10s %10s %10s%n", "lane", "submitted", "priced",
+                "degraded", "failed", "shed", "rejected", "late", "missed", "avg wait", "p99 wait", "max wait");
+        for (Lane lane : Lane.values()) {
+            LaneStats s = stats.get(lane);
+            out.printf("%-12s %9d %8d %8d %7d %7d %8d %6d %7d %8.2fms %8.2fms %8.2fms%n", lane, s.getSubmitted(),
+                    s.getPriced(), s.getDegraded(), s.getFailed(), s.getShed(), s.getRejected(), s.getLate(),
+                    s.getDeadlineMisses(), s.getAverageWaitMillis(), s.getWaitPercentileMillis(99),
+                    s.getMaxWaitMillis());
+        }
+    }
+
+    /**
+     * Stops accepting requests, lets the workers finish everything already
+     * queued and waits for them to exit. If the calling thread is
+     * interrupted while waiting, it stops waiting and its interrupt status
+     * is set again; the workers still finish the queue.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void start(String name, boolean interactiveOnly) {
+        Thread worker = new Thread(() -> {
+            try {
+                Request request;
+                while ((request = next(interactiveOnly)) != null) {
+                    process(request);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, name);
+        worker.setDaemon(true);
+        workers.add(worker);
+        worker.start();
+    }
+
+    /**
+     * Takes the earliest-deadline request from the highest-priority lane
+     * with work, waiting if there is none. Returns {@code null} once the
+     * scheduler is closed and the worker's lanes are empty.
+     */
+    private Request next(boolean interactiveOnly) throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                for (Lane lane : Lane.values()) {
+                    if (interactiveOnly && lane != Lane.INTERACTIVE) break;
+                    Request request = queues.get(lane).poll();
+                    if (request != null) {
+                        return request;
+                    }
+                }
+                if (closed) {
+                    return null;
+                }
+                workAvailable.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void process(Request request) {
+        long start = System.nanoTime();
+        long wait = start - request.submitted;
+        stats.get(request.lane).recordWait(wait);
+        if (start + greedyEstimate.get() > request.deadline) {
+            complete(request, PricingOutcome.Status.SHED, null, "deadline passed in queue", wait, start);
+            return;
+        }
+
+        RepoDeal deal = request.deal;
+        try {
+            List<PossibleBorrowedBond> market = request.market.get();
+            BigDecimal cost;
+            long greedyStart = System.nanoTime();
+            try {
+                cost = AllocationEngine.calculateLowToHighRatingStrategy(deal, market, request.listener);
+                learn(greedyEstimate, System.nanoTime() - greedyStart);
+            } catch (UnfulfillableConstraintException e) {
+                long fallbackStart = System.nanoTime();
+                learn(greedyEstimate, fallbackStart - greedyStart);
+                request.listener.onStrategyFailed(deal, AllocationStrategy.LOW_TO_HIGH_RATING, e.getMessage());
+                if (fallbackStart + fallbackEstimate.get() > request.deadline) {
+                    complete(request, PricingOutcome.Status.DEGRADED, null,
+                            "greedy failed and no time for the fallback", wait, start);
+                    return;
+                }
+                try {
+                    cost = AllocationEngine.calculateFallbackStrategy(deal, market, request.listener);
+                } finally {
+                    learn(fallbackEstimate, System.nanoTime() - fallbackStart);
+                }
+            }
+            deal.setBorrowCost(cost);
+            complete(request, PricingOutcome.Status.PRICED, cost, null, wait, start);
+        } catch (UnfulfillableConstraintException | IllegalArgumentException e) {
+            complete(request, PricingOutcome.Status.FAILED, null, e.getMessage(), wait, start);
+        } catch (RuntimeException e) {
+            record(request, PricingOutcome.Status.FAILED, null, e.toString(), wait, start);
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    private void complete(Request request, PricingOutcome.Status status, BigDecimal cost, String reason, long wait,
+            long start) {
+        request.future.complete(record(request, status, cost, reason, wait, start));
+    }
+
+    private PricingOutcome record(Request request, PricingOutcome.Status status, BigDecimal cost, String reason,
+            long wait, long start) {
+        long end = System.nanoTime();
+        boolean missed = status != PricingOutcome.Status.PRICED && status != PricingOutcome.Status.FAILED
+                || end > request.deadline;
+        PricingOutcome outcome = new PricingOutcome(request.deal, request.lane, status, cost, reason, wait,
+                end - start, missed);
+        stats.get(request.lane).recordOutcome(outcome);
+        return outcome;
+    }
+
+    private static void learn(AtomicLong estimate, long nanos) {
+        estimate.getAndUpdate(old -> (long) (old + SMOOTHING * (nanos - old)));
+    }
+
+    /**
+     * A queued request. The sequence number keeps requests with the same
+     * deadline in submission order.
+     */
+    private static final class Request {
+        final RepoDeal deal;
+        final Supplier<List<PossibleBorrowedBond>> market;
+        final Lane lane;
+        final long submitted;
+        final long deadline;
+        final AllocationListener listener;
+        final CompletableFuture<PricingOutcome> future = new CompletableFuture<>();
+        long sequence;
+
+        Request(RepoDeal deal, Supplier<List<PossibleBorrowedBond>> market, Lane lane, long submitted,
+                long deadline, AllocationListener listener) {
+            this.deal = deal;
+            this.market = market;
+            this.lane = lane;
+            this.submitted = submitted;
+            this.deadline = deadline;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package util;
+
+import core.Allocation;
+import core.AllocationListener;
+import core.AllocationStrategy;
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import models.Bond;
+import models.RepoDeal;
+
+/**
+ * Append-only journal of allocation decisions and inventory reservations,
+ * used to recover fulfilment state after a crash instead of re-pricing the
+ * whole book.
+ * <p>
+ * Records are fixed-size ({@value #RECORD_SIZE} bytes) and written to
+ * memory-mapped segment files that roll over once full. Every allocation and
+ * reservation belongs to a deal and only counts once the deal's commit record
+ * (written from {@link #onDealPriced}) is in the journal; allocations of a deal
+ * that was interrupted mid-pricing are discarded on recovery.
+ * <p>
+ * Segments are flushed to disk in groups: a sync happens after
+ * {@code groupCommitSize} deal commits or {@code groupCommitMillis}
+ * milliseconds, whichever comes first, and always on roll-over and
+ * {@link #close()}. A process crash loses nothing that was written, since the
+ * mapped pages live in the OS page cache; a power loss can lose at most the
+ * commits since the last sync.
+ *
+ * <pre>
+ * offset size field
+ *      0    1 kind (allocation, reservation, commit, abort)
+ *      1    1 strategy code
+ *      2    2 reserved
+ *      4    4 CRC32 of bytes 0-3 and 8-127
+ *      8   24 deal id
+ *     32   24 bond id
+ *     56   16 bond type
+ *     72    8 credit rating
+ *     80   12 amount (unscaled long, scale int)
+ *     92   12 rate (unscaled long, scale int)
+ *    104    8 sequence number
+ *    112   16 reserved
+ * </pre>
+ */
+public class AllocationJournal implements AllocationListener, Closeable {
+
+    public static final int RECORD_SIZE = 128;
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 256;
+    public static final long DEFAULT_GROUP_COMMIT_MILLIS = 50;
+
+    private static final byte KIND_ALLOCATION = 1;
+    private static final byte KIND_RESERVATION = 2;
+    private static final byte KIND_COMMIT = 3;
+    private static final byte KIND_ABORT = 4;
+
+    private static final int OFFSET_KIND = 0;
+    private static final int OFFSET_STRATEGY = 1;
+    private static final int OFFSET_CRC = 4;
+    private static final int OFFSET_DEAL_ID = 8;
+    private static final int OFFSET_BOND_ID = 32;
+    private static final int OFFSET_BOND_TYPE = 56;
+    private static final int OFFSET_RATING = 72;
+    private static final int OFFSET_AMOUNT = 80;
+    private static final int OFFSET_RATE = 92;
+    private static final int OFFSET_SEQUENCE = 104;
+
+    private static final int WIDTH_ID = 24;
+    private static final int WIDTH_BOND_TYPE = 16;
+    private static final int WIDTH_RATING = 8;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private final Path directory;
+    private final long segmentSize;
+    private final int groupCommitSize;
+    private final long groupCommitNanos;
+    private final Recovery recovery;
+    private final CRC32 crc = new CRC32();
+
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private int position;
+    private long sequence;
+    private int commitsSinceSync;
+    private long lastSyncNanos = System.nanoTime();
+
+    private AllocationJournal(Path directory, long segmentSize, int groupCommitSize, long groupCommitMillis,
+            Recovery recovery) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.groupCommitSize = groupCommitSize;
+        this.groupCommitNanos = groupCommitMillis * 1_000_000L;
+        this.recovery = recovery;
+    }
+
+    /**
+     * Opens the journal in {@code directory} with default segment size and
+     * group-commit settings. See
+     * {@link #open(Path, Map, long, int, long)}.
+     *
+     * @param directory the journal directory, created if missing
+     * @param dealsById the deals to restore, keyed by deal id
+     * @return the open journal, positioned for appending
+     * @throws IOException if the journal cannot be read or created
+     */
+    public static AllocationJournal open(Path directory, Map<String, RepoDeal> dealsById) throws IOException {
+        return open(directory, dealsById, DEFAULT_SEGMENT_SIZE, DEFAULT_GROUP_COMMIT_SIZE, DEFAULT_GROUP_COMMIT_MILLIS);
+    }
+
+    /**
+     * Opens the journal in {@code directory}, replays any existing records
+     * into {@code dealsById} and positions the journal after the last valid
+     * record. Anything after that record, such as records that follow a torn
+     * one, is cleared so a later replay cannot pick it up again. Deals that
+     * were interrupted before their commit record are marked aborted so their
+     * partial allocations stay discarded when the deal is priced again.
+     *
+     * @param directory the journal directory, created if missing
+     * @param dealsById the deals to restore, keyed by deal id
+     * @param segmentSize size of each new segment file in bytes
+     * @param groupCommitSize number of deal commits between syncs
+     * @param groupCommitMillis maximum time between syncs in milliseconds
+     * @return the open journal, positioned for appending
+     * @throws IOException if the journal cannot be read or created
+     */
+    public static AllocationJournal open(Path directory, Map<String, RepoDeal> dealsById, long segmentSize,
+            int groupCommitSize, long groupCommitMillis) throws IOException {
+        if (segmentSize < RECORD_SIZE || segmentSize % RECORD_SIZE != 0 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size must be a positive multiple of " + RECORD_SIZE
+                    + " bytes and at most " + Integer.MAX_VALUE + ": " + segmentSize);
+        }
+        Files.createDirectories(directory);
+        Recovery recovery = scan(directory, dealsById);
+
+        AllocationJournal journal = new AllocationJournal(directory, segmentSize, groupCommitSize, groupCommitMillis,
+                recovery);
+        journal.sequence = recovery.lastSequence;
+        for (int index : listSegments(directory)) {
+            if (index > recovery.tailSegment) {
+                Files.delete(segmentPath(directory, index));
+            }
+        }
+        if (recovery.tailSegment < 0) {
+            journal.openSegment(0);
+        } else {
+            journal.mapSegment(recovery.tailSegment, Files.size(segmentPath(directory, recovery.tailSegment)));
+            journal.position = recovery.tailPosition;
+            for (int i = journal.position; i < journal.segment.capacity(); i++) {
+                journal.segment.put(i, (byte) 0);
+            }
+            journal.sync();
+        }
+        for (String dealId : recovery.abortedDealIds) {
+            journal.append(KIND_ABORT, AllocationStrategy.INTERNAL, dealId, "", "", "", BigDecimal.ZERO,
+                    BigDecimal.ZERO);
+        }
+        if (!recovery.abortedDealIds.isEmpty()) {
+            journal.sync();
+        }
+        return journal;
+    }
+
+    /**
+     * Replays the journal in {@code directory} into {@code dealsById} without
+     * opening it for writing.
+     *
+     * @param directory the journal directory
+     * @param dealsById the deals to restore, keyed by deal id
+     * @return what was recovered
+     * @throws IOException if the journal cannot be read
+     */
+    public static Recovery replay(Path directory, Map<String, RepoDeal> dealsById) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new Recovery();
+        }
+        return scan(directory, dealsById);
+    }
+
+    /**
+     * @return what was recovered when this journal was opened
+     */
+    public Recovery getRecovery() {
+        return recovery;
+    }
+
+    @Override
+    public void onAllocation(RepoDeal deal, Allocation allocation, AllocationStrategy strategy) {
+        append(KIND_ALLOCATION, strategy, deal.getId(), allocation.bondId, allocation.bondType,
+                allocation.creditRating, allocation.amount, allocation.rate);
+    }
+
+    @Override
+    public void onDealPriced(RepoDeal deal, BigDecimal totalCost, AllocationStrategy strategy) {
+        append(KIND_COMMIT, strategy, deal.getId(), "", "", "", totalCost, BigDecimal.ZERO);
+        commitsSinceSync++;
+        if (commitsSinceSync >= groupCommitSize || System.nanoTime() - lastSyncNanos >= groupCommitNanos) {
+            sync();
+        }
+    }
+
+    /**
+     * Records that {@code value} of an internally held bond has been reserved
+     * for a deal. Like allocations, the reservation only takes effect once the
+     * deal is committed.
+     */
+    @Override
+    public void onReservation(RepoDeal deal, Bond bond, BigDecimal value) {
+        append(KIND_RESERVATION, AllocationStrategy.INTERNAL, deal.getId(), bond.getId(), bond.getType(),
+                bond.getCreditRating(), value, BigDecimal.ZERO);
+    }
+
+    /**
+     * Flushes the current segment to disk.
+     */
+    public void sync() {
+        segment.force();
+        commitsSinceSync = 0;
+        lastSyncNanos = System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+        sync();
+    }
+
+    private void append(byte kind, AllocationStrategy strategy, String dealId, String bondId, String bondType,
+            String rating, BigDecimal amount, BigDecimal rate) {
+        if (position + RECORD_SIZE > segment.capacity()) {
+            sync();
+            try {
+                openSegment(segmentIndex + 1);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to roll journal segment in " + directory, e);
+            }
+        }
+
+        int base = position;
+        segment.put(base + OFFSET_KIND, kind);
+        segment.put(base + OFFSET_STRATEGY, strategy.getCode());
+        putText(segment, base + OFFSET_DEAL_ID, WIDTH_ID, dealId);
+        putText(segment, base + OFFSET_BOND_ID, WIDTH_ID, bondId);
+        putText(segment, base + OFFSET_BOND_TYPE, WIDTH_BOND_TYPE, bondType);
+        putText(segment, base + OFFSET_RATING, WIDTH_RATING, rating);
+        putDecimal(segment, base + OFFSET_AMOUNT, amount);
+        putDecimal(segment, base + OFFSET_RATE, rate);
+        segment.putLong(base + OFFSET_SEQUENCE, ++sequence);
+        segment.putInt(base + OFFSET_CRC, checksum(crc, segment, base));
+        position += RECORD_SIZE;
+    }
+
+    private void openSegment(int index) throws IOException {
+        Files.deleteIfExists(segmentPath(directory, index));
+        mapSegment(index, segmentSize);
+        position = 0;
+    }
+
+    private void mapSegment(int index, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(directory, index),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        segmentIndex = index;
+    }
+
+    private static Recovery scan(Path directory, Map<String, RepoDeal> dealsById) throws IOException {
+        long start = System.nanoTime();
+        Recovery recovery = new Recovery();
+        Map<String, List<PendingRecord>> pending = new HashMap<>();
+        List<PendingRecord> current = new ArrayList<>();
+        String currentDealId = null;
+        CRC32 crc = new CRC32();
+        byte[] record = new byte[RECORD_SIZE];
+        TextCache text = new TextCache();
+
+        List<Integer> segments = listSegments(directory);
+        scanning:
+        for (int index : segments) {
+            ByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(segmentPath(directory, index), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            recovery.tailSegment = index;
+            recovery.tailPosition = 0;
+
+            for (int base = 0; base + RECORD_SIZE <= buffer.capacity(); base += RECORD_SIZE) {
+                byte kind = buffer.get(base + OFFSET_KIND);
+                if (kind == 0) {
+                    break scanning;
+                }
+                buffer.get(base, record);
+                crc.reset();
+                crc.update(record, 0, OFFSET_CRC);
+                crc.update(record, OFFSET_DEAL_ID, RECORD_SIZE - OFFSET_DEAL_ID);
+                if (buffer.getInt(base + OFFSET_CRC) != (int) crc.getValue()) {
+                    break scanning;
+                }
+                // A valid record out of sequence is left over from before an
+                // earlier torn record and must not be replayed.
+                long recordSequence = buffer.getLong(base + OFFSET_SEQUENCE);
+                if (recordSequence != recovery.lastSequence + 1) {
+                    break scanning;
+                }
+                recovery.tailPosition = base + RECORD_SIZE;
+                recovery.lastSequence = recordSequence;
+                recovery.recordsRead++;
+
+                // Records of one deal are normally contiguous, so they are
+                // buffered in a reused list; only interleaved deals spill to
+                // the map.
+                String dealId = text.get(record, OFFSET_DEAL_ID, WIDTH_ID);
+                if (currentDealId != null && !currentDealId.equals(dealId) && !current.isEmpty()) {
+                    pending.put(currentDealId, new ArrayList<>(current));
+                    current.clear();
+                }
+                if (!dealId.equals(currentDealId)) {
+                    currentDealId = dealId;
+                    List<PendingRecord> spilled = pending.remove(dealId);
+                    if (spilled != null) {
+                        current.addAll(spilled);
+                    }
+                }
+
+                switch (kind) {
+                    case KIND_ALLOCATION, KIND_RESERVATION -> current.add(new PendingRecord(
+                            kind == KIND_RESERVATION,
+                            text.get(record, OFFSET_BOND_ID, WIDTH_ID),
+                            text.get(record, OFFSET_BOND_TYPE, WIDTH_BOND_TYPE),
+                            text.get(record, OFFSET_RATING, WIDTH_RATING),
+                            getDecimal(buffer, base + OFFSET_AMOUNT)));
+                    case KIND_COMMIT -> {
+                        apply(recovery, dealsById.get(dealId), current, getDecimal(buffer, base + OFFSET_AMOUNT));
+                        recovery.committedDealIds.add(dealId);
+                        current.clear();
+                    }
+                    case KIND_ABORT -> {
+                        recovery.discardedRecords += current.size();
+                        current.clear();
+                    }
+                    default -> throw new IllegalStateException("Corrupt journal record kind " + kind
+                            + " in segment " + index + " at offset " + base);
+                }
+            }
+        }
+
+        if (!current.isEmpty()) {
+            pending.put(currentDealId, current);
+        }
+        for (Map.Entry<String, List<PendingRecord>> entry : pending.entrySet()) {
+            recovery.abortedDealIds.add(entry.getKey());
+            recovery.discardedRecords += entry.getValue().size();
+        }
+        recovery.elapsedNanos = System.nanoTime() - start;
+        return recovery;
+    }
+
+    private static void apply(Recovery recovery, RepoDeal deal, List<PendingRecord> records, BigDecimal cost) {
+        for (PendingRecord record : records) {
+            if (record.reservation) {
+                recovery.reservedByBond.merge(record.bondId, record.amount, BigDecimal::add);
+                if (deal != null) {
+                    recovery.reservedByDeal.merge(deal.getId(), record.amount, BigDecimal::add);
+                }
+            }
+            if (deal != null) {
+                deal.addToRatingFulfilled(record.rating, record.amount);
+                deal.addToTypeFulfilled(record.bondType, record.amount);
+                deal.subtractFromShortfall(record.amount);
+            }
+        }
+        if (deal != null) {
+            deal.setBorrowCost(cost);
+        }
+    }
+
+    private static List<Integer> listSegments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                    .map(p -> p.getFileName().toString())
+                    .filter(n -> n.startsWith(SEGMENT_PREFIX) && n.endsWith(SEGMENT_SUFFIX))
+                    .map(n -> Integer.parseInt(n.substring(SEGMENT_PREFIX.length(), n.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static Path segmentPath(Path directory, int index) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    private static int checksum(CRC32 crc, ByteBuffer buffer, int base) {
+        crc.reset();
+        crc.update(buffer.slice(base, OFFSET_CRC));
+        crc.update(buffer.slice(base + OFFSET_DEAL_ID, RECORD_SIZE - OFFSET_DEAL_ID));
+        return (int) crc.getValue();
+    }
+
+    private static void putText(ByteBuffer buffer, int offset, int width, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > width) {
+            throw new IllegalArgumentException("Value too long for journal field (" + width + " bytes): " + value);
+        }
+        buffer.put(offset, bytes);
+        for (int i = bytes.length; i < width; i++) {
+            buffer.put(offset + i, (byte) 0);
+        }
+    }
+
+
+    private static void putDecimal(ByteBuffer buffer, int offset, BigDecimal value) {
+        BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() > 63) {
+            throw new IllegalArgumentException("Value out of range for journal: " + value);
+        }
+        buffer.putLong(offset, unscaled.longValue());
+        buffer.putInt(offset + 8, value.scale());
+    }
+
+    private static BigDecimal getDecimal(ByteBuffer buffer, int offset) {
+        return BigDecimal.valueOf(buffer.getLong(offset), buffer.getInt(offset + 8));
+    }
+
+    /**
+     * Decodes fixed-width text fields, reusing the {@code String} from an
+     * earlier record when the bytes match. Ids, types and ratings repeat
+     * heavily across a journal, so this avoids decoding most of them.
+     */
+    private static class TextCache {
+        private static final int SLOTS = 4096;
+
+        private final byte[][] keys = new byte[SLOTS][];
+        private final String[] values = new String[SLOTS];
+
+        String get(byte[] record, int offset, int width) {
+            int length = 0;
+            int hash = 1;
+            while (length < width && record[offset + length] != 0) {
+                hash = 31 * hash + record[offset + length];
+                length++;
+            }
+            int slot = (hash ^ (hash >>> 16)) & (SLOTS - 1);
+            byte[] key = keys[slot];
+            if (key != null && Arrays.equals(key, 0, key.length, record, offset, offset + length)) {
+                return values[slot];
+            }
+            keys[slot] = Arrays.copyOfRange(record, offset, offset + length);
+            values[slot] = new String(record, offset, length, StandardCharsets.US_ASCII);
+            return values[slot];
+        }
+    }
+
+    private record PendingRecord(boolean reservation, String bondId, String bondType, String rating,
+            BigDecimal amount) {
+    }
+
+    /**
+     * The outcome of replaying a journal.
+     */
+    public static class Recovery {
+        private final Set<String> committedDealIds = new HashSet<>();
+        private final Set<String> abortedDealIds = new HashSet<>();
+        private final Map<String, BigDecimal> reservedByBond = new LinkedHashMap<>();
+        private final Map<String, BigDecimal> reservedByDeal = new HashMap<>();
+        private long recordsRead;
+        private long discardedRecords;
+        private long elapsedNanos;
+        private long lastSequence;
+        private int tailSegment = -1;
+        private int tailPosition;
+
+        /**
+         * @return ids of deals whose pricing was committed to the journal
+         */
+        public Set<String> getCommittedDealIds() {
+            return Collections.unmodifiableSet(committedDealIds);
+        }
+
+        /**
+         * @return total committed reservation value per internal bond id
+         */
+        public Map<String, BigDecimal> getReservedByBond() {
+            return Collections.unmodifiableMap(reservedByBond);
+        }
+
+        /**
+         * @param dealId a committed deal's id
+         * @return the internal collateral value the deal holds, zero if none
+         */
+        public BigDecimal getReservedForDeal(String dealId) {
+            return reservedByDeal.getOrDefault(dealId, BigDecimal.ZERO);
+        }
+
+        /**
+         * @return number of valid records read
+         */
+        public long getRecordsRead() {
+            return recordsRead;
+        }
+
+        /**
+         * @return number of records discarded because their deal never
+         * committed
+         */
+        public long getDiscardedRecords() {
+            return discardedRecords;
+        }
+
+        /**
+         * @return time taken to replay, in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads files written by {@link ColumnarResultsWriter}, one row group at a
+ * time, and hands each row to a {@link Visitor}.
+ * <p>
+ * Run as a program it converts a columnar file back to the two CSV layouts of
+ * {@link CsvResultsWriter}, printed to standard output:
+ * {@code java -cp out util.ColumnarResultsReader <file>}
+ */
+public class ColumnarResultsReader {
+
+    /**
+     * Receives the rows of a columnar results file in file order. Deal and
+     * allocation row groups are interleaved, so an allocation may be seen
+     * before the deal row it refers to.
+     */
+    public interface Visitor {
+
+        void onDeal(int dealIndex, String dealId, BigDecimal totalValueRequired, BigDecimal borrowCost,
+                String strategy);
+
+        void onAllocation(int dealIndex, String bondId, String bondType, String creditRating, BigDecimal rate,
+                BigDecimal amount, String strategy);
+    }
+
+    /**
+     * Reads {@code file} and passes every row to {@code visitor}.
+     *
+     * @param file a file written by {@link ColumnarResultsWriter}
+     * @param visitor receives each row
+     * @throws IOException if the file cannot be read or is not in the
+     * expected format
+     */
+    public static void read(Path file, Visitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != ColumnarResultsWriter.MAGIC) {
+                throw new IOException("Not a columnar results file: " + file);
+            }
+            int version = in.readInt();
+            if (version != ColumnarResultsWriter.VERSION) {
+                throw new IOException("Unsupported columnar results version " + version + " in " + file);
+            }
+
+            List<List<String>> dictionaries = new ArrayList<>();
+            for (int i = 0; i <= ColumnarResultsWriter.DICT_STRATEGY; i++) {
+                dictionaries.add(new ArrayList<>());
+            }
+            int dealsRead = 0;
+            int lastAllocDeal = 0;
+
+            int block;
+            while ((block = in.read()) != -1) {
+                switch (block) {
+                    case ColumnarResultsWriter.BLOCK_DICTIONARY -> {
+                        List<String> dictionary = dictionaries.get(in.readUnsignedByte());
+                        int count = (int) readVarLong(in);
+                        for (int i = 0; i < count; i++) {
+                            dictionary.add(readString(in));
+                        }
+                    }
+                    case ColumnarResultsWriter.BLOCK_DEALS -> {
+                        int rows = (int) readVarLong(in);
+                        String[] ids = new String[rows];
+                        for (int i = 0; i < rows; i++) ids[i] = readString(in);
+                        BigDecimal[] totals = readDecimals(in, rows);
+                        BigDecimal[] costs = readDecimals(in, rows);
+                        int[] strategies = readCodes(in, rows);
+                        List<String> strategyNames = dictionaries.get(ColumnarResultsWriter.DICT_STRATEGY);
+                        for (int i = 0; i < rows; i++) {
+                            visitor.onDeal(dealsRead++, ids[i], totals[i], costs[i],
+                                    strategyNames.get(strategies[i]));
+                        }
+                    }
+                    case ColumnarResultsWriter.BLOCK_ALLOCATIONS -> {
+                        int rows = (int) readVarLong(in);
+                        int[] dealIndexes = new int[rows];
+                        for (int i = 0; i < rows; i++) {
+                            lastAllocDeal += (int) readVarLong(in);
+                            dealIndexes[i] = lastAllocDeal;
+                        }
+                        int[] bondIds = readCodes(in, rows);
+                        int[] bondTypes = readCodes(in, rows);
+                        int[] ratings = readCodes(in, rows);
+                        int[] strategies = readCodes(in, rows);
+                        BigDecimal[] rates = readDecimals(in, rows);
+                        BigDecimal[] amounts = readDecimals(in, rows);
+                        for (int i = 0; i < rows; i++) {
+                            visitor.onAllocation(dealIndexes[i],
+                                    dictionaries.get(ColumnarResultsWriter.DICT_BOND_ID).get(bondIds[i]),
+                                    dictionaries.get(ColumnarResultsWriter.DICT_BOND_TYPE).get(bondTypes[i]),
+                                    dictionaries.get(ColumnarResultsWriter.DICT_RATING).get(ratings[i]),
+                                    rates[i], amounts[i],
+                                    dictionaries.get(ColumnarResultsWriter.DICT_STRATEGY).get(strategies[i]));
+                        }
+                    }
+                    default -> throw new IOException("Unknown block type " + block + " in " + file);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java -cp out util.ColumnarResultsReader <file>");
+            System.exit(2);
+        }
+        // Deal rows are usually written after the allocations that refer to
+        // them, so allocations are resolved to deal ids once the file is read.
+        List<String> dealIds = new ArrayList<>();
+        List<Integer> allocationDeals = new ArrayList<>();
+        List<String> allocationRows = new ArrayList<>();
+        System.out.println(CsvResultsWriter.DEALS_HEADER);
+        read(Paths.get(args[0]), new Visitor() {
+            @Override
+            public void onDeal(int dealIndex, String dealId, BigDecimal totalValueRequired, BigDecimal borrowCost,
+                    String strategy) {
+                dealIds.add(dealId);
+                System.out.println(dealId + ',' + totalValueRequired.toPlainString() + ','
+                        + borrowCost.toPlainString() + ',' + strategy);
+            }
+
+            @Override
+            public void onAllocation(int dealIndex, String bondId, String bondType, String creditRating,
+                    BigDecimal rate, BigDecimal amount, String strategy) {
+                allocationDeals.add(dealIndex);
+                allocationRows.add(bondId + ',' + bondType + ',' + creditRating + ',' + rate.toPlainString() + ','
+                        + amount.toPlainString() + ',' + strategy);
+            }
+        });
+        System.out.println();
+        System.out.println(CsvResultsWriter.ALLOCATIONS_HEADER);
+        for (int i = 0; i < allocationRows.size(); i++) {
+            System.out.println(dealIds.get(allocationDeals.get(i)) + ',' + allocationRows.get(i));
+        }
+    }
+
+    private static BigDecimal[] readDecimals(InputStream in, int rows) throws IOException {
+        long[] unscaled = new long[rows];
+        for (int i = 0; i < rows; i++) {
+            long zigZag = readVarLong(in);
+            unscaled[i] = (zigZag >>> 1) ^ -(zigZag & 1);
+        }
+        BigDecimal[] values = new BigDecimal[rows];
+        for (int i = 0; i < rows; i++) {
+            values[i] = BigDecimal.valueOf(unscaled[i], (int) readVarLong(in));
+        }
+        return values;
+    }
+
+    private static int[] readCodes(InputStream in, int rows) throws IOException {
+        int[] codes = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            codes[i] = (int) readVarLong(in);
+        }
+        return codes;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated columnar results file");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+}
@@ -0,0 +1,282 @@
+package util;
+
+import core.Allocation;
+import core.AllocationListener;
+import core.AllocationStrategy;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import models.RepoDeal;
+
+/**
+ * Streams pricing results to a compact columnar binary file.
+ * <p>
+ * Rows are buffered in fixed-size row groups of primitive columns and
+ * written out whenever a group fills, so memory stays bounded however many
+ * results are produced. Bond ids, bond types, credit ratings and strategies
+ * are dictionary-encoded; new dictionary entries are written just before the
+ * first row group that uses them. Integers are written as variable-length
+ * quantities and decimals as a zig-zag encoded unscaled value plus a scale.
+ *
+ * <pre>
+ * file       := MAGIC version:int block*
+ * block      := DICTIONARY dictionary:byte count:varint (length:varint utf8)*
+ *             | DEALS rows:varint dealId* totalRequired* cost* strategy*
+ *             | ALLOCATIONS rows:varint dealIndex* bondId* bondType* rating*
+ *               strategy* rate* amount*
+ * </pre>
+ *
+ * Each column is written contiguously for all rows of the group. Allocation
+ * rows refer to their deal by its position in the deal rows (the order in
+ * which deals were priced), written as a delta from the previous row.
+ * {@link ColumnarResultsReader} reads the format back.
+ */
+public class ColumnarResultsWriter implements AllocationListener, Closeable {
+
+    static final int MAGIC = 0x52504f43; // "RPOC"
+    static final int VERSION = 1;
+
+    static final byte BLOCK_DICTIONARY = 1;
+    static final byte BLOCK_DEALS = 2;
+    static final byte BLOCK_ALLOCATIONS = 3;
+
+    static final byte DICT_BOND_ID = 0;
+    static final byte DICT_BOND_TYPE = 1;
+    static final byte DICT_RATING = 2;
+    static final byte DICT_STRATEGY = 3;
+
+    public static final int DEFAULT_ROW_GROUP_SIZE = 65_536;
+
+    private final OutputStream out;
+    private final int rowGroupSize;
+    private final Dictionary[] dictionaries = {new Dictionary(), new Dictionary(), new Dictionary(), new Dictionary()};
+
+    // Deal columns.
+    private final String[] dealIds;
+    private final long[] dealTotalUnscaled;
+    private final int[] dealTotalScale;
+    private final long[] dealCostUnscaled;
+    private final int[] dealCostScale;
+    private final int[] dealStrategy;
+    private int dealRows;
+    private int dealsPriced;
+
+    // Allocation columns.
+    private final int[] allocDeal;
+    private final int[] allocBondId;
+    private final int[] allocBondType;
+    private final int[] allocRating;
+    private final int[] allocStrategy;
+    private final long[] allocRateUnscaled;
+    private final int[] allocRateScale;
+    private final long[] allocAmountUnscaled;
+    private final int[] allocAmountScale;
+    private int allocRows;
+    private int lastAllocDeal;
+
+    /**
+     * Creates the output file with the default row group size.
+     *
+     * @param file the output file, replaced if it exists
+     * @throws IOException if the file cannot be created
+     */
+    public ColumnarResultsWriter(Path file) throws IOException {
+        this(file, DEFAULT_ROW_GROUP_SIZE);
+    }
+
+    /**
+     * Creates the output file.
+     *
+     * @param file the output file, replaced if it exists
+     * @param rowGroupSize rows buffered per column before a group is written
+     * @throws IOException if the file cannot be created
+     */
+    public ColumnarResultsWriter(Path file, int rowGroupSize) throws IOException {
+        this.out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+        this.rowGroupSize = rowGroupSize;
+
+        dealIds = new String[rowGroupSize];
+        dealTotalUnscaled = new long[rowGroupSize];
+        dealTotalScale = new int[rowGroupSize];
+        dealCostUnscaled = new long[rowGroupSize];
+        dealCostScale = new int[rowGroupSize];
+        dealStrategy = new int[rowGroupSize];
+
+        allocDeal = new int[rowGroupSize];
+        allocBondId = new int[rowGroupSize];
+        allocBondType = new int[rowGroupSize];
+        allocRating = new int[rowGroupSize];
+        allocStrategy = new int[rowGroupSize];
+        allocRateUnscaled = new long[rowGroupSize];
+        allocRateScale = new int[rowGroupSize];
+        allocAmountUnscaled = new long[rowGroupSize];
+        allocAmountScale = new int[rowGroupSize];
+
+        writeInt(MAGIC);
+        writeInt(VERSION);
+    }
+
+    @Override
+    public void onAllocation(RepoDeal deal, Allocation allocation, AllocationStrategy strategy) {
+        int row = allocRows;
+        allocDeal[row] = dealsPriced;
+        allocBondId[row] = dictionaries[DICT_BOND_ID].code(allocation.bondId);
+        allocBondType[row] = dictionaries[DICT_BOND_TYPE].code(allocation.bondType);
+        allocRating[row] = dictionaries[DICT_RATING].code(allocation.creditRating);
+        allocStrategy[row] = dictionaries[DICT_STRATEGY].code(strategy.name());
+        allocRateUnscaled[row] = unscaled(allocation.rate);
+        allocRateScale[row] = allocation.rate.scale();
+        allocAmountUnscaled[row] = unscaled(allocation.amount);
+        allocAmountScale[row] = allocation.amount.scale();
+        if (++allocRows == rowGroupSize) {
+            flushAllocations();
+        }
+    }
+
+    @Override
+    public void onDealPriced(RepoDeal deal, BigDecimal totalCost, AllocationStrategy strategy) {
+        int row = dealRows;
+        dealIds[row] = deal.getId();
+        dealTotalUnscaled[row] = unscaled(deal.getTotalValueRequired());
+        dealTotalScale[row] = deal.getTotalValueRequired().scale();
+        dealCostUnscaled[row] = unscaled(totalCost);
+        dealCostScale[row] = totalCost.scale();
+        dealStrategy[row] = dictionaries[DICT_STRATEGY].code(strategy.name());
+        dealsPriced++;
+        if (++dealRows == rowGroupSize) {
+            flushDeals();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushAllocations();
+            flushDeals();
+        } catch (UncheckedIOException e) {
+            out.close();
+            throw e.getCause();
+        }
+        out.close();
+    }
+
+    private void flushDeals() {
+        if (dealRows == 0) return;
+        try {
+            flushDictionaries();
+            out.write(BLOCK_DEALS);
+            writeVarLong(dealRows);
+            for (int i = 0; i < dealRows; i++) {
+                writeString(dealIds[i]);
+                dealIds[i] = null;
+            }
+            for (int i = 0; i < dealRows; i++) writeVarLong(zigZag(dealTotalUnscaled[i]));
+            for (int i = 0; i < dealRows; i++) writeVarLong(dealTotalScale[i]);
+            for (int i = 0; i < dealRows; i++) writeVarLong(zigZag(dealCostUnscaled[i]));
+            for (int i = 0; i < dealRows; i++) writeVarLong(dealCostScale[i]);
+            for (int i = 0; i < dealRows; i++) writeVarLong(dealStrategy[i]);
+            dealRows = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flushAllocations() {
+        if (allocRows == 0) return;
+        try {
+            flushDictionaries();
+            out.write(BLOCK_ALLOCATIONS);
+            writeVarLong(allocRows);
+            for (int i = 0; i < allocRows; i++) {
+                writeVarLong(allocDeal[i] - lastAllocDeal);
+                lastAllocDeal = allocDeal[i];
+            }
+            for (int i = 0; i < allocRows; i++) writeVarLong(allocBondId[i]);
+            for (int i = 0; i < allocRows; i++) writeVarLong(allocBondType[i]);
+            for (int i = 0; i < allocRows; i++) writeVarLong(allocRating[i]);
+            for (int i = 0; i < allocRows; i++) writeVarLong(allocStrategy[i]);
+            for (int i = 0; i < allocRows; i++) writeVarLong(zigZag(allocRateUnscaled[i]));
+            for (int i = 0; i < allocRows; i++) writeVarLong(allocRateScale[i]);
+            for (int i = 0; i < allocRows; i++) writeVarLong(zigZag(allocAmountUnscaled[i]));
+            for (int i = 0; i < allocRows; i++) writeVarLong(allocAmountScale[i]);
+            allocRows = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flushDictionaries() throws IOException {
+        for (byte id = 0; id < dictionaries.length; id++) {
+            Dictionary dictionary = dictionaries[id];
+            if (dictionary.pending.isEmpty()) continue;
+            out.write(BLOCK_DICTIONARY);
+            out.write(id);
+            writeVarLong(dictionary.pending.size());
+            for (String value : dictionary.pending) {
+                writeString(value);
+            }
+            dictionary.pending.clear();
+        }
+    }
+
+    private static long unscaled(BigDecimal value) {
+        if (value.unscaledValue().bitLength() > 63) {
+            throw new IllegalArgumentException("Value out of range for columnar export: " + value);
+        }
+        return value.unscaledValue().longValue();
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * Assigns codes to values in first-seen order and remembers which values
+     * have not been written to the file yet.
+     */
+    private static final class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> pending = new ArrayList<>();
+
+        int code(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = codes.size();
+                codes.put(value, code);
+                pending.add(value);
+            }
+            return code;
+        }
+    }
+}
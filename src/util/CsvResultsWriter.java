@@ -0,0 +1,93 @@
+package util;
+
+import core.Allocation;
+import core.AllocationListener;
+import core.AllocationStrategy;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import models.RepoDeal;
+
+/**
+ * Streams pricing results to two CSV files as deals are priced: one row per
+ * deal with its total borrow cost, and one row per allocation.
+ * <p>
+ * Rows are appended to buffered writers piece by piece rather than through
+ * {@code String.format}, so exporting millions of rows costs little more than
+ * the I/O itself. Nothing is held in memory beyond the writer buffers.
+ */
+public class CsvResultsWriter implements AllocationListener, Closeable {
+
+    public static final String DEALS_HEADER = "dealId,totalValueRequired,borrowCost,strategy";
+    public static final String ALLOCATIONS_HEADER = "dealId,bondId,bondType,creditRating,borrowRate,amount,strategy";
+
+    private final BufferedWriter deals;
+    private final BufferedWriter allocations;
+
+    /**
+     * Creates the two output files, replacing any existing ones.
+     *
+     * @param dealsFile file for the per-deal rows
+     * @param allocationsFile file for the per-allocation rows
+     * @throws IOException if a file cannot be created
+     */
+    public CsvResultsWriter(Path dealsFile, Path allocationsFile) throws IOException {
+        this.deals = Files.newBufferedWriter(dealsFile);
+        this.allocations = Files.newBufferedWriter(allocationsFile);
+        deals.write(DEALS_HEADER);
+        deals.newLine();
+        allocations.write(ALLOCATIONS_HEADER);
+        allocations.newLine();
+    }
+
+    @Override
+    public void onAllocation(RepoDeal deal, Allocation allocation, AllocationStrategy strategy) {
+        try {
+            allocations.write(deal.getId());
+            allocations.write(',');
+            allocations.write(allocation.bondId);
+            allocations.write(',');
+            allocations.write(allocation.bondType);
+            allocations.write(',');
+            allocations.write(allocation.creditRating);
+            allocations.write(',');
+            allocations.write(allocation.rate.toPlainString());
+            allocations.write(',');
+            allocations.write(allocation.amount.toPlainString());
+            allocations.write(',');
+            allocations.write(strategy.name());
+            allocations.newLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void onDealPriced(RepoDeal deal, BigDecimal totalCost, AllocationStrategy strategy) {
+        try {
+            deals.write(deal.getId());
+            deals.write(',');
+            deals.write(deal.getTotalValueRequired().toPlainString());
+            deals.write(',');
+            deals.write(totalCost.toPlainString());
+            deals.write(',');
+            deals.write(strategy.name());
+            deals.newLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            deals.close();
+        } finally {
+            allocations.close();
+        }
+    }
+}
@@ -7,10 +7,12 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import horizon.ScheduledDeal;
 import models.Bond;
 import models.PossibleBorrowedBond;
 import models.RepoDeal;
@@ -51,20 +53,30 @@ public class DataLoader {
                     continue;
                 }
 
-                String[] parts = line.split(",");
-
-                String id = parts[0].trim();
-                String bondType = parts[1].trim();
-                String creditRating = parts[2].trim();
-                BigDecimal borrowRate = new BigDecimal(parts[3].trim());
-
-                borrowMarketList.add(new PossibleBorrowedBond(id, bondType, creditRating, borrowRate));
+                borrowMarketList.add(parsePossibleBorrowedBond(line));
             }
         }
 
         return borrowMarketList;
     }
 
+    /**
+     * Parses one data line of a borrow market CSV file.
+     *
+     * @param line a line in the format id,bondType,creditRating,borrowRate
+     * @return the parsed {@code PossibleBorrowedBond}
+     */
+    public static PossibleBorrowedBond parsePossibleBorrowedBond(String line) {
+        String[] parts = line.split(",");
+
+        String id = parts[0].trim();
+        String bondType = parts[1].trim();
+        String creditRating = parts[2].trim();
+        BigDecimal borrowRate = new BigDecimal(parts[3].trim());
+
+        return new PossibleBorrowedBond(id, bondType, creditRating, borrowRate);
+    }
+
     /**
      * Loads a list of Bond objects from a CSV file at the specified filepath.
      * The CSV file is expected to have a header row and the following columns:
@@ -87,21 +99,31 @@ public class DataLoader {
                     continue;
                 }
 
-                String[] parts = line.split(",");
-
-                String id = parts[0].trim();
-                String bondType = parts[1].trim();
-                String creditRating = parts[2].trim();
-                BigInteger quantity = BigInteger.valueOf(Integer.parseInt(parts[3].trim()));
-                BigDecimal price = new BigDecimal(parts[4].trim());
-
-                bonds.add(new Bond(id, bondType, creditRating, quantity, price));
+                bonds.add(parseBond(line));
             }
         }
 
         return bonds;
     }
 
+    /**
+     * Parses one data line of a collateral CSV file.
+     *
+     * @param line a line in the format id,bondType,creditRating,quantity,price
+     * @return the parsed {@code Bond}
+     */
+    public static Bond parseBond(String line) {
+        String[] parts = line.split(",");
+
+        String id = parts[0].trim();
+        String bondType = parts[1].trim();
+        String creditRating = parts[2].trim();
+        BigInteger quantity = BigInteger.valueOf(Integer.parseInt(parts[3].trim()));
+        BigDecimal price = new BigDecimal(parts[4].trim());
+
+        return new Bond(id, bondType, creditRating, quantity, price);
+    }
+
 // PG-1
 // Implement a method that loads data from a `RepoDeals.csv` file and returns a List<RepoDeal>.
 // The format will be similar to how bonds are loaded in `loadBonds(...)` above.
@@ -172,41 +194,7 @@ public class DataLoader {
                 }
 
                 try {
-                    String id = parts[0].trim();
-                    BigDecimal totalValueRequired = new BigDecimal(parts[2].trim());
-
-                    Map<String, BigDecimal> ratingRequirements = new HashMap<>();
-                    if (!parts[3].trim().equals("0")) {
-                        ratingRequirements.put("AAA", new BigDecimal(parts[3].trim()));
-                    }
-                    if (!parts[4].trim().equals("0")) {
-                        ratingRequirements.put("AA", new BigDecimal(parts[4].trim()));
-                    }
-                    if (!parts[5].trim().equals("0")) {
-                        ratingRequirements.put("A", new BigDecimal(parts[5].trim()));
-                    }
-                    if (!parts[6].trim().equals("0")) {
-                        ratingRequirements.put("BBB", new BigDecimal(parts[6].trim()));
-                    }
-                    if (!parts[7].trim().equals("0")) {
-                        ratingRequirements.put("BB", new BigDecimal(parts[7].trim()));
-                    }
-                    if (!parts[8].trim().equals("0")) {
-                        ratingRequirements.put("B", new BigDecimal(parts[8].trim()));
-                    }
-
-                    Map<String, BigDecimal> typeRequirements = new HashMap<>();
-                    if (!parts[9].trim().equals("0")) {
-                        typeRequirements.put("Municipal", new BigDecimal(parts[9].trim()));
-                    }
-                    if (!parts[10].trim().equals("0")) {
-                        typeRequirements.put("Sovereign", new BigDecimal(parts[10].trim()));
-                    }
-                    if (!parts[11].trim().equals("0")) {
-                        typeRequirements.put("Corporate", new BigDecimal(parts[11].trim()));
-                    }
-
-                    repoDeals.add(new RepoDeal(id, totalValueRequired, ratingRequirements, typeRequirements));
+                    repoDeals.add(parseRepoDeal(parts));
                 } catch (Exception e) {
                     System.out.println("Error parsing line: " + line);
                     System.err.println("Exception: " + e.getMessage());
@@ -217,4 +205,107 @@ public class DataLoader {
         return repoDeals;
     }
 
+    /**
+     * Parses one data line of a repo deals CSV file, in the column layout
+     * described in {@link #loadRepoDeals(String)}.
+     *
+     * @param line the CSV line
+     * @return the parsed {@code RepoDeal}
+     * @throws IllegalArgumentException if the line has fewer than 12 columns
+     * or a value cannot be parsed
+     */
+    public static RepoDeal parseRepoDeal(String line) {
+        String[] parts = line.split(",");
+        if (parts.length < 12) {
+            throw new IllegalArgumentException("Expected 12 columns but found " + parts.length);
+        }
+        return parseRepoDeal(parts);
+    }
+
+    private static RepoDeal parseRepoDeal(String[] parts) {
+        String id = parts[0].trim();
+        BigDecimal totalValueRequired = new BigDecimal(parts[2].trim());
+
+        Map<String, BigDecimal> ratingRequirements = new HashMap<>();
+        if (!parts[3].trim().equals("0")) {
+            ratingRequirements.put("AAA", new BigDecimal(parts[3].trim()));
+        }
+        if (!parts[4].trim().equals("0")) {
+            ratingRequirements.put("AA", new BigDecimal(parts[4].trim()));
+        }
+        if (!parts[5].trim().equals("0")) {
+            ratingRequirements.put("A", new BigDecimal(parts[5].trim()));
+        }
+        if (!parts[6].trim().equals("0")) {
+            ratingRequirements.put("BBB", new BigDecimal(parts[6].trim()));
+        }
+        if (!parts[7].trim().equals("0")) {
+            ratingRequirements.put("BB", new BigDecimal(parts[7].trim()));
+        }
+        if (!parts[8].trim().equals("0")) {
+            ratingRequirements.put("B", new BigDecimal(parts[8].trim()));
+        }
+
+        Map<String, BigDecimal> typeRequirements = new HashMap<>();
+        if (!parts[9].trim().equals("0")) {
+            typeRequirements.put("Municipal", new BigDecimal(parts[9].trim()));
+        }
+        if (!parts[10].trim().equals("0")) {
+            typeRequirements.put("Sovereign", new BigDecimal(parts[10].trim()));
+        }
+        if (!parts[11].trim().equals("0")) {
+            typeRequirements.put("Corporate", new BigDecimal(parts[11].trim()));
+        }
+
+        return new RepoDeal(id, totalValueRequired, ratingRequirements, typeRequirements);
+    }
+
+    /**
+     * Loads the start and maturity dates of deals from a CSV file.
+     * <p>
+     * The CSV file is expected to have a header row, which will be skipped,
+     * followed by lines of three columns: deal id, start date and maturity
+     * date, with dates in ISO format (e.g. 2025-01-31). Deals are looked up
+     * by id in {@code deals}; lines naming an unknown deal are skipped.
+     *
+     * @param filepath the path to the CSV file containing the schedule
+     * @param deals the deals the schedule refers to
+     * @return the scheduled deals, in file order
+     * @throws IOException if an I/O error occurs reading from the file
+     * @throws IllegalArgumentException if a line cannot be parsed or a deal
+     * does not mature after it starts
+     */
+    public static List<ScheduledDeal> loadDealSchedule(String filepath, List<RepoDeal> deals) throws IOException {
+        Map<String, RepoDeal> dealsById = new HashMap<>();
+        for (RepoDeal deal : deals) {
+            dealsById.put(deal.getId(), deal);
+        }
+        List<ScheduledDeal> schedule = new ArrayList<>();
+
+        try (BufferedReader br = Files.newBufferedReader(Paths.get(filepath))) {
+            String line;
+            boolean isFirstLine = true;
+
+            while ((line = br.readLine()) != null) {
+                if (isFirstLine) {
+                    isFirstLine = false;
+                    continue;
+                }
+
+                String[] parts = line.split(",");
+                if (parts.length < 3) {
+                    throw new IllegalArgumentException("Expected 3 columns but found " + parts.length + ": " + line);
+                }
+                RepoDeal deal = dealsById.get(parts[0].trim());
+                if (deal == null) {
+                    continue;
+                }
+                schedule.add(new ScheduledDeal(deal, LocalDate.parse(parts[1].trim()),
+                        LocalDate.parse(parts[2].trim())));
+            }
+        }
+
+        return schedule;
+    }
+
 }
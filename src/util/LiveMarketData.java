@@ -0,0 +1,492 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import models.Bond;
+import models.PossibleBorrowedBond;
+
+/**
+ * Keeps the borrow market and internal collateral in memory and reloads them
+ * when their CSV files change on disk.
+ * <p>
+ * Readers call {@link #snapshot()} and price against the returned
+ * {@link Snapshot}, which never changes. A reload builds the next version
+ * copy-on-write and publishes it with a single atomic swap, so pricing that is
+ * already in flight keeps a consistent view while new pricing sees the update.
+ * <p>
+ * A reload looks up each line of the new file among the lines already loaded
+ * and only parses the lines it has not seen before, matching them to existing
+ * rows by id; unchanged rows keep their existing objects. Existing rows keep
+ * their position in the list, removed rows are dropped and new rows are
+ * appended in file order. If nothing changed, no new version is published,
+ * so market indexes built by callers (such as
+ * {@code core.ScratchGreedyPricer}) stay valid.
+ * <p>
+ * A reload that would remove more than {@value #DEFAULT_MAX_REMOVED_PERCENT}%
+ * of a file's rows is refused and the current version stays published; a
+ * file that suddenly loses most of its rows is far more likely truncated
+ * than genuinely cut down. The limit can be changed with
+ * {@link #setMaxRemovedPercent}.
+ */
+public class LiveMarketData implements Closeable {
+
+    public static final int DEFAULT_MAX_REMOVED_PERCENT = 25;
+    /**
+     * How long a watched file must keep the same size and modification time
+     * before it is reloaded.
+     */
+    public static final long STABLE_MILLIS = 500;
+    /**
+     * How long the watcher waits for a file to settle before leaving it until
+     * its next change.
+     */
+    public static final long MAX_SETTLE_MILLIS = 30_000;
+
+    /**
+     * An immutable version of the market and collateral.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final List<PossibleBorrowedBond> borrowMarket;
+        private final List<Bond> collateral;
+
+        Snapshot(long version, List<PossibleBorrowedBond> borrowMarket, List<Bond> collateral) {
+            this.version = version;
+            this.borrowMarket = borrowMarket;
+            this.collateral = collateral;
+        }
+
+        /**
+         * @return the version number, incremented on every published reload
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the borrow market rows, unmodifiable
+         */
+        public List<PossibleBorrowedBond> getBorrowMarket() {
+            return borrowMarket;
+        }
+
+        /**
+         * @return the internal collateral bonds, unmodifiable
+         */
+        public List<Bond> getCollateral() {
+            return collateral;
+        }
+    }
+
+    /**
+     * The rows applied by one reload.
+     *
+     * @param file the file that was reloaded
+     * @param inserted rows whose id was not present before
+     * @param removed rows whose id is no longer in the file
+     * @param changed rows whose line differs from the previous version
+     * @param elapsedNanos time taken to diff and publish
+     */
+    public record Delta(Path file, int inserted, int removed, int changed, long elapsedNanos) {
+
+        /**
+         * @return true if the reload changed any rows
+         */
+        public boolean isEmpty() {
+            return inserted == 0 && removed == 0 && changed == 0;
+        }
+    }
+
+    private final Path marketFile;
+    private final Path collateralFile;
+    private final DeltaTable<PossibleBorrowedBond> market;
+    private final DeltaTable<Bond> collateral;
+    private final AtomicReference<Snapshot> current = new AtomicReference<>();
+    private final List<Consumer<Delta>> reloadListeners = new ArrayList<>();
+
+    private int maxRemovedPercent = DEFAULT_MAX_REMOVED_PERCENT;
+    private WatchService watchService;
+    private Thread watcher;
+
+    private LiveMarketData(Path marketFile, Path collateralFile) {
+        this.marketFile = marketFile;
+        this.collateralFile = collateralFile;
+        this.market = new DeltaTable<>(DataLoader::parsePossibleBorrowedBond, PossibleBorrowedBond::getId);
+        this.collateral = new DeltaTable<>(DataLoader::parseBond, Bond::getId);
+    }
+
+    /**
+     * Loads the borrow market and collateral files and publishes version 1.
+     *
+     * @param marketFile the borrow market CSV
+     * @param collateralFile the internal collateral CSV
+     * @return the loaded data
+     * @throws IOException if either file cannot be read
+     */
+    public static LiveMarketData load(Path marketFile, Path collateralFile) throws IOException {
+        LiveMarketData data = new LiveMarketData(marketFile, collateralFile);
+        data.market.reload(marketFile, 100);
+        data.collateral.reload(collateralFile, 100);
+        data.current.set(new Snapshot(1, data.market.rows, data.collateral.rows));
+        return data;
+    }
+
+    /**
+     * @return the current version of the market and collateral
+     */
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * Registers a callback run after every reload, on the reloading thread.
+     *
+     * @param listener receives the delta of each reload
+     */
+    public synchronized void addReloadListener(Consumer<Delta> listener) {
+        reloadListeners.add(listener);
+    }
+
+    /**
+     * Sets the largest share of a file's rows one reload may remove. Use 100
+     * to accept any reload, for example before deliberately cutting a file
+     * down.
+     *
+     * @param percent a percentage from 0 to 100
+     */
+    public synchronized void setMaxRemovedPercent(int percent) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("Max removed percent must be between 0 and 100: " + percent);
+        }
+        maxRemovedPercent = percent;
+    }
+
+    /**
+     * Re-reads the borrow market file and publishes any changes.
+     *
+     * @return the rows that changed
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if a line cannot be parsed, an id is
+     * repeated or the reload would remove too many rows
+     */
+    public synchronized Delta reloadBorrowMarket() throws IOException {
+        return publish(marketFile, market.reload(marketFile, maxRemovedPercent));
+    }
+
+    /**
+     * Re-reads the collateral file and publishes any changes.
+     *
+     * @return the rows that changed
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if a line cannot be parsed, an id is
+     * repeated or the reload would remove too many rows
+     */
+    public synchronized Delta reloadCollateral() throws IOException {
+        return publish(collateralFile, collateral.reload(collateralFile, maxRemovedPercent));
+    }
+
+    /**
+     * Starts a daemon thread that watches the directories of both files and
+     * reloads a file whenever it is created or modified.
+     * <p>
+     * Writers should write a new version to a temporary file in the same
+     * directory and rename it into place, so the watcher only ever sees a
+     * complete file. A file rewritten in place is only reloaded once its size
+     * and modification time have stayed the same for {@value #STABLE_MILLIS}
+     * ms; if it is still changing after {@value #MAX_SETTLE_MILLIS} ms it is
+     * left until its next change. A reload that fails or is refused is logged
+     * and the previous version stays published.
+     *
+     * @throws IOException if the watch service cannot be started
+     */
+    public synchronized void startWatching() throws IOException {
+        if (watcher != null) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        Set<Path> directories = new HashSet<>();
+        directories.add(directoryOf(marketFile));
+        directories.add(directoryOf(collateralFile));
+        for (Path directory : directories) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+
+        watcher = new Thread(this::watchLoop, "market-data-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+        watcher = null;
+    }
+
+    private Delta publish(Path file, Delta delta) {
+        if (!delta.isEmpty()) {
+            Snapshot previous = current.get();
+            current.set(new Snapshot(previous.getVersion() + 1, market.rows, collateral.rows));
+        }
+        for (Consumer<Delta> listener : reloadListeners) {
+            listener.accept(delta);
+        }
+        return delta;
+    }
+
+    private void watchLoop() {
+        WatchService service = watchService;
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean marketChanged = false;
+                boolean collateralChanged = false;
+                do {
+                    Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            marketChanged = true;
+                            collateralChanged = true;
+                            continue;
+                        }
+                        Path changed = directory.resolve((Path) event.context());
+                        marketChanged |= isSameFile(changed, marketFile);
+                        collateralChanged |= isSameFile(changed, collateralFile);
+                    }
+                    key.reset();
+                    key = service.poll();
+                } while (key != null);
+
+                if (marketChanged && awaitStable(marketFile)) {
+                    reloadQuietly(true);
+                }
+                if (collateralChanged && awaitStable(collateralFile)) {
+                    reloadQuietly(false);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Watching stopped.
+        }
+    }
+
+    private void reloadQuietly(boolean borrowMarket) {
+        try {
+            if (borrowMarket) {
+                reloadBorrowMarket();
+            } else {
+                reloadCollateral();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error reloading " + (borrowMarket ? marketFile : collateralFile) + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits until {@code file} has kept the same size and modification time
+     * for {@value #STABLE_MILLIS} ms. Returns false if it is missing or still
+     * changing after {@value #MAX_SETTLE_MILLIS} ms.
+     */
+    private static boolean awaitStable(Path file) throws InterruptedException {
+        long giveUp = System.nanoTime() + MAX_SETTLE_MILLIS * 1_000_000;
+        FileState last = FileState.of(file);
+        while (last != null) {
+            Thread.sleep(STABLE_MILLIS);
+            FileState now = FileState.of(file);
+            if (last.equals(now)) {
+                return true;
+            }
+            if (System.nanoTime() > giveUp) {
+                System.err.println("Not reloading " + file + ": still changing after " + MAX_SETTLE_MILLIS + " ms");
+                return false;
+            }
+            last = now;
+        }
+        return false;
+    }
+
+    private static boolean isSameFile(Path a, Path b) {
+        return a.toAbsolutePath().normalize().equals(b.toAbsolutePath().normalize());
+    }
+
+    private static Path directoryOf(Path file) {
+        Path parent = file.toAbsolutePath().getParent();
+        return parent == null ? file.toAbsolutePath() : parent;
+    }
+
+    /**
+     * One CSV file held as an unmodifiable row list plus the writer-side
+     * bookkeeping needed to diff the next version of the file by id.
+     * <p>
+     * Rows are indexed both by their exact line and by id. Most lines of a
+     * new file match a known line and are skipped with a single lookup; only
+     * lines that miss are split to find their id and parsed.
+     */
+    private static final class DeltaTable<T> {
+        private final Function<String, T> parser;
+        private final Function<T, String> idOf;
+        private final Map<String, Row<T>> byLine = new HashMap<>();
+        private final Map<String, Row<T>> byId = new HashMap<>();
+        private List<T> rows = Collections.emptyList();
+        private long generation;
+
+        DeltaTable(Function<String, T> parser, Function<T, String> idOf) {
+            this.parser = parser;
+            this.idOf = idOf;
+        }
+
+        /**
+         * Diffs {@code file} against the current rows and, if anything
+         * changed, replaces {@link #rows} with an updated copy. Rows are only
+         * updated once the whole file has parsed and no more than
+         * {@code maxRemovedPercent}% of them would be removed, so a failed or
+         * refused reload leaves the table untouched.
+         */
+        Delta reload(Path file, int maxRemovedPercent) throws IOException {
+            long start = System.nanoTime();
+            long gen = ++generation;
+            int unchanged = 0;
+            List<Row<T>> changed = new ArrayList<>();
+            List<String> changedLines = new ArrayList<>();
+            List<T> changedValues = new ArrayList<>();
+            List<Row<T>> inserted = new ArrayList<>();
+            Map<String, Row<T>> insertedById = new HashMap<>();
+
+            try (BufferedReader br = Files.newBufferedReader(file)) {
+                String line;
+                boolean isFirstLine = true;
+                while ((line = br.readLine()) != null) {
+                    if (isFirstLine) {
+                        isFirstLine = false;
+                        continue;
+                    }
+                    if (line.isBlank()) continue;
+
+                    Row<T> known = byLine.get(line);
+                    if (known != null && known.seenIn != gen) {
+                        known.seenIn = gen;
+                        unchanged++;
+                        continue;
+                    }
+
+                    T value = parser.apply(line);
+                    String id = idOf.apply(value);
+                    Row<T> previous = byId.get(id);
+                    if (previous != null && previous.seenIn == gen || insertedById.containsKey(id)) {
+                        throw new IllegalArgumentException("Duplicate id " + id + " in " + file);
+                    }
+                    if (previous == null) {
+                        Row<T> row = new Row<>(id, line, value);
+                        row.seenIn = gen;
+                        inserted.add(row);
+                        insertedById.put(id, row);
+                    } else {
+                        previous.seenIn = gen;
+                        changed.add(previous);
+                        changedLines.add(line);
+                        changedValues.add(value);
+                    }
+                }
+            }
+
+            List<Row<T>> removed = new ArrayList<>();
+            if (unchanged + changed.size() < byId.size()) {
+                for (Row<T> row : byId.values()) {
+                    if (row.seenIn != gen) {
+                        removed.add(row);
+                    }
+                }
+                if (removed.size() * 100L > (long) maxRemovedPercent * byId.size()) {
+                    throw new IllegalArgumentException(String.format(
+                            "Reload of %s would remove %d of %d rows; keeping the current version", file,
+                            removed.size(), byId.size()));
+                }
+            }
+
+            if (!changed.isEmpty() || !inserted.isEmpty() || !removed.isEmpty()) {
+                List<T> next = new ArrayList<>(rows);
+                for (int i = 0; i < changed.size(); i++) {
+                    Row<T> row = changed.get(i);
+                    byLine.remove(row.line);
+                    row.line = changedLines.get(i);
+                    row.value = changedValues.get(i);
+                    byLine.put(row.line, row);
+                    next.set(row.index, row.value);
+                }
+                if (!removed.isEmpty()) {
+                    for (Row<T> row : removed) {
+                        byLine.remove(row.line);
+                        byId.remove(row.id);
+                    }
+                    Set<String> removedIds = new HashSet<>();
+                    removed.forEach(row -> removedIds.add(row.id));
+                    next.removeIf(value -> removedIds.contains(idOf.apply(value)));
+                    for (int i = 0; i < next.size(); i++) {
+                        byId.get(idOf.apply(next.get(i))).index = i;
+                    }
+                }
+                for (Row<T> row : inserted) {
+                    row.index = next.size();
+                    next.add(row.value);
+                    byLine.put(row.line, row);
+                    byId.put(row.id, row);
+                }
+                rows = Collections.unmodifiableList(next);
+            }
+
+            return new Delta(file, inserted.size(), removed.size(), changed.size(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * A file's size and modification time, or {@code null} from {@link #of}
+     * if it cannot be read.
+     */
+    private record FileState(long size, FileTime modified) {
+
+        static FileState of(Path file) {
+            try {
+                return new FileState(Files.size(file), Files.getLastModifiedTime(file));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    private static final class Row<T> {
+        final String id;
+        String line;
+        T value;
+        int index;
+        long seenIn;
+
+        Row(String id, String line, T value) {
+            this.id = id;
+            this.line = line;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import models.Bond;
+import models.PossibleBorrowedBond;
+import models.RepoDeal;
+
+/**
+ * Generates deal books, internal inventories and borrow markets of any size
+ * for scale and correctness testing. The same seed always produces the same
+ * book, and the files written are in the formats read by {@link DataLoader}.
+ * <p>
+ * Borrow rates follow the shape of the sample market: higher ratings cost
+ * more to borrow, with a spread by bond type and some noise. Every
+ * rating/type combination appears in any market of at least
+ * {@value #COMBINATIONS} rows, so the greedy strategy never runs out of
+ * candidates.
+ * <p>
+ * Usage: {@code java -cp out util.SyntheticBookGenerator <dir> <deals>
+ * <holdings> <marketRows> [seed]}
+ */
+public class SyntheticBookGenerator {
+
+    public static final String[] RATINGS = {"AAA", "AA", "A", "BBB", "BB", "B"};
+    public static final String[] TYPES = {"Municipal", "Sovereign", "Corporate"};
+    public static final int COMBINATIONS = RATINGS.length * TYPES.length;
+
+    public static final String DEALS_FILE = "repo_deals.csv";
+    public static final String COLLATERAL_FILE = "collateral.csv";
+    public static final String BORROW_MARKET_FILE = "borrow_market.csv";
+
+    // Base borrow rate in tenths of a percent per rating, AAA first.
+    private static final int[] RATING_BASE_RATE = {58, 53, 49, 45, 41, 37};
+    // Spread in tenths of a percent per type, in TYPES order.
+    private static final int[] TYPE_SPREAD = {2, 0, -1};
+
+    private final Random random;
+
+    public SyntheticBookGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: SyntheticBookGenerator <dir> <deals> <holdings> <marketRows> [seed]");
+            System.exit(1);
+        }
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42L;
+        SyntheticBookGenerator generator = new SyntheticBookGenerator(seed);
+        generator.writeBook(Paths.get(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]));
+        System.out.println("Wrote synthetic book to " + args[0]);
+    }
+
+    /**
+     * Generates a book and writes it as {@value #DEALS_FILE},
+     * {@value #COLLATERAL_FILE} and {@value #BORROW_MARKET_FILE} in
+     * {@code directory}.
+     *
+     * @param directory output directory, created if missing
+     * @param deals number of repo deals
+     * @param holdings number of internal collateral bonds
+     * @param marketRows number of borrow market rows
+     * @throws IOException if a file cannot be written
+     */
+    public void writeBook(Path directory, int deals, int holdings, int marketRows) throws IOException {
+        Files.createDirectories(directory);
+        writeDeals(generateDeals(deals), directory.resolve(DEALS_FILE));
+        writeInventory(generateInventory(holdings), directory.resolve(COLLATERAL_FILE));
+        writeBorrowMarket(generateBorrowMarket(marketRows), directory.resolve(BORROW_MARKET_FILE));
+    }
+
+    /**
+     * Generates repo deals with between zero and three rating minimums and
+     * up to two type minimums, each a multiple of 5%, with each group summing
+     * to at most 100%.
+     *
+     * @param count number of deals
+     * @return the generated deals
+     */
+    public List<RepoDeal> generateDeals(int count) {
+        List<RepoDeal> deals = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            BigDecimal required = BigDecimal.valueOf(10 + random.nextInt(191)).multiply(BigDecimal.valueOf(100_000));
+            deals.add(new RepoDeal("D" + (i + 1), required,
+                    randomRequirements(RATINGS, random.nextInt(4)),
+                    randomRequirements(TYPES, random.nextInt(3))));
+        }
+        return deals;
+    }
+
+    /**
+     * Generates internal collateral holdings.
+     *
+     * @param count number of holdings
+     * @return the generated bonds
+     */
+    public List<Bond> generateInventory(int count) {
+        List<Bond> bonds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int rating = random.nextInt(RATINGS.length);
+            String type = TYPES[random.nextInt(TYPES.length)];
+            BigInteger quantity = BigInteger.valueOf(10 + random.nextInt(91));
+            BigDecimal price = BigDecimal.valueOf(30_000 + 1_000L * random.nextInt(75));
+            bonds.add(new Bond("C" + (i + 1), type, RATINGS[rating], quantity, price));
+        }
+        return bonds;
+    }
+
+    /**
+     * Generates a borrow market. Row {@code i} has the rating/type combination
+     * {@code i % }{@value #COMBINATIONS}, so every combination is offered once
+     * the market has at least that many rows.
+     *
+     * @param count number of market rows
+     * @return the generated market
+     */
+    public List<PossibleBorrowedBond> generateBorrowMarket(int count) {
+        List<PossibleBorrowedBond> market = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int combination = i % COMBINATIONS;
+            int type = combination / RATINGS.length;
+            int rating = combination % RATINGS.length;
+            int tenths = RATING_BASE_RATE[rating] + TYPE_SPREAD[type] + random.nextInt(7) - 3;
+            market.add(new PossibleBorrowedBond("B" + (i + 1), TYPES[type], RATINGS[rating],
+                    BigDecimal.valueOf(tenths, 1)));
+        }
+        return market;
+    }
+
+    private Map<String, BigDecimal> randomRequirements(String[] keys, int count) {
+        Map<String, BigDecimal> requirements = new HashMap<>();
+        int budget = 20;
+        for (int n = 0; n < count && budget > 0; n++) {
+            String key = keys[random.nextInt(keys.length)];
+            if (requirements.containsKey(key)) continue;
+            int steps = 1 + random.nextInt(Math.min(budget, 12));
+            budget -= steps;
+            requirements.put(key, BigDecimal.valueOf(steps * 5L));
+        }
+        return requirements;
+    }
+
+    /**
+     * Writes deals in the format read by {@link DataLoader#loadRepoDeals}.
+     *
+     * @param deals the deals to write
+     * @param file the output file
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeDeals(List<RepoDeal> deals, Path file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write("id,counterparty,requiredValue,minAAA,minAA,minA,minBBB,minBB,minB,"
+                    + "minMunicipal,minSovereign,minCorporate");
+            out.newLine();
+            int counterparty = 0;
+            for (RepoDeal deal : deals) {
+                StringBuilder line = new StringBuilder()
+                        .append(deal.getId()).append(",Buyer").append(++counterparty).append(',')
+                        .append(deal.getTotalValueRequired().toPlainString());
+                for (String rating : RATINGS) {
+                    line.append(',').append(percent(deal.getRatingRequirements().get(rating)));
+                }
+                for (String type : TYPES) {
+                    line.append(',').append(percent(deal.getTypeRequirements().get(type)));
+                }
+                out.write(line.toString());
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Writes bonds in the format read by {@link DataLoader#loadBonds}.
+     *
+     * @param bonds the bonds to write
+     * @param file the output file
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeInventory(List<Bond> bonds, Path file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write("id,bondType,creditRating,quantity,price");
+            out.newLine();
+            for (Bond bond : bonds) {
+                out.write(bond.getId() + "," + bond.getType() + "," + bond.getCreditRating() + ","
+                        + bond.getQuantity() + "," + bond.getPrice().toPlainString());
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Writes a borrow market in the format read by
+     * {@link DataLoader#loadPossibleBorrowedBonds}.
+     *
+     * @param market the market rows to write
+     * @param file the output file
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeBorrowMarket(List<PossibleBorrowedBond> market, Path file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write("id,bondType,creditRating,borrowRate");
+            out.newLine();
+            for (PossibleBorrowedBond bond : market) {
+                out.write(bond.getId() + "," + bond.getBondType() + "," + bond.getCreditRating() + ","
+                        + bond.getBorrowRate().toPlainString());
+                out.newLine();
+            }
+        }
+    }
+
+    private static String percent(BigDecimal value) {
+        return value == null ? "0" : value.toPlainString();
+    }
+}